@@ -0,0 +1,301 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  Runs the per-file work of the command line converters.  With
+ *  one thread each conversion runs immediately on the calling thread.
+ *  With more, conversions run on a bounded pool and each one's output
+ *  is buffered and printed in submission order so that the log reads
+ *  the same as a single threaded run.  Failed conversions are reported
+ *  and counted rather than stopping the run.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class ConversionQueue
+{
+    private static ThreadLocal currentLog = new ThreadLocal();
+
+    private int threadCount;
+    private ExecutorService pool;
+    private LinkedList pending = new LinkedList();
+    private int maxPending;
+
+    private long start = System.currentTimeMillis();
+    private int completed;
+    private int failures;
+    private long bytes;
+
+    public ConversionQueue( int threadCount )
+    {
+        this.threadCount = Math.max( 1, threadCount );
+        if( this.threadCount > 1 )
+            {
+            // Daemon threads so that an error thrown from main()
+            // before finish() doesn't leave the JVM running.
+            pool = Executors.newFixedThreadPool( this.threadCount,
+                                                 new ThreadFactory()
+                                                    {
+                                                        public Thread newThread( Runnable r )
+                                                        {
+                                                            Thread t = new Thread( r, "Converter" );
+                                                            t.setDaemon( true );
+                                                            return( t );
+                                                        }
+                                                    } );
+
+            // Limits how much buffered output can pile up behind
+            // a slow conversion.
+            maxPending = this.threadCount * 4;
+            }
+    }
+
+    /**
+     *  Returns the stream that the current conversion should log to.
+     *  This is System.out unless the conversion is running on one of
+     *  the queue's threads.
+     */
+    public static PrintStream getLog()
+    {
+        PrintStream log = (PrintStream)currentLog.get();
+        if( log == null )
+            return( System.out );
+        return( log );
+    }
+
+    public int getThreadCount()
+    {
+        return( threadCount );
+    }
+
+    /**
+     *  Runs or queues the specified conversion.  When running on the
+     *  calling thread any errors are thrown from here.
+     */
+    public void submit( String name, Conversion conversion ) throws IOException
+    {
+        if( pool == null )
+            {
+            bytes += conversion.convert();
+            completed++;
+            return;
+            }
+
+        while( pending.size() >= maxPending )
+            printNext();
+        pending.add( new Pending( name, pool.submit( new ConversionRunner( conversion ) ) ) );
+    }
+
+    /**
+     *  Prints the specified message after the output of all conversions
+     *  submitted so far.
+     */
+    public void println( String message )
+    {
+        if( pool == null )
+            System.out.println( message );
+        else
+            pending.add( new Pending( message, null ) );
+    }
+
+    /**
+     *  Waits for all submitted conversions to finish and prints their
+     *  output.
+     */
+    public void drain() throws IOException
+    {
+        while( !pending.isEmpty() )
+            printNext();
+    }
+
+    /**
+     *  Drains the queue and shuts down its threads.  A summary is
+     *  printed if the queue was running conversions in parallel.
+     */
+    public void finish() throws IOException
+    {
+        if( pool == null )
+            return;
+
+        try
+            {
+            drain();
+            }
+        finally
+            {
+            pool.shutdownNow();
+            pool = null;
+            }
+        printSummary( System.out );
+    }
+
+    private void printNext() throws IOException
+    {
+        Pending p = (Pending)pending.removeFirst();
+        if( p.result == null )
+            {
+            System.out.println( p.name );
+            return;
+            }
+
+        Result r;
+        try
+            {
+            r = (Result)p.result.get();
+            }
+        catch( InterruptedException e )
+            {
+            throw new InterruptedIOException( "Interrupted waiting for:" + p.name );
+            }
+        catch( ExecutionException e )
+            {
+            // The runner catches everything it can report
+            Throwable cause = e.getCause();
+            if( cause instanceof Error )
+                throw (Error)cause;
+            throw new RuntimeException( "Error converting:" + p.name, cause );
+            }
+
+        System.out.write( r.output, 0, r.output.length );
+        System.out.flush();
+        if( r.error != null )
+            {
+            failures++;
+            System.out.println( "Failed:" + p.name + "  " + r.error );
+            }
+        else
+            {
+            completed++;
+            bytes += r.bytes;
+            }
+    }
+
+    public int getCompletedCount()
+    {
+        return( completed );
+    }
+
+    public int getFailureCount()
+    {
+        return( failures );
+    }
+
+    /**
+     *  Returns the number of bytes written by the completed conversions.
+     */
+    public long getByteCount()
+    {
+        return( bytes );
+    }
+
+    public void printSummary( PrintStream out )
+    {
+        long time = Math.max( 1, System.currentTimeMillis() - start );
+        double secs = (double)time / 1000.0;
+
+        out.println( "Converted " + completed + " files (" + failures + " failed) on "
+                     + threadCount + " threads." );
+        out.println( "Wrote " + bytes + " bytes in " + secs + " seconds: "
+                     + (long)(completed / secs) + " files/sec, "
+                     + (long)(bytes / secs / 1024) + " KB/sec." );
+    }
+
+    /**
+     *  A unit of work for the queue.
+     */
+    public interface Conversion
+    {
+        /**
+         *  Performs the conversion and returns the number of bytes written.
+         */
+        public long convert() throws IOException;
+    }
+
+    private static class Pending
+    {
+        String name;
+        Future result;
+
+        public Pending( String name, Future result )
+        {
+            this.name = name;
+            this.result = result;
+        }
+    }
+
+    private static class Result
+    {
+        byte[] output;
+        long bytes;
+        Throwable error;
+    }
+
+    private static class ConversionRunner implements Callable
+    {
+        private Conversion conversion;
+
+        public ConversionRunner( Conversion conversion )
+        {
+            this.conversion = conversion;
+        }
+
+        public Object call()
+        {
+            ByteArrayOutputStream buff = new ByteArrayOutputStream();
+            PrintStream log = new PrintStream( buff );
+            Result r = new Result();
+            currentLog.set( log );
+            try
+                {
+                r.bytes = conversion.convert();
+                }
+            catch( Exception e )
+                {
+                e.printStackTrace( log );
+                r.error = e;
+                }
+            finally
+                {
+                currentLog.set( null );
+                log.flush();
+                }
+            r.output = buff.toByteArray();
+            return( r );
+        }
+    }
+}
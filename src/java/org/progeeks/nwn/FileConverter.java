@@ -0,0 +1,364 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn;
+
+import java.io.*;
+
+import org.progeeks.nwn.io.erf.ErfArchive;
+import org.progeeks.nwn.resource.*;
+
+
+/**
+ *  Base class for the command line converters that turn a set of
+ *  files, and the entries of any module files among them, into
+ *  files in an output directory.  Conversions are run through a
+ *  ConversionQueue so they can be spread over several threads.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public abstract class FileConverter
+{
+    private File outDir;
+    private int threadCount = 1;
+    private ConversionQueue queue;
+
+    protected FileConverter()
+    {
+    }
+
+    protected FileConverter( File outDir )
+    {
+        this.outDir = outDir;
+    }
+
+    /**
+     *  Sets the directory that files are written to.  Conversions
+     *  that have already been queued still write to the directory
+     *  that was set when they were queued.
+     */
+    public void setOutputDirectory( File outDir )
+    {
+        this.outDir = outDir;
+    }
+
+    public File getOutputDirectory()
+    {
+        return( outDir );
+    }
+
+    /**
+     *  Sets the number of threads used to convert files.  With more
+     *  than one, processFile() queues the work and finish() must be
+     *  called to wait for it.
+     */
+    public void setThreadCount( int threadCount )
+    {
+        this.threadCount = Math.max( 1, threadCount );
+    }
+
+    public int getThreadCount()
+    {
+        return( threadCount );
+    }
+
+    protected ConversionQueue getQueue()
+    {
+        if( queue == null )
+            queue = new ConversionQueue( threadCount );
+        return( queue );
+    }
+
+    /**
+     *  Waits for any queued conversions to complete and returns the
+     *  number that failed.
+     */
+    public int finish() throws IOException
+    {
+        if( queue == null )
+            return( 0 );
+        queue.finish();
+        int failures = queue.getFailureCount();
+        queue = null;
+        return( failures );
+    }
+
+    /**
+     *  Applies the leading options in the specified command line
+     *  arguments and returns the index of the first argument that
+     *  isn't an option.  Unknown options are ignored.
+     */
+    public int parseOptions( String[] args )
+    {
+        int index;
+        for( index = 0; index < args.length; index++ )
+            {
+            if( !args[index].startsWith( "-" ) )
+                break;
+
+            int last = parseOption( args, index );
+            if( last >= 0 )
+                index = last;
+            }
+        return( index );
+    }
+
+    /**
+     *  Applies the option at the specified index and returns the index
+     *  of the last argument it used, or -1 if the option isn't known.
+     *  Subclasses add their own options by overriding this.
+     */
+    protected int parseOption( String[] args, int index )
+    {
+        if( "-threads".equals( args[index] ) && index + 1 < args.length )
+            {
+            setThreadCount( Integer.parseInt( args[index + 1] ) );
+            System.out.println( "Threads: " + getThreadCount() );
+            return( index + 1 );
+            }
+        return( -1 );
+    }
+
+    /**
+     *  Returns the file in the output directory that the specified
+     *  resource is written to.
+     */
+    public File getOutputFile( String name, int type )
+    {
+        return( getOutputFile( outDir, name, type ) );
+    }
+
+    /**
+     *  Returns the file in the specified directory that the specified
+     *  resource is written to.
+     */
+    protected File getOutputFile( File dir, String name, int type )
+    {
+        return( new File( dir, name ) );
+    }
+
+    /**
+     *  Returns true if files of the specified type are archives
+     *  whose entries should be converted individually.
+     */
+    protected boolean isArchive( int type )
+    {
+        return( false );
+    }
+
+    public void processFile( File f ) throws IOException
+    {
+        if( f.isDirectory() )
+            {
+            return; // for now
+            }
+
+        int type = ResourceUtils.getTypeForFileName( f.getName() );
+        if( isArchive( type ) )
+            {
+            processModFile( f );
+            return;
+            }
+
+        getQueue().submit( f.getName(), new FileConversion( f, type ) );
+    }
+
+    /**
+     *  Converts the specified file into the specified directory and
+     *  returns the number of bytes written.  By default this passes the
+     *  file's contents to writeFile().
+     */
+    protected long convertFile( File f, int type, File dir ) throws IOException
+    {
+        FileInputStream fIn = new FileInputStream( f );
+        BufferedInputStream bIn = new BufferedInputStream( fIn, 65536 );
+        try
+            {
+            return( writeFile( f.getName(), bIn, type, dir ) );
+            }
+        finally
+            {
+            bIn.close();
+            }
+    }
+
+    /**
+     *  Converts or copies the specified resource into the output
+     *  directory and returns the number of bytes written.
+     */
+    public long writeFile( String name, InputStream in, int type ) throws IOException
+    {
+        return( writeFile( name, in, type, outDir ) );
+    }
+
+    /**
+     *  Converts or copies the specified resource into the specified
+     *  directory and returns the number of bytes written.  By default
+     *  the resource is copied.
+     */
+    protected long writeFile( String name, InputStream in, int type, File dir ) throws IOException
+    {
+        return( saveStream( getOutputFile( dir, name, type ), in ) );
+    }
+
+    public long saveStream( File f, InputStream in ) throws IOException
+    {
+        ConversionQueue.getLog().println( "Writing:" + f.getName() );
+
+        FileOutputStream fOut = new FileOutputStream(f);
+        BufferedOutputStream out = new BufferedOutputStream( fOut, 65536 );
+        try
+            {
+            byte[] buff = new byte[65536];
+            int count = 0;
+            long total = 0;
+            while( (count = in.read(buff)) >= 0 )
+                {
+                out.write( buff, 0, count );
+                total += count;
+                }
+
+            return( total );
+            }
+        finally
+            {
+            out.close();
+            }
+    }
+
+    /**
+     *  Called before the entries of a module file are converted.
+     *  Does nothing by default.
+     */
+    protected void processArchiveInfo( ErfArchive archive ) throws IOException
+    {
+    }
+
+    public void processModFile( File f ) throws IOException
+    {
+        int count = 0;
+        long total = 0;
+
+        ConversionQueue q = getQueue();
+        q.println( "Extracting files from MOD file:" + f );
+        ErfArchive archive = new ErfArchive( f );
+        try
+            {
+            processArchiveInfo( archive );
+
+            for( int i = 0; i < archive.getEntryCount(); i++ )
+                {
+                String name = archive.getName( i );
+                if( name.length() == 0 )
+                    {
+                    q.println( "Skipping empty resource entry.                         " );
+                    continue;
+                    }
+                int type = archive.getResourceType( i );
+                name += "." + ResourceUtils.getExtensionForType(type).toLowerCase();
+
+                q.submit( name, new EntryConversion( archive, i, name, type ) );
+
+                total += archive.getSize( i );
+                count++;
+                }
+
+            // The archive has to stay open until its entries are done
+            q.drain();
+
+            q.println( "Extracted " + count + " resources for a total of " + total + " bytes read.     " );
+            }
+        finally
+            {
+            archive.close();
+            }
+    }
+
+    /**
+     *  Converts one file.  The output directory is captured when the
+     *  conversion is created since it can change before a queued
+     *  conversion runs.
+     */
+    protected class FileConversion implements ConversionQueue.Conversion
+    {
+        private File file;
+        private int type;
+        private File dir;
+
+        public FileConversion( File file, int type )
+        {
+            this.file = file;
+            this.type = type;
+            this.dir = outDir;
+        }
+
+        public long convert() throws IOException
+        {
+            return( convertFile( file, type, dir ) );
+        }
+    }
+
+    /**
+     *  Converts one entry of an open module file.
+     */
+    protected class EntryConversion implements ConversionQueue.Conversion
+    {
+        private ErfArchive archive;
+        private int entry;
+        private String name;
+        private int type;
+        private File dir;
+
+        public EntryConversion( ErfArchive archive, int entry, String name, int type )
+        {
+            this.archive = archive;
+            this.entry = entry;
+            this.name = name;
+            this.type = type;
+            this.dir = outDir;
+        }
+
+        public long convert() throws IOException
+        {
+            InputStream in = new BufferedInputStream( archive.open( entry ), 65536 );
+            try
+                {
+                return( writeFile( name, in, type, dir ) );
+                }
+            finally
+                {
+                in.close();
+                }
+        }
+    }
+}
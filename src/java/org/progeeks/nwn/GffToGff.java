@@ -45,20 +45,17 @@ import org.progeeks.nwn.resource.*;
  *  @version   $Revision$
  *  @author    Paul Speed
  */
-public class GffToGff
+public class GffToGff extends FileConverter
 {
-    private File outDir;
-    private byte[] transferBuff = new byte[65536];
     private boolean compressGff = false;
 
-    public GffToGff( File outDir )
+    public GffToGff()
     {
-        this.outDir = outDir;
     }
 
-    public File getOutputFile( String name, int type )
+    public GffToGff( File outDir )
     {
-        return( new File( outDir, name ) );
+        super( outDir );
     }
 
     public void setCompressGff( boolean flag )
@@ -66,71 +63,37 @@ public class GffToGff
         this.compressGff = flag;
     }
 
-    public void processFile( File f ) throws IOException
+    protected int parseOption( String[] args, int index )
     {
-        if( f.isDirectory() )
-            {
-            return; // for now
-            }
-
-        int type = ResourceUtils.getTypeForFileName( f.getName() );
-        if( type == ResourceTypes.TYPE_MOD )
-            {
-            processModFile( f );
-            return;
-            }
-
-        FileInputStream fIn = new FileInputStream( f );
-        BufferedInputStream bIn = new BufferedInputStream( fIn, 65536 );
-        try
+        if( "-compress".equals( args[index] ) )
             {
-            writeFile( f.getName(), bIn, type );
-            }
-        finally
-            {
-            bIn.close();
+            System.out.println( "Compression: on." );
+            setCompressGff( true );
+            return( index );
             }
+        return( super.parseOption( args, index ) );
     }
 
-    public long saveStream( File f, InputStream in ) throws IOException
+    protected boolean isArchive( int type )
     {
-        System.out.println( "Writing:" + f.getName() );
-
-        FileOutputStream fOut = new FileOutputStream(f);
-        BufferedOutputStream out = new BufferedOutputStream( fOut, 65536 );
-        try
-            {
-            int count = 0;
-            int total = 0;
-            while( (count = in.read(transferBuff)) >= 0 )
-                {
-                out.write( transferBuff, 0, count );
-                total += count;
-                }
-
-            return( total );
-            }
-        finally
-            {
-            out.close();
-            }
-
+        return( type == ResourceTypes.TYPE_MOD );
     }
 
-    public void writeFile( String name, InputStream in, int type ) throws IOException
+    /**
+     *  Converts or copies the specified resource and returns the number
+     *  of bytes written.
+     */
+    protected long writeFile( String name, InputStream in, int type, File dir ) throws IOException
     {
-        File f = getOutputFile( name, type );
         if( !ResourceUtils.isGffType( type ) )
-            {
-            saveStream( f, in );
-            return;
-            }
+            return( super.writeFile( name, in, type, dir ) );
 
-        System.out.println( "Reading:" + name );
+        File f = getOutputFile( dir, name, type );
+        ConversionQueue.getLog().println( "Reading:" + name );
 
         // Process the GFF file using the GffReader
         GffReader reader = new GffReader( in );
-        System.out.println( "Writing:" + f.getName() );
+        ConversionQueue.getLog().println( "Writing:" + f.getName() );
         FileOutputStream fOut = new FileOutputStream( f );
         BufferedOutputStream bOut = new BufferedOutputStream( fOut, 65536 );
         GffWriter out = new GffWriter( reader.getHeader().getType(),
@@ -146,57 +109,7 @@ public class GffToGff
             reader.close();
             out.close();
             }
-    }
-
-    public void processModFile( File f ) throws IOException
-    {
-        FileInputStream fIn = new FileInputStream( f );
-        BufferedInputStream in = new BufferedInputStream( fIn, 65536 );
-        int count = 0;
-        long total = 0;
-
-        System.out.println( "Extracting files from MOD file:" + f );
-        try
-            {
-            ModReader m = new ModReader( in );
-
-            ModReader.ResourceInputStream rIn = null;
-            while( (rIn = m.nextResource()) != null )
-                {
-                String name = rIn.getResourceName();
-                if( name.length() == 0 )
-                    {
-                    System.out.println( "Skipping empty resource entry.                         " );
-                    continue;
-                    }
-                int type = rIn.getResourceType();
-                name += "." + ResourceUtils.getExtensionForType(rIn.getResourceType()).toLowerCase();
-
-                //System.out.println( "-------Resource:" + name + "    size:" + rIn.getBytesLeft() );
-
-                try
-                    {
-                    writeFile( name, rIn, type );
-                    }
-                finally
-                    {
-                    rIn.close();
-                    }
-                //File f = new File( root, name );
-                //System.out.print( "Writing:" + f + "  size:" + rIn.getBytesLeft()
-                //                            + "                   \r" );
-                //int size = dumpStream( f, rIn );
-
-                //total += size;
-                count++;
-                }
-
-            System.out.println( "Extracted " + count + " resources for a total of " + total + " bytes read.     " );
-            }
-        finally
-            {
-            in.close();
-            }
+        return( f.length() );
     }
 
     public static void main( String[] args ) throws Exception
@@ -208,6 +121,7 @@ public class GffToGff
             System.out.println( "Options:" );
             System.out.println( "    -compress  Will conslidate redundant elements within the file to" );
             System.out.println( "               reduce the resulting file size." );
+            System.out.println( "    -threads N Converts files on N threads at once." );
             System.out.println();
             System.out.println( "Arguments:" );
             System.out.println( "    <destionation dir> is the output directory." );
@@ -223,31 +137,21 @@ public class GffToGff
 
         long start = System.currentTimeMillis();
 
-        boolean compress = false;
-        int index;
-        for( index = 0; index < args.length; index++ )
-            {
-            if( !args[index].startsWith( "-" ) )
-                break;
-
-            if( "-compress".equals( args[index] ) )
-                {
-                System.out.println( "Compression: on." );
-                compress = true;
-                }
-            }
-        File outDir = new File( args[index] );
-        GffToGff converter = new GffToGff( outDir );
-        converter.setCompressGff( compress );
+        GffToGff converter = new GffToGff();
+        int index = converter.parseOptions( args );
+        converter.setOutputDirectory( new File( args[index] ) );
 
-        for( int i = index; i < args.length; i++ )
+        for( int i = index + 1; i < args.length; i++ )
             {
             converter.processFile( new File( args[i] ) );
             }
+        int failures = converter.finish();
 
         long totalTime = System.currentTimeMillis() - start;
         double secs = (double)totalTime / 1000.0;
 
         System.out.println( "\nTotal time:" + secs + " seconds." );
+        if( failures > 0 )
+            System.exit( 1 );
     }
 }
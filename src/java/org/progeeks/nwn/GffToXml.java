@@ -34,6 +34,7 @@ package org.progeeks.nwn;
 
 import java.io.*;
 
+import org.progeeks.nwn.io.erf.ErfArchive;
 import org.progeeks.nwn.io.gff.*;
 import org.progeeks.nwn.io.xml.*;
 import org.progeeks.nwn.resource.*;
@@ -47,90 +48,46 @@ import org.progeeks.util.StringUtils;
  *  @version   $Revision$
  *  @author    Paul Speed
  */
-public class GffToXml
+public class GffToXml extends FileConverter
 {
-    private File outDir;
-    private byte[] transferBuff = new byte[65536];
+    public GffToXml()
+    {
+    }
 
     public GffToXml( File outDir )
     {
-        this.outDir = outDir;
+        super( outDir );
     }
 
-    public File getOutputFile( String name, int type )
+    protected File getOutputFile( File dir, String name, int type )
     {
         if( ResourceUtils.isGffType( type ) )
             name = name + ".xml";
 
-        return( new File( outDir, name ) );
-    }
-
-    public void processFile( File f ) throws IOException
-    {
-        if( f.isDirectory() )
-            {
-            return; // for now
-            }
-
-        int type = ResourceUtils.getTypeForFileName( f.getName() );
-        if( type == ResourceTypes.TYPE_MOD
-            || type == ResourceTypes.TYPE_ERF
-            || type == ResourceTypes.TYPE_HAK )
-            {
-            processModFile( f );
-            return;
-            }
-
-        FileInputStream fIn = new FileInputStream( f );
-        BufferedInputStream bIn = new BufferedInputStream( fIn, 65536 );
-        try
-            {
-            writeFile( f.getName(), bIn, type );
-            }
-        finally
-            {
-            bIn.close();
-            }
+        return( new File( dir, name ) );
     }
 
-    public long saveStream( File f, InputStream in ) throws IOException
+    protected boolean isArchive( int type )
     {
-        System.out.println( "Writing:" + f.getName() );
-
-        FileOutputStream fOut = new FileOutputStream(f);
-        BufferedOutputStream out = new BufferedOutputStream( fOut, 65536 );
-        try
-            {
-            int count = 0;
-            int total = 0;
-            while( (count = in.read(transferBuff)) >= 0 )
-                {
-                out.write( transferBuff, 0, count );
-                total += count;
-                }
-
-            return( total );
-            }
-        finally
-            {
-            out.close();
-            }
-
+        return( type == ResourceTypes.TYPE_MOD
+                || type == ResourceTypes.TYPE_ERF
+                || type == ResourceTypes.TYPE_HAK );
     }
 
-    public void writeFile( String name, InputStream in, int type ) throws IOException
+    /**
+     *  Converts or copies the specified resource and returns the number
+     *  of bytes written.
+     */
+    protected long writeFile( String name, InputStream in, int type, File dir ) throws IOException
     {
-        File f = getOutputFile( name, type );
         if( !ResourceUtils.isGffType( type ) )
-            {
-            saveStream( f, in );
-            return;
-            }
+            return( super.writeFile( name, in, type, dir ) );
 
-        System.out.println( "Writing:" + f.getName() );
+        File f = getOutputFile( dir, name, type );
+        ConversionQueue.getLog().println( "Writing:" + f.getName() );
 
-        // Process the GFF file using the GffReader
-        GffReader reader = new GffReader( in );
+        // Stream the GFF file straight to XML
+        GffBufferReader reader = new GffBufferReader( in );
         FileWriter fOut = new FileWriter( f );
         BufferedWriter bOut = new BufferedWriter( fOut, 65536 );
         GffXmlWriter out = new GffXmlWriter( name, reader.getHeader().getType(),
@@ -138,75 +95,28 @@ public class GffToXml
                                              bOut );
         try
             {
-            out.writeStruct( reader.readRootStruct() );
+            reader.parse( out );
             }
         finally
             {
             reader.close();
             out.close();
             }
+        return( f.length() );
     }
 
-    public void processModFile( File f ) throws IOException
+    protected void processArchiveInfo( ErfArchive archive ) throws IOException
     {
-        FileInputStream fIn = new FileInputStream( f );
-        BufferedInputStream in = new BufferedInputStream( fIn, 65536 );
-        int count = 0;
-        long total = 0;
-
-        System.out.println( "Extracting files from MOD file:" + f );
-        try
+        // If it has a description and is a HAK file then write the description
+        // to a special file since .haks don't normally have anything like that.
+        String fileType = archive.getType();
+        String description = archive.getDescription();
+        if( "HAK".equals(fileType) && description != null && description.length() > 0 )
             {
-            ModReader m = new ModReader( in );
-
-            // If it has a description and is a HAK file then write the description
-            // to a special file since .haks don't normally have anything like that.
-            String fileType = m.getType();
-            String description = m.getDescription();
-            if( "HAK".equals(fileType) && description != null && description.length() > 0 )
-                {
-                String name = fileType.toLowerCase() + ".description";
-                File descFile = getOutputFile( name, -1 );
-                System.out.println( "Including " + name + " file containing the description." );
-                StringUtils.writeFile( description, descFile );
-                }
-
-            ModReader.ResourceInputStream rIn = null;
-            while( (rIn = m.nextResource()) != null )
-                {
-                String name = rIn.getResourceName();
-                if( name.length() == 0 )
-                    {
-                    System.out.println( "Skipping empty resource entry.                         " );
-                    continue;
-                    }
-                int type = rIn.getResourceType();
-                name += "." + ResourceUtils.getExtensionForType(rIn.getResourceType()).toLowerCase();
-
-                //System.out.println( "-------Resource:" + name + "    size:" + rIn.getBytesLeft() );
-
-                try
-                    {
-                    writeFile( name, rIn, type );
-                    }
-                finally
-                    {
-                    rIn.close();
-                    }
-                //File f = new File( root, name );
-                //System.out.print( "Writing:" + f + "  size:" + rIn.getBytesLeft()
-                //                            + "                   \r" );
-                //int size = dumpStream( f, rIn );
-
-                //total += size;
-                count++;
-                }
-
-            System.out.println( "Extracted " + count + " resources for a total of " + total + " bytes read.     " );
-            }
-        finally
-            {
-            in.close();
+            String name = fileType.toLowerCase() + ".description";
+            File descFile = getOutputFile( name, -1 );
+            getQueue().println( "Including " + name + " file containing the description." );
+            StringUtils.writeFile( description, descFile );
             }
     }
 
@@ -214,14 +124,18 @@ public class GffToXml
     {
         if( args.length < 2 )
             {
-            System.out.println( "Usage: GffToXml <destionation dir> <files>" );
+            System.out.println( "Usage: GffToXml [options] <destionation dir> <files>" );
+            System.out.println();
+            System.out.println( "Options:" );
+            System.out.println( "    -threads N  Converts files on N threads at once." );
             System.out.println();
-            System.out.println( "Where: <destionation dir> is the output directory." );
-            System.out.println( "<files> is a collection of modules files that will be" );
-            System.out.println( "differently depending on their extension.  Any module files" );
-            System.out.println( "will be extracted into individual XML files as if they were " );
-            System.out.println( "passed on the command line.  GFF files will be converted to XML." );
-            System.out.println( "All other files will be copied." );
+            System.out.println( "Arguments:" );
+            System.out.println( "    <destionation dir> is the output directory." );
+            System.out.println( "    <files> is a collection of modules files that will be" );
+            System.out.println( "        differently depending on their extension.  Any module files" );
+            System.out.println( "        will be extracted into individual XML files as if they were " );
+            System.out.println( "        passed on the command line.  GFF files will be converted to XML." );
+            System.out.println( "        All other files will be copied." );
             return;
             }
 
@@ -229,17 +143,21 @@ public class GffToXml
 
         long start = System.currentTimeMillis();
 
-        File outDir = new File( args[0] );
-        GffToXml converter = new GffToXml( outDir );
+        GffToXml converter = new GffToXml();
+        int index = converter.parseOptions( args );
+        converter.setOutputDirectory( new File( args[index] ) );
 
-        for( int i = 1; i < args.length; i++ )
+        for( int i = index + 1; i < args.length; i++ )
             {
             converter.processFile( new File( args[i] ) );
             }
+        int failures = converter.finish();
 
         long totalTime = System.currentTimeMillis() - start;
         double secs = (double)totalTime / 1000.0;
 
         System.out.println( "\nTotal time:" + secs + " seconds." );
+        if( failures > 0 )
+            System.exit( 1 );
     }
 }
@@ -147,8 +147,10 @@ public class MiniMapExporter
 
     protected Struct readArea( InputStream in ) throws IOException
     {
-        GffReader reader = new GffReader( in );
-        return( reader.readRootStruct() );
+        // Only a handful of the area fields are used so there
+        // is no need to decode the rest.
+        GffBufferReader reader = new GffBufferReader( in );
+        return( reader.readLazyRootStruct() );
     }
 
     protected void exportMiniMap( File area, ResourceManager resMgr ) throws Exception
@@ -33,12 +33,16 @@
 package org.progeeks.nwn;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.progeeks.util.*;
 
 import org.progeeks.nwn.io.*;
 import org.progeeks.nwn.io.BinaryDataOutputStream;
+import org.progeeks.nwn.io.erf.ErfArchive;
 import org.progeeks.nwn.io.itp.*;
 import org.progeeks.nwn.itp.*;
 import org.progeeks.nwn.resource.*;
@@ -83,10 +87,23 @@ public class ModPacker
     private int    resourceIndexOffset;
     private int    positionStructureOffset;
 
-    private byte[] transferBuff = new byte[65536];
-
     private ProgressReporter reporter;
 
+    /**
+     *  The number of threads used to copy resource data into
+     *  the module file.
+     */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     *  The fraction of an updated module file that may be unused
+     *  space before updateModule() rewrites the whole file instead.
+     */
+    private double compactionThreshold = 0.25;
+
+    private static final String HASH_HEADER = "# Module resource hashes v";
+    private static final int HASH_VERSION = 1;
+
     public ModPacker( File module, String description )
     {
         this( module, description, null );
@@ -143,6 +160,40 @@ public class ModPacker
         return( resources.size() );
     }
 
+    /**
+     *  Sets the number of threads that will copy resource data into
+     *  the module file.  Every resource's position in the file is known
+     *  before any data is written so resources are copied directly into
+     *  their final locations in any order.  Defaults to the number
+     *  of available processors.  1 copies the resources in order
+     *  on the calling thread.
+     */
+    public void setThreadCount( int threadCount )
+    {
+        this.threadCount = Math.max( 1, threadCount );
+    }
+
+    public int getThreadCount()
+    {
+        return( threadCount );
+    }
+
+    /**
+     *  Sets the fraction of the module file that updateModule() will
+     *  allow to be wasted space from replaced or removed resources
+     *  before it compacts the file by rewriting it completely.
+     *  Defaults to 0.25.  A negative value disables compaction.
+     */
+    public void setCompactionThreshold( double threshold )
+    {
+        this.compactionThreshold = threshold;
+    }
+
+    public double getCompactionThreshold()
+    {
+        return( compactionThreshold );
+    }
+
     /**
      *  Writes the module and its resources to disk.
      */
@@ -154,25 +205,429 @@ public class ModPacker
             reporter.setProgress( 1 );
             }
 
-        BufferedOutputStream bOut = new BufferedOutputStream( new FileOutputStream(module), 65536 );
-        out = new BinaryDataOutputStream( bOut );
+        // Lay the resources out back to back after the tables.
+        int offset = 0;
+        for( Iterator i = resources.iterator(); i.hasNext(); )
+            {
+            ResourceIndex res = (ResourceIndex)i.next();
+            res.offset = offset;
+            offset += res.size;
+            }
+
+        byte[] tables = createTables();
+        int dataOffset = tables.length;
+        long totalSize = (long)dataOffset + resourceSize;
+
+        RandomAccessFile raf = new RandomAccessFile( module, "rw" );
         try
             {
-            writeHeader();
-            writeStrings();
-            writeResourceIndex();
-            writePositionTable();
-            writeResources();
+            raf.setLength( totalSize );
+            raf.write( tables );
+
+            writeResources( resources, raf.getChannel(), dataOffset );
 
-            long totalSize = out.getFilePosition();
             return( totalSize );
             }
         finally
             {
-            out.close();
+            raf.close();
+            }
+    }
+
+    /**
+     *  Updates the existing module file to contain the added resources,
+     *  only writing the data for resources that are new or have changed
+     *  since the module was last written.  A resource is considered
+     *  unchanged if the module already has an entry with the same name,
+     *  type, and size whose data has the same ContentHash as the
+     *  resource file.  The hashes are kept in the file returned by
+     *  getHashFile() so that only resource files whose size or time
+     *  stamp has changed are read again.  Without it, or if the module
+     *  was changed by something else, the entries are read and hashed
+     *  instead.  Changed resources are written over their old
+     *  data when they fit and appended to the end of the file otherwise.
+     *  The header and tables are always rewritten.  If the module does
+     *  not exist or can't be read, if any of its entries overlap or
+     *  share data, or if the unused space left in the file would
+     *  exceed the compaction threshold, then the whole module is
+     *  rewritten with writeModule().
+     *  Note: the module is modified in place so an interrupted update
+     *  can leave it corrupt.
+     */
+    public long updateModule() throws IOException
+    {
+        long size = update( readHashes() );
+        writeHashes();
+        return( size );
+    }
+
+    /**
+     *  Returns the file that holds the content hashes of the resources
+     *  in the module between updates.
+     */
+    public File getHashFile()
+    {
+        return( new File( module.getPath() + ".hashes" ) );
+    }
+
+    private long update( Map hashes ) throws IOException
+    {
+        if( !module.exists() )
+            return( rewriteModule() );
+
+        long moduleSize = module.length();
+
+        ErfArchive old;
+        try
+            {
+            old = new ErfArchive( module );
+            }
+        catch( IOException e )
+            {
+            System.out.println( "Unable to update:" + module + "  " + e.getMessage() + "  Rewriting it." );
+            return( rewriteModule() );
+            }
+
+        int tablesSize = getTablesSize();
+        long[] slots = new long[resources.size()];
+        boolean[] rewrite = new boolean[resources.size()];
+        long end = tablesSize;
+        // Writing over one entry would corrupt any other entry
+        // sharing its data so only simple layouts are updated.
+        if( hasOverlappingEntries( old ) )
+            {
+            old.close();
+            System.out.println( "Entries overlap in:" + module + "  Rewriting it." );
+            return( rewriteModule() );
+            }
+
+        try
+            {
+            // Find the resources that can stay where they are or be
+            // written over their old data.  Old data that overlaps the
+            // new tables must be moved.
+            boolean[] claimed = new boolean[old.getEntryCount()];
+            for( int i = 0; i < slots.length; i++ )
+                {
+                ResourceIndex res = (ResourceIndex)resources.get(i);
+                slots[i] = -1;
+                rewrite[i] = true;
+
+                int entry = old.indexOf( new ResourceKey( res.name, res.type ) );
+                if( entry < 0 || claimed[entry] )
+                    continue;
+
+                long oldOffset = old.getOffset( entry );
+                int oldSize = old.getSize( entry );
+                if( oldOffset < tablesSize || oldOffset + oldSize > moduleSize )
+                    continue;
+
+                boolean unchanged = oldSize == res.size && hasSameContent( old, entry, res, hashes );
+                if( !unchanged && res.size > oldSize )
+                    continue;
+
+                claimed[entry] = true;
+                slots[i] = oldOffset;
+                rewrite[i] = !unchanged;
+                end = Math.max( end, oldOffset + res.size );
+                }
+            }
+        finally
+            {
+            old.close();
+            }
+
+        // Everything else goes on the end
+        List changed = new ArrayList();
+        for( int i = 0; i < slots.length; i++ )
+            {
+            ResourceIndex res = (ResourceIndex)resources.get(i);
+            if( slots[i] < 0 )
+                {
+                slots[i] = end;
+                end += res.size;
+                }
+            if( rewrite[i] )
+                changed.add( res );
+            }
+
+        long wasted = end - tablesSize - resourceSize;
+        if( compactionThreshold >= 0 && wasted > compactionThreshold * end )
+            {
+            System.out.println( "Compacting:" + module + "  " + wasted + " of " + end + " bytes unused." );
+            return( rewriteModule() );
+            }
+
+        if( end > Integer.MAX_VALUE )
+            {
+            System.out.println( "Updated module would be too large, rewriting:" + module );
+            return( rewriteModule() );
+            }
+
+        if( reporter != null )
+            {
+            reporter.setMaximum( changed.size() + 1 );
+            reporter.setProgress( 1 );
+            }
+
+        for( int i = 0; i < slots.length; i++ )
+            {
+            ResourceIndex res = (ResourceIndex)resources.get(i);
+            res.offset = (int)(slots[i] - tablesSize);
+            }
+
+        byte[] tables = createTables();
+        if( tables.length != tablesSize )
+            {
+            throw new IOException( "Error: table size not as expected.  " + tables.length
+                                   + " instead of " + tablesSize );
+            }
+
+        hashResources( changed );
+
+        RandomAccessFile raf = new RandomAccessFile( module, "rw" );
+        try
+            {
+            raf.setLength( end );
+
+            // Write the data first so that the tables only point to
+            // it once it is there.
+            writeResources( changed, raf.getChannel(), tablesSize );
+            raf.seek( 0 );
+            raf.write( tables );
+
+            return( end );
+            }
+        finally
+            {
+            raf.close();
+            }
+    }
+
+    /**
+     *  Returns true if any two non-empty entries in the archive
+     *  overlap, including entries that point at the same data.
+     */
+    private static boolean hasOverlappingEntries( ErfArchive archive )
+    {
+        final int[] offsets = new int[archive.getEntryCount()];
+        final int[] sizes = new int[offsets.length];
+        List entries = new ArrayList( offsets.length );
+        for( int i = 0; i < offsets.length; i++ )
+            {
+            offsets[i] = archive.getOffset( i );
+            sizes[i] = archive.getSize( i );
+            if( sizes[i] > 0 )
+                entries.add( new Integer(i) );
+            }
+
+        Collections.sort( entries, new Comparator()
+            {
+                public int compare( Object o1, Object o2 )
+                {
+                    long l1 = offsets[((Integer)o1).intValue()] & 0xffffffffL;
+                    long l2 = offsets[((Integer)o2).intValue()] & 0xffffffffL;
+                    return( l1 < l2 ? -1 : (l1 == l2 ? 0 : 1) );
+                }
+            } );
+
+        long end = 0;
+        for( Iterator i = entries.iterator(); i.hasNext(); )
+            {
+            int entry = ((Integer)i.next()).intValue();
+            long offset = offsets[entry] & 0xffffffffL;
+            if( offset < end )
+                return( true );
+            end = offset + sizes[entry];
+            }
+        return( false );
+    }
+
+    /**
+     *  Hashes all of the resources and then writes the whole module.
+     */
+    private long rewriteModule() throws IOException
+    {
+        hashResources( resources );
+        return( writeModule() );
+    }
+
+    /**
+     *  Returns true if the resource file has the same contents as the
+     *  specified archive entry.  The entry's hash comes from the saved
+     *  hashes if there is one for it and the resource file is only read
+     *  if it has changed since it was last hashed.
+     */
+    private static boolean hasSameContent( ErfArchive archive, int entry, ResourceIndex res,
+                                           Map hashes ) throws IOException
+    {
+        long oldHash;
+        long[] known = (long[])hashes.get( res.file.getName() );
+        if( known != null )
+            {
+            oldHash = known[2];
+            if( res.size == known[0] && res.lastModified == known[1] )
+                res.hash = oldHash;
+            }
+        else
+            {
+            ByteBuffer data = archive.read( entry );
+            oldHash = ContentHash.hash( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+            }
+
+        if( res.hash == 0 )
+            res.hash = ContentHash.hashFile( res.file );
+        return( oldHash == res.hash );
+    }
+
+    /**
+     *  Hashes the resources that haven't been hashed yet.  This is done
+     *  before their data is written so that a file that changes during
+     *  the build ends up with a hash that doesn't match the new time
+     *  stamp and is hashed again next time.
+     */
+    private static void hashResources( List list ) throws IOException
+    {
+        for( Iterator i = list.iterator(); i.hasNext(); )
+            {
+            ResourceIndex res = (ResourceIndex)i.next();
+            if( res.hash == 0 )
+                res.hash = ContentHash.hashFile( res.file );
             }
     }
 
+    /**
+     *  Reads the saved resource hashes as a map of file names to
+     *  size, time stamp, and hash.  The map is empty if there are no
+     *  saved hashes or if the module has changed since they were saved.
+     */
+    private Map readHashes()
+    {
+        Map hashes = new HashMap();
+        File f = getHashFile();
+        if( !f.exists() || !module.exists() )
+            return( hashes );
+
+        try
+            {
+            BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( f ), "UTF-8" ) );
+            try
+                {
+                String line = in.readLine();
+                if( !(HASH_HEADER + HASH_VERSION).equals( line ) )
+                    return( hashes );
+
+                line = in.readLine();
+                if( !(module.length() + " " + module.lastModified()).equals( line ) )
+                    return( hashes );
+
+                while( (line = in.readLine()) != null )
+                    {
+                    // size time hash name, with the name last since
+                    // it could have spaces
+                    StringTokenizer st = new StringTokenizer( line, " " );
+                    long size = Long.parseLong( st.nextToken() );
+                    long time = Long.parseLong( st.nextToken() );
+                    long hash = Long.parseLong( st.nextToken() );
+                    String name = st.nextToken( "" ).substring( 1 );
+                    hashes.put( name, new long[] { size, time, hash } );
+                    }
+                }
+            finally
+                {
+                in.close();
+                }
+            }
+        catch( IOException e )
+            {
+            System.out.println( "Unable to read:" + f + "  " + e.getMessage() );
+            hashes.clear();
+            }
+        catch( RuntimeException e )
+            {
+            System.out.println( "Corrupt resource hashes:" + f );
+            hashes.clear();
+            }
+        return( hashes );
+    }
+
+    /**
+     *  Saves the resource hashes along with the module's current
+     *  size and time stamp.  A failure is reported but not thrown since
+     *  the module itself is fine and the next update just reads it.
+     */
+    private void writeHashes()
+    {
+        File f = getHashFile();
+        try
+            {
+            File temp = TempFileUtils.createTempFile( f );
+            try
+                {
+                PrintWriter out = new PrintWriter( new BufferedWriter( new OutputStreamWriter(
+                                                        new FileOutputStream( temp ), "UTF-8" ) ) );
+                try
+                    {
+                    out.println( HASH_HEADER + HASH_VERSION );
+                    out.println( module.length() + " " + module.lastModified() );
+                    for( Iterator i = resources.iterator(); i.hasNext(); )
+                        {
+                        ResourceIndex res = (ResourceIndex)i.next();
+                        if( res.hash == 0 )
+                            continue;
+                        out.println( res.size + " " + res.lastModified + " "
+                                     + res.hash + " " + res.file.getName() );
+                        }
+                    }
+                finally
+                    {
+                    out.close();
+                    }
+                if( out.checkError() )
+                    throw new IOException( "Error writing:" + temp );
+
+                TempFileUtils.replaceFile( temp, f );
+                }
+            finally
+                {
+                if( temp.exists() )
+                    temp.delete();
+                }
+            }
+        catch( IOException e )
+            {
+            System.out.println( "Unable to save resource hashes:" + f + "  " + e.getMessage() );
+            f.delete();
+            }
+    }
+
+    /**
+     *  Returns the size of the header, string, resource index, and position
+     *  table blocks that precede the resource data.
+     */
+    private int getTablesSize()
+    {
+        int stringSize = description == null ? 0 : 0x8 + description.length();
+        return( 160 + stringSize + resources.size() * (32 + 8) );
+    }
+
+    /**
+     *  Creates the header and tables in memory.  They are small so
+     *  they can be written in one shot.
+     */
+    private byte[] createTables() throws IOException
+    {
+        ByteArrayOutputStream tables = new ByteArrayOutputStream( getTablesSize() );
+        out = new BinaryDataOutputStream( tables );
+        writeHeader();
+        writeStrings();
+        writeResourceIndex();
+        writePositionTable();
+        out.close();
+
+        return( tables.toByteArray() );
+    }
+
     private void writeHeader() throws IOException
     {
         byte[] temp = type.getBytes();
@@ -316,47 +771,127 @@ public class ModPacker
             }
     }
 
-    private void writeResources() throws IOException
+    private void writeResources( List resources, FileChannel channel, int dataOffset ) throws IOException
     {
-        int index = 1;
-        for( Iterator i = resources.iterator(); i.hasNext(); index++ )
+        if( resources.isEmpty() )
+            return;
+
+        if( threadCount <= 1 || resources.size() <= 1 )
             {
-            ResourceIndex res = (ResourceIndex)i.next();
-            if( reporter != null )
+            int index = 1;
+            for( Iterator i = resources.iterator(); i.hasNext(); index++ )
                 {
-                if( reporter.isCanceled() )
+                ResourceIndex res = (ResourceIndex)i.next();
+                if( reporter != null )
                     {
-                    throw new InterruptedIOException( "Aborted by user." );
+                    if( reporter.isCanceled() )
+                        {
+                        throw new InterruptedIOException( "Aborted by user." );
+                        }
+                    reporter.setProgress( index );
+                    reporter.setMessage( "Storing:" + res.file.getName() );
                     }
-                reporter.setProgress( index );
-                reporter.setMessage( "Storing:" + res.file.getName() );
-                }
 
-            FileInputStream fIn = new FileInputStream( res.file );
-            BufferedInputStream in = new BufferedInputStream( fIn, 65536 );
-            try
-                {
-                int bytes = writeResourceData( in );
+                int bytes = writeResourceData( res, channel, dataOffset );
                 if( reporter == null )
                     System.out.print( "Packed resource file:" + res.file + "   " + bytes + " bytes written.        \r" );
                 }
-            finally
+            return;
+            }
+
+        ExecutorService pool = Executors.newFixedThreadPool( Math.min( threadCount, resources.size() ) );
+        try
+            {
+            List results = new ArrayList( resources.size() );
+            for( Iterator i = resources.iterator(); i.hasNext(); )
+                results.add( pool.submit( new ResourceWriter( (ResourceIndex)i.next(), channel, dataOffset ) ) );
+
+            // Progress is reported from this thread in resource order.
+            int index = 1;
+            for( Iterator i = results.iterator(); i.hasNext(); index++ )
                 {
-                in.close();
+                Future f = (Future)i.next();
+                int bytes = waitForResource( f );
+
+                ResourceIndex res = (ResourceIndex)resources.get( index - 1 );
+                if( reporter != null )
+                    {
+                    if( reporter.isCanceled() )
+                        {
+                        throw new InterruptedIOException( "Aborted by user." );
+                        }
+                    reporter.setProgress( index );
+                    reporter.setMessage( "Storing:" + res.file.getName() );
+                    }
+                else
+                    {
+                    System.out.print( "Packed resource file:" + res.file + "   " + bytes + " bytes written.        \r" );
+                    }
                 }
             }
+        finally
+            {
+            pool.shutdownNow();
+            }
+    }
+
+    private int waitForResource( Future f ) throws IOException
+    {
+        try
+            {
+            return( ((Integer)f.get()).intValue() );
+            }
+        catch( InterruptedException e )
+            {
+            throw new InterruptedIOException( "Interrupted while writing resources." );
+            }
+        catch( ExecutionException e )
+            {
+            Throwable cause = e.getCause();
+            if( cause instanceof IOException )
+                throw (IOException)cause;
+            if( cause instanceof RuntimeException )
+                throw (RuntimeException)cause;
+            if( cause instanceof Error )
+                throw (Error)cause;
+            IOException ioe = new IOException( "Error writing resources." );
+            ioe.initCause( cause );
+            throw ioe;
+            }
     }
 
-    private int writeResourceData( InputStream in ) throws IOException
+    /**
+     *  Copies the resource's file into its slot in the module.  This
+     *  only uses positional transfers on the module channel so it is
+     *  safe to call from several threads at once.
+     */
+    private int writeResourceData( ResourceIndex res, FileChannel channel, int dataOffset ) throws IOException
     {
-        int len = 0;
-        int total = 0;
-        while( (len = in.read( transferBuff )) >= 0 )
+        FileInputStream fIn = new FileInputStream( res.file );
+        try
+            {
+            FileChannel in = fIn.getChannel();
+            long position = (long)dataOffset + res.offset;
+            long total = 0;
+            while( total < res.size )
+                {
+                long count = channel.transferFrom( in, position + total, res.size - total );
+                if( count <= 0 )
+                    break;
+                total += count;
+                }
+
+            if( total != res.size || in.size() != res.size )
+                {
+                throw new IOException( "Resource file changed size while packing:" + res.file
+                                       + " expected:" + res.size + " bytes, found:" + in.size() );
+                }
+            return( (int)total );
+            }
+        finally
             {
-            out.write( transferBuff, 0, len );
-            total += len;
+            fIn.close();
             }
-        return( total );
     }
 
     public static String getModuleDescription( File ifo ) throws IOException
@@ -430,6 +965,25 @@ public class ModPacker
         System.out.println( "\nTotal time:" + secs + " seconds." );
     }
 
+    private class ResourceWriter implements Callable
+    {
+        private ResourceIndex res;
+        private FileChannel channel;
+        private int dataOffset;
+
+        public ResourceWriter( ResourceIndex res, FileChannel channel, int dataOffset )
+        {
+            this.res = res;
+            this.channel = channel;
+            this.dataOffset = dataOffset;
+        }
+
+        public Object call() throws IOException
+        {
+            return( new Integer( writeResourceData( res, channel, dataOffset ) ) );
+        }
+    }
+
     private class ResourceIndex
     {
         File   file;
@@ -438,10 +992,17 @@ public class ModPacker
         int    type;
         int    offset;
         int    size;
+        long   lastModified;
+
+        /**
+         *  The ContentHash of the file or 0 if it hasn't been hashed.
+         */
+        long   hash;
 
         public ResourceIndex( File f, int index, int offset )
         {
             this.file = f;
+            this.lastModified = f.lastModified();
             this.name = f.getName();
             String ext = "";
             int split = name.lastIndexOf( '.' );
@@ -34,8 +34,10 @@ package org.progeeks.nwn;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.progeeks.nwn.io.*;
+import org.progeeks.nwn.io.erf.ErfArchive;
 import org.progeeks.nwn.resource.*;
 import org.progeeks.util.ProgressReporter;
 import org.progeeks.util.StringUtils;
@@ -65,8 +67,6 @@ public class ModReader
     private List   resources = new ArrayList();
     private int    currentResource = 0;
 
-    private static byte[] transferBuff = new byte[65536];
-
     public ModReader( InputStream in ) throws IOException
     {
         this.in = new BinaryDataInputStream( in );
@@ -217,11 +217,12 @@ public class ModReader
         BufferedOutputStream out = new BufferedOutputStream( fOut, 65536 );
         try
             {
+            byte[] buff = new byte[65536];
             int count = 0;
             int total = 0;
-            while( (count = in.read(transferBuff)) >= 0 )
+            while( (count = in.read(buff)) >= 0 )
                 {
-                out.write( transferBuff, 0, count );
+                out.write( buff, 0, count );
                 total += count;
                 }
 
@@ -234,73 +235,55 @@ public class ModReader
     }
 
     /**
-     *  Need to combine the various extractModule() methods. -FIXME
+     *  Returns the number of threads that extractModule() uses by
+     *  default, one per processor.
      */
+    public static int getDefaultThreadCount()
+    {
+        return( Runtime.getRuntime().availableProcessors() );
+    }
+
     public static void extractModule( File module, File destination, ProgressReporter pr ) throws IOException
     {
-        FileInputStream fIn = new FileInputStream( module );
-        BufferedInputStream in = new BufferedInputStream( fIn, 65536 );
-        int count = 0;
-        long total = 0;
+        extractModule( module, destination, pr, getDefaultThreadCount() );
+    }
 
+    /**
+     *  Extracts the module's resources into the destination directory
+     *  using the specified number of threads.  Progress is reported
+     *  and cancellation is checked on the calling thread.
+     */
+    public static void extractModule( File module, File destination, ProgressReporter pr,
+                                      int threadCount ) throws IOException
+    {
+        ErfArchive archive = new ErfArchive( module );
         try
             {
-            File root = destination;
-
-            ModReader m = new ModReader( in );
-            pr.setMaximum( m.getResourceCount() );
-
-            ResourceInputStream rIn = null;
-            while( (rIn = m.nextResource()) != null )
-                {
-                String name = rIn.getResourceName();
-                pr.setMessage( "Extracting: " + name );
-                pr.setProgress( count );
-                if( pr.isCanceled() )
-                    {
-                    System.out.println( "User aborted." );
-                    return;
-                    }
-
-                if( name.length() == 0 )
-                    {
-                    pr.setMessage( "Skipping empty resource entry." );
-                    continue;
-                    }
-                name += "." + ResourceUtils.getExtensionForType(rIn.getResourceType()).toLowerCase();
-
-                File f = new File( root, name );
-                pr.setMessage( "Writing:" + f.getName() + " size:" + rIn.getBytesLeft() );
-
-                int size = dumpStream( f, rIn );
-
-                total += size;
-                count++;
-                }
+            extractEntries( archive, destination, pr, false, threadCount );
             }
         finally
             {
-            in.close();
+            archive.close();
             }
     }
 
     public static void extractModule( File module, File destination, boolean verbose ) throws IOException
     {
-        FileInputStream fIn = new FileInputStream( module );
-        BufferedInputStream in = new BufferedInputStream( fIn, 65536 );
-        int count = 0;
-        long total = 0;
+        extractModule( module, destination, verbose, getDefaultThreadCount() );
+    }
 
+    public static void extractModule( File module, File destination, boolean verbose,
+                                      int threadCount ) throws IOException
+    {
+        ErfArchive archive = new ErfArchive( module );
         try
             {
             File root = destination;
 
-            ModReader m = new ModReader( in );
-
             // If it has a description and is a HAK file then write the description
             // to a special file since .haks don't normally have anything like that.
-            String type = m.getType();
-            String description = m.getDescription();
+            String type = archive.getType();
+            String description = archive.getDescription();
             if( "HAK".equals(type) && description != null && description.length() > 0 )
                 {
                 String name = type.toLowerCase() + ".description";
@@ -308,36 +291,146 @@ public class ModReader
                 StringUtils.writeFile( description, new File( root, name ) );
                 }
 
-            ResourceInputStream rIn = null;
-            while( (rIn = m.nextResource()) != null )
+            extractEntries( archive, root, null, verbose, threadCount );
+            }
+        finally
+            {
+            archive.close();
+            }
+    }
+
+    /**
+     *  Writes the archive's entries to files in the root directory.
+     *  Entries are extracted in the order of their data in the archive
+     *  so that the archive is read front to back even when several
+     *  threads are copying entries at once.
+     */
+    private static void extractEntries( ErfArchive archive, File root, ProgressReporter pr,
+                                        boolean verbose, int threadCount ) throws IOException
+    {
+        // Later entries with the same name overwrite earlier ones
+        // so only the last one needs to be written.
+        Map files = new LinkedHashMap();
+        int skipped = 0;
+        for( int i = 0; i < archive.getEntryCount(); i++ )
+            {
+            String name = archive.getName( i );
+            if( name.length() == 0 )
                 {
-                String name = rIn.getResourceName();
-                if( name.length() == 0 )
+                skipped++;
+                continue;
+                }
+            name += "." + ResourceUtils.getExtensionForType(archive.getResourceType( i )).toLowerCase();
+
+            File f = new File( root, name );
+            files.remove( f );
+            files.put( f, new Integer(i) );
+            }
+
+        if( verbose && skipped > 0 )
+            System.out.println( "Skipped " + skipped + " empty resource entries." );
+
+        List entries = new ArrayList( files.entrySet() );
+        Collections.sort( entries, new OffsetComparator( archive ) );
+
+        if( pr != null )
+            pr.setMaximum( entries.size() );
+
+        ExecutorService pool = null;
+        List results = null;
+        if( threadCount > 1 && entries.size() > 1 )
+            {
+            pool = Executors.newFixedThreadPool( Math.min( threadCount, entries.size() ) );
+            results = new ArrayList( entries.size() );
+            for( Iterator i = entries.iterator(); i.hasNext(); )
+                {
+                Map.Entry e = (Map.Entry)i.next();
+                results.add( pool.submit( new EntryWriter( archive, ((Integer)e.getValue()).intValue(),
+                                                           (File)e.getKey() ) ) );
+                }
+            }
+
+        int count = 0;
+        long total = 0;
+        try
+            {
+            for( Iterator i = entries.iterator(); i.hasNext(); count++ )
+                {
+                Map.Entry e = (Map.Entry)i.next();
+                File f = (File)e.getKey();
+                int entry = ((Integer)e.getValue()).intValue();
+
+                if( pr != null )
                     {
-                    if( verbose )
-                        System.out.println( "Skipping empty resource entry.                         " );
-                    continue;
+                    pr.setMessage( "Writing:" + f.getName() + " size:" + archive.getSize( entry ) );
+                    pr.setProgress( count );
+                    if( pr.isCanceled() )
+                        {
+                        System.out.println( "User aborted." );
+                        return;
+                        }
                     }
-                name += "." + ResourceUtils.getExtensionForType(rIn.getResourceType()).toLowerCase();
-
-                File f = new File( root, name );
-                if( verbose )
+                else if( verbose )
                     {
-                    System.out.print( "Writing:" + f + "  size:" + rIn.getBytesLeft()
+                    System.out.print( "Writing:" + f + "  size:" + archive.getSize( entry )
                                                 + "                   \r" );
                     }
-                int size = dumpStream( f, rIn );
 
-                total += size;
-                count++;
+                if( results == null )
+                    total += writeEntry( archive, entry, f );
+                else
+                    total += waitForEntry( (Future)results.get( count ) );
                 }
+            }
+        finally
+            {
+            if( pool != null )
+                pool.shutdownNow();
+            }
+
+        if( verbose )
+            System.out.println( "Extracted " + count + " resources for a total of " + total + " bytes.     " );
+    }
 
-            if( verbose )
-                System.out.println( "Extracted " + count + " resources for a total of " + total + " bytes.     " );
+    /**
+     *  Copies the specified archive entry to a file.  This is safe
+     *  to call from several threads at once.
+     */
+    private static long writeEntry( ErfArchive archive, int entry, File f ) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( f );
+        try
+            {
+            return( archive.transferTo( entry, out.getChannel() ) );
             }
         finally
             {
-            in.close();
+            out.close();
+            }
+    }
+
+    private static long waitForEntry( Future f ) throws IOException
+    {
+        try
+            {
+            return( ((Long)f.get()).longValue() );
+            }
+        catch( InterruptedException e )
+            {
+            throw new InterruptedIOException( "Interrupted while extracting resources." );
+            }
+        catch( ExecutionException e )
+            {
+            Throwable cause = e.getCause();
+            if( cause instanceof IOException )
+                throw (IOException)cause;
+            if( cause instanceof RuntimeException )
+                throw (RuntimeException)cause;
+            if( cause instanceof Error )
+                throw (Error)cause;
+            IOException ioe = new IOException( "Error extracting resources." );
+            ioe.initCause( cause );
+            throw ioe;
             }
     }
 
@@ -365,6 +458,49 @@ public class ModReader
         System.out.println( "\nTotal time:" + secs + " seconds." );
     }
 
+    /**
+     *  Orders file to entry mappings by the position of the
+     *  entry's data in the archive.
+     */
+    private static class OffsetComparator implements Comparator
+    {
+        private ErfArchive archive;
+
+        public OffsetComparator( ErfArchive archive )
+        {
+            this.archive = archive;
+        }
+
+        public int compare( Object o1, Object o2 )
+        {
+            int e1 = ((Integer)((Map.Entry)o1).getValue()).intValue();
+            int e2 = ((Integer)((Map.Entry)o2).getValue()).intValue();
+            long diff = (long)archive.getOffset( e1 ) - archive.getOffset( e2 );
+            if( diff == 0 )
+                return( e1 - e2 );
+            return( diff < 0 ? -1 : 1 );
+        }
+    }
+
+    private static class EntryWriter implements Callable
+    {
+        private ErfArchive archive;
+        private int entry;
+        private File file;
+
+        public EntryWriter( ErfArchive archive, int entry, File file )
+        {
+            this.archive = archive;
+            this.entry = entry;
+            this.file = file;
+        }
+
+        public Object call() throws IOException
+        {
+            return( new Long( writeEntry( archive, entry, file ) ) );
+        }
+    }
+
     private class ResourceIndex implements Comparable
     {
         String name;
@@ -47,11 +47,8 @@ import org.progeeks.nwn.resource.*;
  *  @version   $Revision$
  *  @author    Paul Speed
  */
-public class XmlToGff
+public class XmlToGff extends FileConverter
 {
-    private File outDir;
-    private byte[] transferBuff = new byte[65536];
-    private GffXmlReader xmlReader = new GffXmlReader();
     private boolean compressGff = false;
     private boolean verbose = true;
 
@@ -61,7 +58,7 @@ public class XmlToGff
 
     public XmlToGff( File outDir )
     {
-        this.outDir = outDir;
+        super( outDir );
     }
 
     public void setVerbose( boolean flag )
@@ -74,42 +71,38 @@ public class XmlToGff
         this.compressGff = flag;
     }
 
-    public void setOutputDirectory( File outDir )
+    protected int parseOption( String[] args, int index )
     {
-        this.outDir = outDir;
-    }
-
-    public File getOutputFile( String name, int type )
-    {
-        return( new File( outDir, name ) );
-    }
-
-    public void processFile( File f ) throws IOException
-    {
-        if( f.isDirectory() )
+        if( "-compress".equals( args[index] ) )
             {
-            return; // for now
+            System.out.println( "Compression: on." );
+            setCompressGff( true );
+            return( index );
             }
+        return( super.parseOption( args, index ) );
+    }
 
-        int type = ResourceUtils.getTypeForFileName( f.getName() );
-        //System.out.println( "type:" + type );
-        //if( type == ResourceTypes.TYPE_MOD )
-        //    {
-        //    processModFile( f );
-        //    return;
-        //    }
+    /**
+     *  Converts an XML file to GFF or copies any other file into
+     *  the specified directory and returns the number of bytes
+     *  written.
+     */
+    protected long convertFile( File f, int type, File dir ) throws IOException
+    {
+        PrintStream log = ConversionQueue.getLog();
 
         // Is it an XML file
         if( type == -1 && f.getName().toLowerCase().endsWith( ".xml" ) )
             {
             if( verbose )
-                System.out.println( "Reading:" + f.getName() );
+                log.println( "Reading:" + f.getName() );
             FileReader fIn = new FileReader( f );
             BufferedReader bIn = new BufferedReader( fIn, 65536 );
 
             try
                 {
                 // Read the XML file
+                GffXmlStreamReader xmlReader = new GffXmlStreamReader();
                 Object obj = xmlReader.readObject( bIn );
                 if( !(obj instanceof Struct) )
                     throw new RuntimeException( "Invalid XML GFF file:" + f );
@@ -118,15 +111,16 @@ public class XmlToGff
                 String name = xmlReader.getName();
 
                 if( verbose )
-                    System.out.println( "Writing:" + name );
+                    log.println( "Writing:" + name );
 
-                File outFile = new File( outDir, name );
+                File outFile = getOutputFile( dir, name, ResourceUtils.getTypeForFileName( name ) );
 
                 FileOutputStream fOut = new FileOutputStream( outFile );
                 BufferedOutputStream bOut = new BufferedOutputStream( fOut, 65536 );
                 GffWriter out = new GffWriter( xmlReader.getType(), xmlReader.getVersion(), bOut );
                 out.setShouldCompress( compressGff );
                 out.writeStruct( root );
+                return( outFile.length() );
                 }
             finally
                 {
@@ -135,45 +129,10 @@ public class XmlToGff
             }
         else
             {
-            File outFile = getOutputFile( f.getName(), type );
-
-            FileInputStream fIn = new FileInputStream( f );
-            BufferedInputStream bIn = new BufferedInputStream( fIn, 65536 );
-            try
-                {
-                saveStream( outFile, bIn );
-                }
-            finally
-                {
-                bIn.close();
-                }
+            return( super.convertFile( f, type, dir ) );
             }
     }
 
-    public long saveStream( File f, InputStream in ) throws IOException
-    {
-        System.out.println( "Copying:" + f.getName() );
-
-        FileOutputStream fOut = new FileOutputStream(f);
-        BufferedOutputStream out = new BufferedOutputStream( fOut, 65536 );
-        try
-            {
-            int count = 0;
-            int total = 0;
-            while( (count = in.read(transferBuff)) >= 0 )
-                {
-                out.write( transferBuff, 0, count );
-                total += count;
-                }
-
-            return( total );
-            }
-        finally
-            {
-            out.close();
-            }
-
-    }
 /*
     public void writeFile( String name, InputStream in, int type ) throws IOException
     {
@@ -258,6 +217,7 @@ public class XmlToGff
             System.out.println( "Options:" );
             System.out.println( "    -compress  Will conslidate redundant elements within the file to" );
             System.out.println( "               reduce the resulting file size." );
+            System.out.println( "    -threads N Converts files on N threads at once." );
             System.out.println();
             System.out.println( "Arguments:" );
             System.out.println( "    <destionation dir> is the output directory." );
@@ -274,31 +234,21 @@ public class XmlToGff
 
         long start = System.currentTimeMillis();
 
-        boolean compress = false;
-        int index;
-        for( index = 0; index < args.length; index++ )
-            {
-            if( !args[index].startsWith( "-" ) )
-                break;
-
-            if( "-compress".equals( args[index] ) )
-                {
-                System.out.println( "Compression: on." );
-                compress = true;
-                }
-            }
-        File outDir = new File( args[index] );
-        XmlToGff converter = new XmlToGff( outDir );
-        converter.setCompressGff( compress );
+        XmlToGff converter = new XmlToGff();
+        int index = converter.parseOptions( args );
+        converter.setOutputDirectory( new File( args[index] ) );
 
-        for( int i = index; i < args.length; i++ )
+        for( int i = index + 1; i < args.length; i++ )
             {
             converter.processFile( new File( args[i] ) );
             }
+        int failures = converter.finish();
 
         long totalTime = System.currentTimeMillis() - start;
         double secs = (double)totalTime / 1000.0;
 
         System.out.println( "\nTotal time:" + secs + " seconds." );
+        if( failures > 0 )
+            System.exit( 1 );
     }
 }
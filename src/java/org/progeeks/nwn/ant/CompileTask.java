@@ -42,6 +42,7 @@ import org.apache.tools.ant.util.*;
 import org.progeeks.util.ErrorInfo;
 import org.progeeks.util.ErrorListener;
 
+import org.progeeks.nwn.model.CompileCache;
 import org.progeeks.nwn.model.ScriptCompiler;
 
 /**
@@ -57,9 +58,11 @@ import org.progeeks.nwn.model.ScriptCompiler;
  */
 public class CompileTask extends MatchingTask
 {
-    private int threadCount = 10;
+    private int threadCount = ScriptCompiler.getDefaultCompilerCount();
     private File srcdir;
     private File destdir;
+    private File cachedir;
+    private int batchsize = -1;
     private File nwncompiler = new File( "/NeverwinterNights/NWN/tools/nwnnsscomp.exe" );
 
     private ScriptCompiler scriptCompiler = new ScriptCompiler();
@@ -75,6 +78,36 @@ public class CompileTask extends MatchingTask
         this.destdir = destdir;
     }
 
+    /**
+     *  Sets the maximum number of compilers that will run at once.
+     *  Defaults to the number of available processors.
+     */
+    public void setThreadcount( int threadCount )
+    {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     *  Sets the directory used to cache compile results.  Scripts
+     *  that, along with everything they include, are unchanged since
+     *  an earlier compile are copied from the cache instead of being
+     *  compiled again.
+     */
+    public void setCachedir( File cachedir )
+    {
+        this.cachedir = cachedir;
+    }
+
+    /**
+     *  Sets the most scripts that will be passed to one run of the
+     *  compiler.  This only works with compilers that accept several
+     *  scripts at once.  Zero or one runs the compiler once per script.
+     */
+    public void setBatchsize( int batchsize )
+    {
+        this.batchsize = batchsize;
+    }
+
     public void setCompiler( File compiler )
     {
         if( !scriptCompiler.hasCompiler( compiler ) )
@@ -99,6 +132,10 @@ public class CompileTask extends MatchingTask
             }
 
         scriptCompiler.setMaxCompilerCount( threadCount );
+        if( cachedir != null )
+            scriptCompiler.setCompileCache( new CompileCache( cachedir ) );
+        if( batchsize >= 0 )
+            scriptCompiler.setMaxBatchSize( batchsize );
 
         log( "Using compiler:" + scriptCompiler.getCompilerPath(), Project.MSG_VERBOSE );
         log( "Executing commandline compilter", Project.MSG_VERBOSE );
@@ -142,6 +179,10 @@ public class CompileTask extends MatchingTask
             count = scriptCompiler.getCompiledCount();
             if( count > 0 )
                 log( count + " scripts compiled successfully." );
+
+            CompileCache cache = scriptCompiler.getCompileCache();
+            if( cache != null && cache.getHitCount() > 0 )
+                log( cache.getHitCount() + " scripts restored from:" + cachedir );
             }
         catch( InterruptedException e )
             {
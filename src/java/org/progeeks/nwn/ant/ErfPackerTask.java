@@ -58,6 +58,7 @@ public class ErfPackerTask extends MatchingTask
     private List lines = new ArrayList();
     private String minGameVersion = "1.64";
     private int expansionPacks = 3;
+    private int threads = 0;
 
     public void setBasedir( File base )
     {
@@ -90,6 +91,15 @@ public class ErfPackerTask extends MatchingTask
         expansionPacks = flags;
     }
 
+    /**
+     *  Sets the number of threads used to copy resource data into
+     *  the target file.  Defaults to the number of available processors.
+     */
+    public void setThreads( int threads )
+    {
+        this.threads = threads;
+    }
+
     /**
      *  Creates a nested description element that can be used for
      *  multi-line descriptions.
@@ -276,6 +286,8 @@ public class ErfPackerTask extends MatchingTask
             }
 
         ModPacker packer = new ModPacker( target, desc, new NullMonitor() );
+        if( threads > 0 )
+            packer.setThreadCount( threads );
 
         if( baseDir != null )
             {
@@ -83,6 +83,15 @@ public class Struct
         return( new ArrayList( elements.values() ) );
     }
 
+    /**
+     *  Returns the number of elements in this struct without
+     *  copying them like getValues() does.
+     */
+    public int getValueCount()
+    {
+        return( elements.size() );
+    }
+
     public void addValue( Element element )
     {
         setValue( element.getName(), element );
@@ -124,17 +133,31 @@ public class Struct
         return( null );
     }
 
+    /**
+     *  Returns the name to element map backing this struct.  Subclasses
+     *  that fill in their values on demand override this to make sure
+     *  the map is complete before it is compared or hashed.
+     */
+    protected Map getElementMap()
+    {
+        return( elements );
+    }
+
     public int hashCode()
     {
-        return( id + elements.hashCode() );
+        return( id + getElementMap().hashCode() );
     }
 
+    /**
+     *  Returns true if the specified object is a Struct, of any
+     *  kind, with the same id and elements.
+     */
     public boolean equals( Object obj )
     {
-        if( obj == null )
-            return( false );
+        if( obj == this )
+            return( true );
 
-        if( !getClass().equals( obj.getClass() ) )
+        if( !(obj instanceof Struct) )
             return( false );
 
         Struct s = (Struct)obj;
@@ -142,7 +165,7 @@ public class Struct
         if( id != s.id )
             return( false );
 
-        return( elements == s.elements || (elements != null && elements.equals( s.elements )) );
+        return( getElementMap().equals( s.getElementMap() ) );
     }
 
     public String toString()
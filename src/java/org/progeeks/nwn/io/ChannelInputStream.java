@@ -0,0 +1,167 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ *  InputStream over a section of a FileChannel that only uses
+ *  positional reads.  It does not disturb, and is not disturbed by,
+ *  any other stream or thread reading the same channel.  Closing the
+ *  stream does not close the channel.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class ChannelInputStream extends InputStream
+{
+    private FileChannel channel;
+    private long position;
+    private long end;
+    private ByteBuffer buffer;
+
+    /**
+     *  Creates a stream that will read size bytes from the channel
+     *  starting at the specified offset.
+     */
+    public ChannelInputStream( FileChannel channel, long offset, long size )
+    {
+        this.channel = channel;
+        this.position = offset;
+        this.end = offset + size;
+
+        // Small single byte reads are common so we keep a small
+        // buffer of our own.  Large reads bypass it.
+        buffer = ByteBuffer.allocate( (int)Math.max( 1, Math.min( size, 8192 ) ) );
+        buffer.flip();
+    }
+
+    /**
+     *  Fills the remaining space in the buffer from the specified
+     *  channel position.  Subclasses can override this to supply
+     *  the channel some other way.
+     */
+    protected void readFully( ByteBuffer buff, long pos ) throws IOException
+    {
+        readFully( channel, buff, pos );
+    }
+
+    /**
+     *  Fills the remaining space in the buffer from the specified channel
+     *  position, throwing an EOFException if the channel ends first.
+     */
+    public static void readFully( FileChannel channel, ByteBuffer buff, long pos ) throws IOException
+    {
+        while( buff.hasRemaining() )
+            {
+            int count = channel.read( buff, pos );
+            if( count < 0 )
+                throw new EOFException( "Unexpected end of file at:" + pos );
+            pos += count;
+            }
+    }
+
+    private boolean fill() throws IOException
+    {
+        buffer.clear();
+        int len = (int)Math.min( buffer.capacity(), end - position );
+        if( len <= 0 )
+            {
+            buffer.flip();
+            return( false );
+            }
+        buffer.limit( len );
+        readFully( buffer, position );
+        position += len;
+        buffer.flip();
+        return( true );
+    }
+
+    public int read() throws IOException
+    {
+        if( !buffer.hasRemaining() && !fill() )
+            return( -1 );
+        return( buffer.get() & 0xff );
+    }
+
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        if( len == 0 )
+            return( 0 );
+
+        int count = Math.min( len, buffer.remaining() );
+        buffer.get( b, off, count );
+        off += count;
+        len -= count;
+
+        if( len == 0 )
+            return( count );
+
+        int left = (int)Math.min( len, end - position );
+        if( left <= 0 )
+            return( count == 0 ? -1 : count );
+
+        if( left >= buffer.capacity() )
+            {
+            readFully( ByteBuffer.wrap( b, off, left ), position );
+            position += left;
+            return( count + left );
+            }
+
+        fill();
+        int more = Math.min( left, buffer.remaining() );
+        buffer.get( b, off, more );
+        return( count + more );
+    }
+
+    public long skip( long n ) throws IOException
+    {
+        if( n <= 0 )
+            return( 0 );
+
+        long count = Math.min( n, buffer.remaining() );
+        buffer.position( buffer.position() + (int)count );
+        n -= count;
+
+        long more = Math.min( n, end - position );
+        position += more;
+        return( count + more );
+    }
+
+    public int available()
+    {
+        return( (int)Math.min( Integer.MAX_VALUE, buffer.remaining() + end - position ) );
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ *  Fast non-cryptographic 64 bit hash of file contents, used to tell
+ *  whether a file has really changed when only its time stamp says
+ *  so.  The mixing is the 64 bit MurmurHash3 finalizer applied to
+ *  eight bytes at a time which is plenty for change detection but
+ *  not for anything where collisions could be forced.  A hash of
+ *  zero is never returned so that zero can mean "unknown".
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class ContentHash
+{
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final long SEED = 0x9e3779b97f4a7c15L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     *  Returns the hash of the specified bytes.
+     */
+    public static long hash( byte[] data, int offset, int length )
+    {
+        ByteBuffer buff = ByteBuffer.wrap( data, offset, length );
+        buff.order( ByteOrder.LITTLE_ENDIAN );
+        long h = SEED;
+        while( buff.remaining() >= 8 )
+            h = mix( h, buff.getLong() );
+        return( finish( h, buff, length ) );
+    }
+
+    /**
+     *  Returns the hash of the specified file's contents.
+     */
+    public static long hashFile( File f ) throws IOException
+    {
+        FileInputStream in = new FileInputStream( f );
+        try
+            {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buff = ByteBuffer.allocate( BUFFER_SIZE );
+            buff.order( ByteOrder.LITTLE_ENDIAN );
+
+            long h = SEED;
+            long length = 0;
+            int read;
+            while( (read = channel.read( buff )) != -1 )
+                {
+                length += read;
+                if( buff.hasRemaining() )
+                    continue;
+
+                // The buffer size is a multiple of eight so only the
+                // last block can have bytes left over.
+                buff.flip();
+                while( buff.remaining() >= 8 )
+                    h = mix( h, buff.getLong() );
+                buff.clear();
+                }
+
+            buff.flip();
+            while( buff.remaining() >= 8 )
+                h = mix( h, buff.getLong() );
+            return( finish( h, buff, length ) );
+            }
+        finally
+            {
+            in.close();
+            }
+    }
+
+    private static long mix( long h, long k )
+    {
+        k *= C1;
+        k = (k << 31) | (k >>> 33);
+        k *= C2;
+        h ^= k;
+        h = (h << 27) | (h >>> 37);
+        return( h * 5 + 0x52dce729 );
+    }
+
+    private static long finish( long h, ByteBuffer tail, long length )
+    {
+        long k = 0;
+        for( int shift = 0; tail.hasRemaining(); shift += 8 )
+            k |= (tail.get() & 0xffL) << shift;
+        h = mix( h, k ) ^ length;
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        if( h == 0 )
+            h = 1;
+        return( h );
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.security.*;
+
+import org.progeeks.nwn.io.xml.GffXmlWriter;
+import org.progeeks.nwn.resource.*;
+
+/**
+ *  Content-addressed store of converted resource files.  Each entry
+ *  is named by a hash of the resource key, the direction of the
+ *  conversion, and the bytes that were converted so an unchanged
+ *  source can be copied from the cache instead of being converted
+ *  again, no matter how many times it has changed and changed back.
+ *  Entries are written to a temporary file and renamed into place so
+ *  several builds can share one cache directory.  The whole directory
+ *  can be deleted at any time.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class ConversionCache
+{
+    /**
+     *  Bump this when the converters change their output so that
+     *  old entries are no longer used.
+     */
+    public static final int VERSION = 1;
+
+    public static final String XML_TO_GFF = "xml2gff";
+
+    /**
+     *  The GFF to XML conversion is named by the XML writer in use so
+     *  that entries written by one are never served while the other
+     *  is in use.
+     */
+    public static final String GFF_TO_XML = GffXmlWriter.isFastPathDefault() ? "gff2xml-fast" : "gff2xml";
+
+
+    private File root;
+    private int hits;
+    private int misses;
+
+    public ConversionCache( File root )
+    {
+        this.root = root;
+    }
+
+    public File getRoot()
+    {
+        return( root );
+    }
+
+    /**
+     *  Returns the hash that identifies the specified conversion of
+     *  the specified data.
+     */
+    public String getHash( String conversion, ResourceKey key, byte[] data )
+    {
+        MessageDigest digest = DigestUtils.createSha1();
+
+        String header = VERSION + ":" + conversion + ":" + key.getName() + ":" + key.getType() + ":";
+        try
+            {
+            digest.update( header.getBytes( "UTF-8" ) );
+            }
+        catch( UnsupportedEncodingException e )
+            {
+            throw new RuntimeException( "UTF-8 not supported.", e );
+            }
+        digest.update( data );
+
+        return( DigestUtils.toHex( digest.digest() ) );
+    }
+
+    private File getFile( String hash )
+    {
+        // Split the entries over sub-directories to keep
+        // directory sizes reasonable.
+        return( new File( new File( root, hash.substring( 0, 2 ) ), hash ) );
+    }
+
+    /**
+     *  Returns true if the cache has an entry for the specified hash.
+     */
+    public boolean contains( String hash )
+    {
+        return( getFile( hash ).exists() );
+    }
+
+    /**
+     *  Copies the entry for the specified hash to the destination
+     *  file and returns true, or returns false if there is no entry.
+     */
+    public boolean copyTo( String hash, File destination ) throws IOException
+    {
+        File f = getFile( hash );
+        if( !f.exists() )
+            {
+            misses++;
+            return( false );
+            }
+
+        try
+            {
+            copyFile( f, destination );
+            }
+        catch( FileNotFoundException e )
+            {
+            // Removed out from under us
+            misses++;
+            return( false );
+            }
+        hits++;
+        return( true );
+    }
+
+    /**
+     *  Stores a copy of the specified file as the entry for
+     *  the specified hash.
+     */
+    public void store( String hash, File source ) throws IOException
+    {
+        File f = getFile( hash );
+        if( f.exists() )
+            return;
+
+        File dir = f.getParentFile();
+        if( !dir.exists() && !dir.mkdirs() && !dir.exists() )
+            throw new IOException( "Error creating cache directory:" + dir );
+
+        File temp = File.createTempFile( hash, ".tmp", dir );
+        try
+            {
+            copyFile( source, temp );
+            if( !temp.renameTo( f ) && !f.exists() )
+                throw new IOException( "Error renaming:" + temp + " to:" + f );
+            }
+        finally
+            {
+            if( temp.exists() )
+                temp.delete();
+            }
+    }
+
+    public int getHitCount()
+    {
+        return( hits );
+    }
+
+    public int getMissCount()
+    {
+        return( misses );
+    }
+
+    /**
+     *  Reads the specified file fully.
+     */
+    public static byte[] readFile( File f ) throws IOException
+    {
+        FileInputStream in = new FileInputStream( f );
+        try
+            {
+            return( readStream( in, (int)f.length() ) );
+            }
+        finally
+            {
+            in.close();
+            }
+    }
+
+    /**
+     *  Reads the rest of the specified stream.  The size is just a hint.
+     */
+    public static byte[] readStream( InputStream in, int size ) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( Math.max( size, 1024 ) );
+        byte[] buff = new byte[8192];
+        int count;
+        while( (count = in.read( buff )) >= 0 )
+            out.write( buff, 0, count );
+        return( out.toByteArray() );
+    }
+
+    private static void copyFile( File source, File destination ) throws IOException
+    {
+        FileInputStream in = new FileInputStream( source );
+        try
+            {
+            FileOutputStream out = new FileOutputStream( destination );
+            try
+                {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                long pos = 0;
+                while( pos < size )
+                    {
+                    long count = channel.transferTo( pos, size - pos, out.getChannel() );
+                    if( count <= 0 )
+                        throw new EOFException( "File changed while copying:" + source );
+                    pos += count;
+                    }
+                }
+            finally
+                {
+                out.close();
+                }
+            }
+        finally
+            {
+            in.close();
+            }
+    }
+
+    public String toString()
+    {
+        return( "ConversionCache[" + root + ", hits:" + hits + ", misses:" + misses + "]" );
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io;
+
+import java.security.*;
+
+/**
+ *  Methods for the SHA-1 digests that the caches use as keys.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class DigestUtils
+{
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     *  Returns a new SHA-1 MessageDigest.
+     */
+    public static MessageDigest createSha1()
+    {
+        try
+            {
+            return( MessageDigest.getInstance( "SHA-1" ) );
+            }
+        catch( NoSuchAlgorithmException e )
+            {
+            throw new RuntimeException( "SHA-1 not supported.", e );
+            }
+    }
+
+    /**
+     *  Returns the specified bytes as a lower case hex string.
+     */
+    public static String toHex( byte[] bytes )
+    {
+        char[] chars = new char[bytes.length * 2];
+        for( int i = 0; i < bytes.length; i++ )
+            {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+            }
+        return( new String( chars ) );
+    }
+}
@@ -51,7 +51,7 @@ public class GffUtils
     public static Struct readGffXml( Reader in ) throws IOException
     {
         // We recreate every time to be thread-safe.
-        GffXmlReader xmlReader = new GffXmlReader();
+        GffXmlStreamReader xmlReader = new GffXmlStreamReader();
 
         // Read the XML file
         Object obj = xmlReader.readObject( in );
@@ -93,14 +93,110 @@ public class GffUtils
 
     public static void writeGffXml( ResourceKey key, Struct struct, File f ) throws IOException
     {
-        FileWriter fOut = new FileWriter( f );
-        BufferedWriter bOut = new BufferedWriter( fOut, 65536 );
-        writeGffXml( key, struct, bOut );
+        File temp = TempFileUtils.createTempFile( f );
+        try
+            {
+            Writer out = new BufferedWriter( new FileWriter( temp ), 65536 );
+            writeGffXml( key, struct, out );
+            TempFileUtils.replaceFile( temp, f );
+            }
+        finally
+            {
+            if( temp.exists() )
+                temp.delete();
+            }
+    }
+
+    /**
+     *  Converts the GFF data in the specified stream directly to
+     *  XML without building the Struct tree in between.  Both the
+     *  stream and the writer are closed when this returns, even if
+     *  the GFF data can't be read.
+     */
+    public static void writeGffXml( ResourceKey key, InputStream in, Writer out ) throws IOException
+    {
+        GffBufferReader reader = null;
+        try
+            {
+            reader = new GffBufferReader( in );
+            }
+        finally
+            {
+            in.close();
+            if( reader == null )
+                out.close();
+            }
+
+        GffXmlWriter writer = null;
+        try
+            {
+            String type = key.getTypeString() + " ";
+            String version = GffWriter.GFF_VERSION;
+
+            writer = new GffXmlWriter( key.getName(), type, version, out );
+            reader.parse( writer );
+            }
+        finally
+            {
+            if( writer != null )
+                writer.close();
+            else
+                out.close();
+            reader.close();
+            }
+    }
+
+    /**
+     *  Converts the GFF data in the specified stream to an XML file.
+     *  The XML is written to a temporary file that only replaces the
+     *  destination once the whole GFF has been converted so a bad GFF
+     *  leaves any existing file alone.
+     */
+    public static void writeGffXml( ResourceKey key, InputStream in, File f ) throws IOException
+    {
+        File temp = null;
+        Writer out;
+        try
+            {
+            temp = TempFileUtils.createTempFile( f );
+            out = new BufferedWriter( new FileWriter( temp ), 65536 );
+            }
+        catch( IOException e )
+            {
+            if( temp != null )
+                temp.delete();
+            in.close();
+            throw e;
+            }
+
+        try
+            {
+            writeGffXml( key, in, out );
+            TempFileUtils.replaceFile( temp, f );
+            }
+        finally
+            {
+            if( temp.exists() )
+                temp.delete();
+            }
     }
 
     public static Struct readGff( InputStream in ) throws IOException
     {
-        GffReader reader = new GffReader( in );
+        try
+            {
+            GffBufferReader reader = new GffBufferReader( in );
+            return( reader.readRootStruct() );
+            }
+        finally
+            {
+            in.close();
+            }
+    }
+
+    public static Struct readGff( File f ) throws IOException
+    {
+        GffBufferReader reader = new GffBufferReader( f );
         try
             {
             return( reader.readRootStruct() );
@@ -116,22 +212,24 @@ public class GffUtils
         String type = key.getTypeString() + " ";
         type = type.substring( 0, 4 );
 
-        GffWriter gff = new GffWriter( type, out );
-        gff.writeStruct( struct );
-    }
-
-    public static void writeGff( ResourceKey key, Struct struct, File f ) throws IOException
-    {
-        FileOutputStream fOut = new FileOutputStream( f );
-        BufferedOutputStream bOut = new BufferedOutputStream( fOut, 65536 );
+        GffBufferWriter gff = new GffBufferWriter( type );
         try
             {
-            writeGff( key, struct, bOut );
+            gff.writeStruct( struct, out );
             }
         finally
             {
-            bOut.close();
+            out.close();
             }
     }
 
+    public static void writeGff( ResourceKey key, Struct struct, File f ) throws IOException
+    {
+        String type = key.getTypeString() + " ";
+        type = type.substring( 0, 4 );
+
+        GffBufferWriter gff = new GffBufferWriter( type );
+        gff.writeStruct( struct, f );
+    }
+
 }
@@ -0,0 +1,78 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io;
+
+import java.io.*;
+
+/**
+ *  Support for replacing a file by writing a temporary file next to
+ *  it and renaming it into place so that a failed write never leaves
+ *  a partial file behind.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class TempFileUtils
+{
+    /**
+     *  Creates a temporary file in the same directory as the specified
+     *  file so that it can be renamed over it.  The directory is
+     *  created if it doesn't exist.
+     */
+    public static File createTempFile( File f ) throws IOException
+    {
+        File dir = f.getAbsoluteFile().getParentFile();
+        if( !dir.exists() && !dir.mkdirs() && !dir.exists() )
+            throw new IOException( "Error creating directory:" + dir );
+        return( File.createTempFile( f.getName(), ".tmp", dir ) );
+    }
+
+    /**
+     *  Replaces the specified file with the temporary file.  Some
+     *  platforms won't rename over an existing file so the old file
+     *  is deleted and the rename tried again if the first one fails.
+     *  The temporary file is deleted if it can't be renamed.
+     */
+    public static void replaceFile( File temp, File f ) throws IOException
+    {
+        if( temp.renameTo( f ) )
+            return;
+
+        f.delete();
+        if( !temp.renameTo( f ) )
+            {
+            temp.delete();
+            throw new IOException( "Unable to rename:" + temp + " to:" + f );
+            }
+    }
+}
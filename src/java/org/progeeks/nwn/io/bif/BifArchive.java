@@ -0,0 +1,273 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.bif;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.progeeks.nwn.io.*;
+
+/**
+ *  Random-access view of a BIF file.  The variable resource table
+ *  is read once into primitive arrays and resources are then read
+ *  directly from their offsets with positional reads on a channel
+ *  supplied by the owning BifCache.  Archives may be shared
+ *  by multiple threads.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class BifArchive
+{
+    private static final int HEADER_SIZE = 20;
+    private static final int ENTRY_SIZE = 16;
+
+    /**
+     *  Number of times a read is retried when its channel was closed
+     *  out from under it by the cache.
+     */
+    private static final int MAX_RETRIES = 3;
+
+    private BifCache cache;
+    private File file;
+    private long fileSize;
+    private long lastModified;
+
+    /**
+     *  Set by the cache when it replaces this archive with a newer
+     *  one for the same file.
+     */
+    private boolean replaced;
+
+    private String type;
+    private String version;
+
+    // The variable resource table parsed into primitive arrays
+    private int[] ids;
+    private int[] offsets;
+    private int[] sizes;
+    private int[] types;
+
+    protected BifArchive( BifCache cache, File file ) throws IOException
+    {
+        this.cache = cache;
+        this.file = file;
+        this.fileSize = file.length();
+        this.lastModified = file.lastModified();
+
+        ByteBuffer header = readBlock( 0, HEADER_SIZE );
+        byte[] buff = new byte[4];
+        header.get( buff );
+        type = new String(buff);
+        header.get( buff );
+        version = new String(buff);
+
+        int count = header.getInt();
+        header.getInt(); // fixed resource count, never used
+        int offset = header.getInt();
+
+        if( count < 0 || offset < 0 || (long)offset + (long)count * ENTRY_SIZE > fileSize )
+            throw new IOException( "Corrupt BIF header in:" + file );
+
+        ids = new int[count];
+        offsets = new int[count];
+        sizes = new int[count];
+        types = new int[count];
+
+        ByteBuffer table = readBlock( offset, count * ENTRY_SIZE );
+        for( int i = 0; i < count; i++ )
+            {
+            ids[i] = table.getInt();
+            offsets[i] = table.getInt();
+            sizes[i] = table.getInt();
+            types[i] = table.getInt();
+            }
+    }
+
+    private ByteBuffer readBlock( long position, int size ) throws IOException
+    {
+        ByteBuffer buff = ByteBuffer.allocate( size );
+        buff.order( ByteOrder.LITTLE_ENDIAN );
+        readFully( buff, position );
+        buff.flip();
+        return( buff );
+    }
+
+    /**
+     *  Reads from the cache's channel for this file, reopening the
+     *  channel and trying again if the cache closed it while we
+     *  were using it.  The cache refuses to reopen the channel of
+     *  an archive it has replaced so retries stop there.
+     */
+    protected void readFully( ByteBuffer buff, long position ) throws IOException
+    {
+        int start = buff.position();
+        for( int retry = 0; ; retry++ )
+            {
+            try
+                {
+                ChannelInputStream.readFully( cache.getChannel( this ), buff, position + buff.position() - start );
+                return;
+                }
+            catch( ClosedByInterruptException e )
+                {
+                throw e;
+                }
+            catch( ClosedChannelException e )
+                {
+                if( retry >= MAX_RETRIES )
+                    throw e;
+                }
+            }
+    }
+
+    public File getFile()
+    {
+        return( file );
+    }
+
+    /**
+     *  Returns true if the file has changed size or modification time
+     *  since its tables were read.
+     */
+    public boolean isStale()
+    {
+        return( file.length() != fileSize || file.lastModified() != lastModified );
+    }
+
+    /**
+     *  Marks this archive as replaced.  Only called by the cache
+     *  while it holds its own lock.
+     */
+    void setReplaced()
+    {
+        replaced = true;
+    }
+
+    /**
+     *  Returns true if the cache has replaced this archive because
+     *  its file changed.  Replaced archives can no longer be read.
+     */
+    boolean isReplaced()
+    {
+        return( replaced );
+    }
+
+    public String getType()
+    {
+        return( type );
+    }
+
+    public String getVersion()
+    {
+        return( version );
+    }
+
+    public int getResourceCount()
+    {
+        return( ids.length );
+    }
+
+    /**
+     *  Returns the variable table index for the specified key file
+     *  resource ID or -1 if this BIF doesn't have that index.
+     */
+    public int indexOf( int id )
+    {
+        int index = id & 0x3fff;
+        if( index >= ids.length )
+            return( -1 );
+        return( index );
+    }
+
+    public int getResourceId( int index )
+    {
+        return( ids[index] );
+    }
+
+    public int getOffset( int index )
+    {
+        return( offsets[index] );
+    }
+
+    public int getSize( int index )
+    {
+        return( sizes[index] );
+    }
+
+    public int getResourceType( int index )
+    {
+        return( types[index] );
+    }
+
+    /**
+     *  Returns an input stream for the specified key file resource ID.
+     *  Resources can be accessed in any order.
+     */
+    public InputStream getResource( int id ) throws IOException
+    {
+        int index = indexOf( id );
+        if( index < 0 )
+            throw new IOException( "Resource index:" + (id & 0x3fff) + " not found in:" + file );
+
+        return( new ChannelInputStream( null, offsets[index], sizes[index] )
+                    {
+                        protected void readFully( ByteBuffer buff, long pos ) throws IOException
+                        {
+                            BifArchive.this.readFully( buff, pos );
+                        }
+                    } );
+    }
+
+    /**
+     *  Reads the resource with the specified key file resource ID
+     *  fully into a new buffer.
+     */
+    public ByteBuffer readResource( int id ) throws IOException
+    {
+        int index = indexOf( id );
+        if( index < 0 )
+            throw new IOException( "Resource index:" + (id & 0x3fff) + " not found in:" + file );
+
+        ByteBuffer buff = ByteBuffer.allocate( sizes[index] );
+        readFully( buff, offsets[index] );
+        buff.flip();
+        return( buff );
+    }
+
+    public String toString()
+    {
+        return( "BifArchive[" + file + ", resources:" + ids.length + "]" );
+    }
+}
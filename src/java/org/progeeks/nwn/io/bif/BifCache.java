@@ -0,0 +1,155 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.bif;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ *  Keeps the parsed tables of every BIF file that has been read
+ *  along with a bounded, least-recently-used pool of open channels
+ *  to those files.  All methods are thread safe.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class BifCache
+{
+    private static BifCache sharedCache;
+
+    private int maxOpenFiles;
+
+    /**
+     *  Maps absolute files to their parsed archives.
+     */
+    private Map archives = new HashMap();
+
+    /**
+     *  Open files in least-recently-used order.
+     */
+    private LinkedHashMap openFiles = new LinkedHashMap( 16, 0.75f, true );
+
+    public BifCache( int maxOpenFiles )
+    {
+        this.maxOpenFiles = Math.max( 1, maxOpenFiles );
+    }
+
+    /**
+     *  Returns the cache shared by all ResourceStreamers.  The number
+     *  of open files it keeps is set with the nwn.bif.maxOpenFiles
+     *  system property and defaults to 16.
+     */
+    public static synchronized BifCache getSharedCache()
+    {
+        if( sharedCache == null )
+            sharedCache = new BifCache( Integer.getInteger( "nwn.bif.maxOpenFiles", 16 ).intValue() );
+        return( sharedCache );
+    }
+
+    public int getMaxOpenFiles()
+    {
+        return( maxOpenFiles );
+    }
+
+    /**
+     *  Returns the archive for the specified BIF file, reading its
+     *  tables if they haven't been read yet or if the file has
+     *  changed since.
+     */
+    public synchronized BifArchive getArchive( File f ) throws IOException
+    {
+        f = f.getAbsoluteFile();
+        BifArchive archive = (BifArchive)archives.get( f );
+        if( archive != null && !archive.isStale() )
+            return( archive );
+
+        if( archive != null )
+            {
+            archive.setReplaced();
+            archives.remove( f );
+            closeFile( archive );
+            }
+
+        archive = new BifArchive( this, f );
+        archives.put( f, archive );
+        return( archive );
+    }
+
+    /**
+     *  Returns an open channel for the specified archive, opening it
+     *  and closing the least recently used file if necessary.  Throws
+     *  an IOException if the archive has been replaced because its
+     *  file changed, since its tables no longer describe the file.
+     */
+    protected synchronized FileChannel getChannel( BifArchive archive ) throws IOException
+    {
+        if( archive.isReplaced() )
+            throw new IOException( "BIF file changed while it was being read:" + archive.getFile() );
+
+        RandomAccessFile raf = (RandomAccessFile)openFiles.get( archive );
+        if( raf != null && raf.getChannel().isOpen() )
+            return( raf.getChannel() );
+
+        raf = new RandomAccessFile( archive.getFile(), "r" );
+        openFiles.put( archive, raf );
+
+        if( openFiles.size() > maxOpenFiles )
+            {
+            Iterator i = openFiles.entrySet().iterator();
+            Map.Entry eldest = (Map.Entry)i.next();
+            i.remove();
+            ((RandomAccessFile)eldest.getValue()).close();
+            }
+
+        return( raf.getChannel() );
+    }
+
+    private void closeFile( BifArchive archive ) throws IOException
+    {
+        RandomAccessFile raf = (RandomAccessFile)openFiles.remove( archive );
+        if( raf != null )
+            raf.close();
+    }
+
+    /**
+     *  Closes all open files.  The parsed tables are kept and
+     *  files will be reopened as needed.
+     */
+    public synchronized void close() throws IOException
+    {
+        for( Iterator i = openFiles.values().iterator(); i.hasNext(); )
+            ((RandomAccessFile)i.next()).close();
+        openFiles.clear();
+    }
+}
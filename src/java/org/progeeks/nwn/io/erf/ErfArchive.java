@@ -0,0 +1,432 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.erf;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.progeeks.nwn.io.*;
+import org.progeeks.nwn.resource.*;
+
+/**
+ *  Random-access view of an ERF style file (MOD, HAK, ERF, etc.).
+ *  The header, key list, and position table are read once when
+ *  the archive is opened and any resource can then be opened directly
+ *  by key without rescanning the file.  Resource data is read using
+ *  positional FileChannel reads so a single archive may be shared by
+ *  multiple threads, each reading its own resources.  If one of those
+ *  threads is interrupted mid-read, the JDK closes the shared channel.
+ *  The next read then reopens it, so only the interrupted thread sees
+ *  the error.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class ErfArchive
+{
+    private static final int HEADER_SIZE = 44;
+    private static final int KEY_ENTRY_SIZE = 24;
+    private static final int POSITION_ENTRY_SIZE = 8;
+    private static final int MAX_RETRIES = 3;
+
+    private File file;
+    private long fileSize;
+    private long lastModified;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private boolean closed;
+
+    private String type;
+    private String version;
+    private String description;
+
+    // The key and position tables parsed into primitive arrays
+    private String[] names;
+    private int[] types;
+    private int[] offsets;
+    private int[] sizes;
+
+    /**
+     *  Maps lower-case resource keys to their entry index.  This map
+     *  is never modified after construction.
+     */
+    private Map index;
+
+    public ErfArchive( File file ) throws IOException
+    {
+        this.file = file;
+        this.fileSize = file.length();
+        this.lastModified = file.lastModified();
+        this.raf = new RandomAccessFile( file, "r" );
+        this.channel = raf.getChannel();
+
+        try
+            {
+            readTables();
+            }
+        catch( IOException e )
+            {
+            raf.close();
+            throw e;
+            }
+        catch( RuntimeException e )
+            {
+            raf.close();
+            throw e;
+            }
+    }
+
+    private void readTables() throws IOException
+    {
+        ByteBuffer header = readBlock( 0, HEADER_SIZE );
+
+        byte[] buff = new byte[4];
+        header.get( buff );
+        type = new String(buff).trim();
+        header.get( buff );
+        version = new String(buff);
+
+        int stringCount = header.getInt();
+        int stringSize = header.getInt();
+        int resourceCount = header.getInt();
+        int stringOffset = header.getInt();
+        int resourceOffset = header.getInt();
+        int positionOffset = header.getInt();
+
+        if( resourceCount < 0 || resourceOffset < 0 || positionOffset < 0
+            || (long)resourceOffset + (long)resourceCount * KEY_ENTRY_SIZE > fileSize
+            || (long)positionOffset + (long)resourceCount * POSITION_ENTRY_SIZE > fileSize )
+            throw new IOException( "Corrupt ERF header in:" + file );
+
+        // The first localized string is the only reliable description.
+        if( stringCount > 0 && stringSize >= 8 )
+            {
+            if( stringOffset < 0 || (long)stringOffset + (long)stringSize > fileSize )
+                throw new IOException( "Corrupt ERF header in:" + file );
+
+            ByteBuffer strings = readBlock( stringOffset, stringSize );
+            strings.getInt(); // language
+            int length = Math.min( strings.getInt(), strings.remaining() );
+            if( length > 0 )
+                {
+                byte[] data = new byte[length];
+                strings.get( data );
+                description = new String(data);
+                }
+            }
+
+        names = new String[resourceCount];
+        types = new int[resourceCount];
+        offsets = new int[resourceCount];
+        sizes = new int[resourceCount];
+        index = new HashMap( resourceCount * 2 );
+
+        ByteBuffer keys = readBlock( resourceOffset, resourceCount * KEY_ENTRY_SIZE );
+        ByteBuffer positions = readBlock( positionOffset, resourceCount * POSITION_ENTRY_SIZE );
+
+        byte[] nameBuff = new byte[16];
+        for( int i = 0; i < resourceCount; i++ )
+            {
+            keys.get( nameBuff );
+            names[i] = new String(nameBuff).trim();
+            int id = keys.getInt();
+            types[i] = keys.getInt();
+
+            // The resource ID is the index into the position table.
+            // Empty entries and bad IDs fall back to the key's own index
+            // the same way ModReader does.
+            if( types[i] == 0 || id < 0 || id >= resourceCount )
+                id = i;
+
+            positions.position( id * POSITION_ENTRY_SIZE );
+            offsets[i] = positions.getInt();
+            sizes[i] = positions.getInt();
+
+            // The first entry wins when a key is duplicated.
+            ResourceKey key = new ResourceKey( names[i].toLowerCase(), types[i] );
+            if( !index.containsKey( key ) )
+                index.put( key, new Integer(i) );
+            }
+    }
+
+    private ByteBuffer readBlock( long position, int size ) throws IOException
+    {
+        ByteBuffer buff = ByteBuffer.allocate( size );
+        buff.order( ByteOrder.LITTLE_ENDIAN );
+        readFully( buff, position );
+        buff.flip();
+        return( buff );
+    }
+
+    /**
+     *  Returns the open channel, reopening the file if an interrupted
+     *  read closed it.  The file is not reopened once the archive has
+     *  been closed or if it has changed since it was opened.
+     */
+    private synchronized FileChannel getChannel() throws IOException
+    {
+        if( channel.isOpen() )
+            return( channel );
+        if( closed )
+            throw new ClosedChannelException();
+        if( isStale() )
+            throw new IOException( "ERF file changed while it was being read:" + file );
+
+        raf.close();
+        raf = new RandomAccessFile( file, "r" );
+        channel = raf.getChannel();
+        return( channel );
+    }
+
+    /**
+     *  Reads from the channel, reopening it and trying again if another
+     *  thread's interrupted read closed it while we were using it.  A
+     *  read closed by our own interrupt is rethrown.
+     */
+    private void readFully( ByteBuffer buff, long position ) throws IOException
+    {
+        int start = buff.position();
+        for( int retry = 0; ; retry++ )
+            {
+            try
+                {
+                ChannelInputStream.readFully( getChannel(), buff, position + buff.position() - start );
+                return;
+                }
+            catch( ClosedByInterruptException e )
+                {
+                throw e;
+                }
+            catch( ClosedChannelException e )
+                {
+                if( retry >= MAX_RETRIES )
+                    throw e;
+                }
+            }
+    }
+
+    public File getFile()
+    {
+        return( file );
+    }
+
+    /**
+     *  Returns true if the file has changed size or modification time
+     *  since the archive was opened.
+     */
+    public boolean isStale()
+    {
+        return( file.length() != fileSize || file.lastModified() != lastModified );
+    }
+
+    /**
+     *  Returns the archive type, ie: "MOD", "HAK", "ERF".
+     */
+    public String getType()
+    {
+        return( type );
+    }
+
+    public String getVersion()
+    {
+        return( version );
+    }
+
+    public String getDescription()
+    {
+        return( description );
+    }
+
+    public int getEntryCount()
+    {
+        return( names.length );
+    }
+
+    /**
+     *  Returns the resource name of the specified entry exactly as
+     *  it appears in the file.
+     */
+    public String getName( int entry )
+    {
+        return( names[entry] );
+    }
+
+    public int getResourceType( int entry )
+    {
+        return( types[entry] );
+    }
+
+    /**
+     *  Returns the resource key for the specified entry.  Resource
+     *  names are converted to lower case.
+     */
+    public ResourceKey getKey( int entry )
+    {
+        return( new ResourceKey( names[entry].toLowerCase(), types[entry] ) );
+    }
+
+    public int getOffset( int entry )
+    {
+        return( offsets[entry] );
+    }
+
+    public int getSize( int entry )
+    {
+        return( sizes[entry] );
+    }
+
+    /**
+     *  Returns the entry index of the specified resource or -1 if
+     *  the archive does not contain it.  Resource names are matched
+     *  without regard to case.
+     */
+    public int indexOf( ResourceKey key )
+    {
+        Integer i = (Integer)index.get( key );
+        if( i == null )
+            {
+            String lower = key.getName().toLowerCase();
+            if( lower.equals( key.getName() ) )
+                return( -1 );
+            i = (Integer)index.get( new ResourceKey( lower, key.getType() ) );
+            if( i == null )
+                return( -1 );
+            }
+        return( i.intValue() );
+    }
+
+    public boolean containsResource( ResourceKey key )
+    {
+        return( indexOf( key ) >= 0 );
+    }
+
+    /**
+     *  Returns a stream for reading the specified resource or null if
+     *  the archive does not contain it.
+     */
+    public InputStream open( ResourceKey key ) throws IOException
+    {
+        int i = indexOf( key );
+        if( i < 0 )
+            return( null );
+        return( open( i ) );
+    }
+
+    /**
+     *  Returns a stream for reading the specified entry.  Closing the
+     *  stream does not close the archive.
+     */
+    public InputStream open( int entry ) throws IOException
+    {
+        return( new ChannelInputStream( null, offsets[entry], sizes[entry] )
+                    {
+                        protected void readFully( ByteBuffer buff, long pos ) throws IOException
+                        {
+                            ErfArchive.this.readFully( buff, pos );
+                        }
+                    } );
+    }
+
+    /**
+     *  Reads the specified entry fully into a new buffer.  The returned
+     *  buffer is positioned at 0 with the limit set to the
+     *  resource size.
+     */
+    public ByteBuffer read( int entry ) throws IOException
+    {
+        ByteBuffer buff = ByteBuffer.allocate( sizes[entry] );
+        readFully( buff, offsets[entry] );
+        buff.flip();
+        return( buff );
+    }
+
+    /**
+     *  Copies the specified entry's data to the target channel and
+     *  returns the number of bytes copied.  This only uses positional
+     *  transfers so entries can be copied from several threads at once.
+     *  Like reads, a transfer picks up where it left off if another
+     *  thread's interrupt closed the channel.  That is only possible
+     *  when the target is seekable since part of the interrupted
+     *  transfer may already have been written to it.
+     */
+    public long transferTo( int entry, WritableByteChannel target ) throws IOException
+    {
+        long position = offsets[entry];
+        long size = sizes[entry];
+        long total = 0;
+        int retry = 0;
+        SeekableByteChannel seekable = null;
+        long start = 0;
+        if( target instanceof SeekableByteChannel )
+            {
+            seekable = (SeekableByteChannel)target;
+            start = seekable.position();
+            }
+        while( total < size )
+            {
+            long count;
+            try
+                {
+                count = getChannel().transferTo( position + total, size - total, target );
+                }
+            catch( ClosedByInterruptException e )
+                {
+                throw e;
+                }
+            catch( ClosedChannelException e )
+                {
+                if( seekable == null || retry++ >= MAX_RETRIES )
+                    throw e;
+                seekable.position( start + total );
+                continue;
+                }
+            if( count <= 0 )
+                throw new EOFException( "Entry:" + entry + " ends after:" + total + " of " + size + " bytes." );
+            total += count;
+            }
+        return( total );
+    }
+
+    public synchronized void close() throws IOException
+    {
+        closed = true;
+        raf.close();
+    }
+
+    public String toString()
+    {
+        return( "ErfArchive[" + file + ", type:" + type + ", entries:" + names.length + "]" );
+    }
+}
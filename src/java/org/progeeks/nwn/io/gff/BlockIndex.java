@@ -33,6 +33,7 @@
 package org.progeeks.nwn.io.gff;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import org.progeeks.nwn.io.*;
 
@@ -53,6 +54,16 @@ public class BlockIndex
         size = in.readInt();
     }
 
+    /**
+     *  Reads the block index from the buffer's current position.
+     *  The buffer is expected to already be in little-endian order.
+     */
+    public BlockIndex( ByteBuffer in )
+    {
+        offset = in.getInt();
+        size = in.getInt();
+    }
+
     public int getOffset()
     {
         return( offset );
@@ -0,0 +1,625 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.gff;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.progeeks.nwn.gff.*;
+import org.progeeks.nwn.io.ChannelInputStream;
+
+/**
+ *  Random-access reader for reading the data elements from a GFF
+ *  file that has been loaded into or mapped as a ByteBuffer.  Unlike
+ *  GffReader, this reader does not need to sort the field and struct
+ *  blocks to avoid skipping backwards since it can jump directly to
+ *  any offset in the file.  It produces the same Struct/Element tree
+ *  as GffReader.
+ *  NOT a standard implementation of java.io.Reader.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class GffBufferReader
+{
+    private static String nwnEncoding = System.getProperty( "nwn.read.encoding", "windows-1252" );
+
+    private ByteBuffer buffer;
+    private Header header;
+    private String[] labels;
+
+    // The struct and field blocks parsed into primitive arrays
+    private int[] structTypes;
+    private int[] structData;
+    private int[] structCounts;
+    private int[] fieldTypes;
+    private int[] fieldLabels;
+    private int[] fieldData;
+
+    // Resolved objects so that shared entries resolve to the
+    // same instances.
+    private Element[] fields;
+    private Struct[] structs;
+
+    /**
+     *  Set to true when structs are being returned as LazyStruct
+     *  views instead of fully resolved Struct objects.
+     */
+    private boolean lazy;
+
+    /**
+     *  Creates a reader that will read the GFF data from the specified
+     *  buffer.  The buffer's byte order will be set to little-endian.
+     */
+    public GffBufferReader( ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+        buffer.order( ByteOrder.LITTLE_ENDIAN );
+
+        header = new Header( buffer );
+    }
+
+    /**
+     *  Creates a reader that will read the GFF data from the specified
+     *  file.  The whole file is read into memory so that the file isn't
+     *  held open or mapped after this returns.
+     */
+    public GffBufferReader( File f ) throws IOException
+    {
+        this( readFile( f ) );
+    }
+
+    /**
+     *  Creates a reader that will read all of the remaining data
+     *  from the specified stream into memory.  The stream is not
+     *  closed.
+     */
+    public GffBufferReader( InputStream in ) throws IOException
+    {
+        this( ByteBuffer.wrap( readFully( in ) ) );
+    }
+
+    public Header getHeader()
+    {
+        return( header );
+    }
+
+    public Struct readRootStruct() throws IOException
+    {
+        return( readRootStruct( false ) );
+    }
+
+    /**
+     *  Returns a view of the root struct that only decodes field values
+     *  as they are requested.  The struct and field headers are parsed
+     *  up front but no elements or strings are created until a field
+     *  is accessed through getValue(), getInt(), getString(), or getList().
+     *  The reader must not be closed until the caller is done
+     *  with the returned struct.
+     */
+    public Struct readLazyRootStruct() throws IOException
+    {
+        return( readRootStruct( true ) );
+    }
+
+    protected Struct readRootStruct( boolean lazy ) throws IOException
+    {
+        this.lazy = lazy;
+        try
+            {
+            readStubs();
+
+            fields = new Element[ fieldTypes.length ];
+            structs = new Struct[ structTypes.length ];
+
+            return( getStruct( 0 ) );
+            }
+        catch( BufferUnderflowException e )
+            {
+            throw new EOFException( "Unexpected end of GFF data." );
+            }
+        catch( IndexOutOfBoundsException e )
+            {
+            IOException ioe = new IOException( "Corrupt GFF data." );
+            ioe.initCause( e );
+            throw ioe;
+            }
+    }
+
+    /**
+     *  Releases the reference to the underlying buffer.
+     */
+    public void close() throws IOException
+    {
+        buffer = null;
+    }
+
+    protected static ByteBuffer readFile( File f ) throws IOException
+    {
+        FileInputStream fIn = new FileInputStream( f );
+        try
+            {
+            FileChannel channel = fIn.getChannel();
+            long size = channel.size();
+            if( size > Integer.MAX_VALUE )
+                throw new IOException( "File too large:" + f );
+
+            ByteBuffer buffer = ByteBuffer.allocate( (int)size );
+            ChannelInputStream.readFully( channel, buffer, 0 );
+            buffer.flip();
+            return( buffer );
+            }
+        finally
+            {
+            fIn.close();
+            }
+    }
+
+    protected static byte[] readFully( InputStream in ) throws IOException
+    {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream( Math.max( 4096, in.available() ) );
+        byte[] buff = new byte[16384];
+        int len;
+        while( (len = in.read( buff )) >= 0 )
+            {
+            bOut.write( buff, 0, len );
+            }
+        return( bOut.toByteArray() );
+    }
+
+    /**
+     *  Reads the labels and the struct and field blocks if they
+     *  haven't been read already.
+     */
+    private void readStubs() throws IOException
+    {
+        if( labels != null )
+            return;
+
+        // Make sure a bad header can't make us allocate huge arrays
+        checkBlock( header.getLabels(), 16 );
+        checkBlock( header.getStructs(), 12 );
+        checkBlock( header.getFields(), 12 );
+
+        readLabels( header.getLabels() );
+        readStructStubs( header.getStructs() );
+        readFieldStubs( header.getFields() );
+    }
+
+    /**
+     *  Throws an IOException if the specified block of fixed size
+     *  records does not fit inside the GFF data.
+     */
+    private void checkBlock( BlockIndex block, int recordSize ) throws IOException
+    {
+        long offset = block.getOffset();
+        long size = block.getSize();
+        if( offset < 0 || size < 0 || offset + size * recordSize > buffer.limit() )
+            throw new IOException( "Corrupt GFF data, block out of range:" + offset + " size:" + size );
+    }
+
+    private void readLabels( BlockIndex block )
+    {
+        int count = block.getSize();
+        labels = new String[ count ];
+
+        byte[] buff = new byte[16];
+        int offset = block.getOffset();
+        for( int i = 0; i < count; i++ )
+            {
+            buffer.position( offset + i * 16 );
+            buffer.get( buff );
+            labels[i] = new String(buff).trim();
+            }
+    }
+
+    private void readStructStubs( BlockIndex block )
+    {
+        int count = block.getSize();
+        structTypes = new int[ count ];
+        structData = new int[ count ];
+        structCounts = new int[ count ];
+
+        buffer.position( block.getOffset() );
+        for( int i = 0; i < count; i++ )
+            {
+            structTypes[i] = buffer.getInt();
+            structData[i] = buffer.getInt();
+            structCounts[i] = buffer.getInt();
+            }
+    }
+
+    private void readFieldStubs( BlockIndex block )
+    {
+        int count = block.getSize();
+        fieldTypes = new int[ count ];
+        fieldLabels = new int[ count ];
+        fieldData = new int[ count ];
+
+        buffer.position( block.getOffset() );
+        for( int i = 0; i < count; i++ )
+            {
+            fieldTypes[i] = buffer.getInt();
+            fieldLabels[i] = buffer.getInt();
+            fieldData[i] = buffer.getInt();
+            }
+    }
+
+    /**
+     *  Returns the number of fields in the specified struct.
+     */
+    int getFieldCount( int structIndex )
+    {
+        if( structData[structIndex] < 0 )
+            return( 0 );
+        return( structCounts[structIndex] );
+    }
+
+    /**
+     *  Returns the field block index of the n'th field in the
+     *  specified struct.
+     */
+    int getFieldIndex( int structIndex, int n )
+    {
+        int dataOrOffset = structData[structIndex];
+        if( structCounts[structIndex] == 1 )
+            return( dataOrOffset );
+        return( buffer.getInt( header.getFieldIndices().getOffset() + dataOrOffset + n * 4 ) );
+    }
+
+    /**
+     *  Returns the number of differently labeled fields in the
+     *  specified struct.  A label that appears more than once only
+     *  counts once, the same as when the fields are added to a Struct.
+     */
+    int getUniqueFieldCount( int structIndex )
+    {
+        int count = getFieldCount( structIndex );
+        if( count < 2 )
+            return( count );
+
+        Set names = new HashSet();
+        for( int i = 0; i < count; i++ )
+            names.add( labels[fieldLabels[getFieldIndex( structIndex, i )]] );
+        return( names.size() );
+    }
+
+    /**
+     *  Returns the field block index of the field with the specified
+     *  label in the specified struct or -1 if there is no such field.
+     *  If the label appears more than once then the last field wins
+     *  just like it does when the fields are added to a Struct.
+     */
+    int findField( int structIndex, String name )
+    {
+        int count = getFieldCount( structIndex );
+        for( int i = count - 1; i >= 0; i-- )
+            {
+            int field = getFieldIndex( structIndex, i );
+            if( name.equals( labels[fieldLabels[field]] ) )
+                return( field );
+            }
+        return( -1 );
+    }
+
+    int getFieldType( int field )
+    {
+        return( fieldTypes[field] );
+    }
+
+    int getFieldData( int field )
+    {
+        return( fieldData[field] );
+    }
+
+    /**
+     *  Decodes just the string value of a STRING, RESREF, or the first
+     *  localized string of a STRREF field without creating an element.
+     */
+    String getFieldString( int field ) throws IOException
+    {
+        int dataOffset = header.getValues().getOffset() + fieldData[field];
+        switch( fieldTypes[field] )
+            {
+            case Element.TYPE_STRING:
+                return( readString( dataOffset + 4, buffer.getInt( dataOffset ) ) );
+            case Element.TYPE_RESREF:
+                return( readString( dataOffset + 1, buffer.get( dataOffset ) & 0xff ) );
+            case Element.TYPE_STRREF:
+                if( buffer.getInt( dataOffset + 8 ) == 0 )
+                    return( null );
+                return( readString( dataOffset + 20, buffer.getInt( dataOffset + 16 ) ) );
+            default:
+                return( null );
+            }
+    }
+
+    private String readString( int offset, int len ) throws IOException
+    {
+        if( buffer.hasArray() )
+            {
+            return( new String( buffer.array(), buffer.arrayOffset() + offset, len, nwnEncoding ) );
+            }
+
+        byte[] buff = new byte[len];
+        buffer.position( offset );
+        buffer.get( buff );
+        return( new String( buff, nwnEncoding ) );
+    }
+
+    /**
+     *  Returns the struct at the specified index in the struct block,
+     *  resolving it and all of its fields if it hasn't already been
+     *  read.
+     */
+    Struct getStruct( int index ) throws IOException
+    {
+        Struct struct = structs[index];
+        if( struct != null )
+            return( struct );
+
+        if( lazy )
+            {
+            struct = new LazyStruct( this, structTypes[index], index );
+            structs[index] = struct;
+            return( struct );
+            }
+
+        int count = getFieldCount( index );
+        ArrayList list = new ArrayList( count );
+
+        // Register the struct before resolving its fields just in
+        // case a malformed file refers back to it.
+        struct = new Struct( structTypes[index] );
+        structs[index] = struct;
+
+        for( int i = 0; i < count; i++ )
+            {
+            list.add( getField( getFieldIndex( index, i ) ) );
+            }
+
+        struct.setValues( list );
+        return( struct );
+    }
+
+    /**
+     *  Returns the field at the specified index in the field block,
+     *  resolving it if it hasn't already been read.
+     */
+    Element getField( int index ) throws IOException
+    {
+        Element el = fields[index];
+        if( el != null )
+            return( el );
+
+        el = decodeElement( index );
+
+        // Register the field before resolving any nested
+        // structures.
+        fields[index] = el;
+
+        int type = fieldTypes[index];
+        int data = fieldData[index];
+        if( type == Element.TYPE_STRUCTREF )
+            {
+            ((StructElement)el).setStruct( getStruct( data ) );
+            }
+        else if( type == Element.TYPE_LIST )
+            {
+            int listPos = header.getLists().getOffset() + data;
+            int count = buffer.getInt( listPos );
+
+            ArrayList list = new ArrayList( count );
+            for( int i = 0; i < count; i++ )
+                {
+                list.add( getStruct( buffer.getInt( listPos + 4 + i * 4 ) ) );
+                }
+            ((ListElement)el).setValue( list );
+            }
+
+        return( el );
+    }
+
+    /**
+     *  Creates a new element for the field at the specified index
+     *  in the field block.  STRUCTREF and LIST elements are returned
+     *  empty.
+     */
+    private Element decodeElement( int index ) throws IOException
+    {
+        Element el = null;
+        int type = fieldTypes[index];
+        String name = labels[fieldLabels[index]];
+        int data = fieldData[index];
+
+        int dataOffset = header.getValues().getOffset() + data;
+        int len;
+
+        switch( type )
+            {
+            case Element.TYPE_UINT8:
+            case Element.TYPE_INT8:
+            case Element.TYPE_UINT16:
+            case Element.TYPE_INT16:
+            case Element.TYPE_UINT32:
+            case Element.TYPE_INT32:
+                el = new IntElement( name, type, data );
+                break;
+            case Element.TYPE_FLOAT:
+                el = new FloatElement( name, type, Float.intBitsToFloat(data) );
+                break;
+            case Element.TYPE_UINT64:
+            case Element.TYPE_INT64:
+                el = new ObjectElement( name, type, new Long( buffer.getLong( dataOffset ) ) );
+                break;
+            case Element.TYPE_DOUBLE:
+                el = new ObjectElement( name, type, new Double( buffer.getDouble( dataOffset ) ) );
+                break;
+            case Element.TYPE_STRING:
+                len = buffer.getInt( dataOffset );
+                el = new StringElement( name, type, readString( dataOffset + 4, len ) );
+                break;
+            case Element.TYPE_RESREF:
+                len = buffer.get( dataOffset ) & 0xff;
+                el = new StringElement( name, type, readString( dataOffset + 1, len ) );
+                break;
+            case Element.TYPE_STRREF:
+                // Skip the total size
+                int id = buffer.getInt( dataOffset + 4 );
+                int langCount = buffer.getInt( dataOffset + 8 );
+
+                LocalizedStringElement lse = new LocalizedStringElement( name, type, id );
+                int langPos = dataOffset + 12;
+                for( int i = 0; i < langCount; i++ )
+                    {
+                    int lang = buffer.getInt( langPos );
+                    len = buffer.getInt( langPos + 4 );
+                    lse.addLocalString( lang, readString( langPos + 8, len ) );
+                    langPos += 8 + len;
+                    }
+                el = lse;
+                break;
+            case Element.TYPE_DATREF:
+                len = buffer.getInt( dataOffset );
+                byte[] buff = new byte[len];
+                buffer.position( dataOffset + 4 );
+                buffer.get( buff );
+                el = new ObjectElement( name, type, buff );
+                break;
+            case Element.TYPE_STRUCTREF:
+                // Data is an index into the struct array
+                el = new StructElement( name, type, null );
+                break;
+            case Element.TYPE_LIST:
+                el = new ListElement( name, type );
+                break;
+            }
+
+        return( el );
+    }
+
+    /**
+     *  Walks the GFF data from the root struct down, delivering each
+     *  struct, list, and field to the specified handler in file order
+     *  without building a Struct tree.  Only the elements for the
+     *  simple fields are created and they are not retained.
+     */
+    public void parse( GffHandler handler ) throws IOException
+    {
+        try
+            {
+            readStubs();
+
+            parseStruct( 0, null, handler, new boolean[ structTypes.length ] );
+            }
+        catch( BufferUnderflowException e )
+            {
+            throw new EOFException( "Unexpected end of GFF data." );
+            }
+        catch( IndexOutOfBoundsException e )
+            {
+            IOException ioe = new IOException( "Corrupt GFF data." );
+            ioe.initCause( e );
+            throw ioe;
+            }
+    }
+
+    private void parseStruct( int index, String name, GffHandler handler, boolean[] active )
+                                                                        throws IOException
+    {
+        if( active[index] )
+            throw new IOException( "Circular struct reference at struct:" + index );
+        active[index] = true;
+
+        int id = structTypes[index];
+        handler.startStruct( name, id );
+
+        int count = getFieldCount( index );
+        for( int i = 0; i < count; i++ )
+            {
+            int field = getFieldIndex( index, i );
+            int data = fieldData[field];
+            String label = labels[fieldLabels[field]];
+
+            switch( fieldTypes[field] )
+                {
+                case Element.TYPE_STRUCTREF:
+                    parseStruct( data, label, handler, active );
+                    break;
+                case Element.TYPE_LIST:
+                    handler.startList( label );
+
+                    int listPos = header.getLists().getOffset() + data;
+                    int size = buffer.getInt( listPos );
+                    for( int j = 0; j < size; j++ )
+                        {
+                        parseStruct( buffer.getInt( listPos + 4 + j * 4 ), null, handler, active );
+                        }
+
+                    handler.endList( label );
+                    break;
+                default:
+                    handler.field( decodeElement( field ) );
+                    break;
+                }
+            }
+
+        handler.endStruct( name, id );
+        active[index] = false;
+    }
+
+    public static void main( String[] args ) throws IOException
+    {
+        for( int i = 0; i < args.length; i++ )
+            {
+            System.out.println( args[i] );
+            GffBufferReader reader = new GffBufferReader( new File( args[i] ) );
+
+            try
+                {
+                Struct root = reader.readRootStruct();
+                for( Iterator it = root.getValues().iterator(); it.hasNext(); )
+                    {
+                    Element e = (Element)it.next();
+                    GffReader.printElement( e, "    " );
+                    }
+                }
+            finally
+                {
+                reader.close();
+                }
+            }
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.gff;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import org.progeeks.nwn.gff.*;
+
+/**
+ *  Writes GFF data structures into a single pre-sized ByteBuffer.
+ *  A first pass over the Struct tree calculates the size of every
+ *  block and a second pass writes the structs, fields, labels, field
+ *  data, field indices, and list indices directly to their final
+ *  positions in the buffer.  No intermediate stub objects are created.
+ *  The output is identical to an uncompressed GffWriter.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class GffBufferWriter
+{
+    private static String nwnEncoding = System.getProperty( "nwn.write.encoding", "windows-1252" );
+
+    private byte[] type = new byte[4];
+    private byte[] version = new byte[4];
+    private boolean direct = false;
+
+    private CharsetEncoder encoder;
+    private boolean singleByte;
+
+    // Sizing pass results
+    private Map labelMap = new HashMap();
+    private List labels = new ArrayList();
+    private int structCount;
+    private int fieldCount;
+    private int dataSize;
+    private int fieldIndexSize;
+    private int listSize;
+
+    // Block offsets
+    private int structOffset;
+    private int fieldOffset;
+    private int labelOffset;
+    private int dataOffset;
+    private int fieldIndexOffset;
+    private int listOffset;
+
+    // Write pass cursors
+    private ByteBuffer buffer;
+    private int nextStruct;
+    private int nextField;
+    private int dataPos;
+    private int fieldIndexPos;
+    private int listPos;
+
+    public GffBufferWriter( String type )
+    {
+        this( type, GffWriter.GFF_VERSION );
+    }
+
+    public GffBufferWriter( String type, String version )
+    {
+        byte[] t = type.getBytes();
+        byte[] v = version.getBytes();
+
+        for( int i = 0; i < 4; i++ )
+            {
+            this.type[i] = t[i];
+            this.version[i] = v[i];
+            }
+
+        Charset charset = Charset.forName( nwnEncoding );
+        encoder = charset.newEncoder();
+        encoder.onMalformedInput( CodingErrorAction.REPLACE );
+        encoder.onUnmappableCharacter( CodingErrorAction.REPLACE );
+        singleByte = encoder.maxBytesPerChar() == 1.0f;
+    }
+
+    /**
+     *  Set to true to have the GFF written into a direct buffer
+     *  instead of a heap buffer.  Defaults to false.
+     */
+    public void setUseDirectBuffer( boolean direct )
+    {
+        this.direct = direct;
+    }
+
+    public boolean getUseDirectBuffer()
+    {
+        return( direct );
+    }
+
+    /**
+     *  Writes the specified struct as the root of a GFF file and
+     *  returns the buffer containing it, positioned at 0 with its limit
+     *  set to the size of the file.
+     */
+    public ByteBuffer writeStruct( Struct struct ) throws IOException
+    {
+        reset();
+
+        // Figure out how big everything is
+        sizeStruct( struct );
+
+        int labelSize = 16 * labels.size();
+        structOffset = Header.HEADER_SIZE;
+        fieldOffset = structOffset + 12 * structCount;
+        labelOffset = fieldOffset + 12 * fieldCount;
+        dataOffset = labelOffset + labelSize;
+        fieldIndexOffset = dataOffset + dataSize;
+        listOffset = fieldIndexOffset + fieldIndexSize;
+        int total = listOffset + listSize;
+
+        if( direct )
+            buffer = ByteBuffer.allocateDirect( total );
+        else
+            buffer = ByteBuffer.allocate( total );
+        buffer.order( ByteOrder.LITTLE_ENDIAN );
+
+        writeHeader();
+        writeLabels();
+
+        dataPos = dataOffset;
+        fieldIndexPos = fieldIndexOffset;
+        listPos = listOffset;
+        writeStructData( struct );
+
+        if( dataPos != fieldIndexOffset || fieldIndexPos != listOffset || listPos != total )
+            {
+            throw new IOException( "GFF block sizes do not match the data written.  Data:"
+                                   + (dataPos - dataOffset) + " of " + dataSize
+                                   + "  Field indices:" + (fieldIndexPos - fieldIndexOffset)
+                                   + " of " + fieldIndexSize
+                                   + "  Lists:" + (listPos - listOffset) + " of " + listSize );
+            }
+
+        ByteBuffer result = buffer;
+        buffer = null;
+        result.position( 0 );
+        result.limit( total );
+        return( result );
+    }
+
+    /**
+     *  Writes the specified struct as the root of a GFF file to the
+     *  specified stream.  The stream is not closed.
+     */
+    public void writeStruct( Struct struct, OutputStream out ) throws IOException
+    {
+        ByteBuffer b = writeStruct( struct );
+        if( b.hasArray() )
+            {
+            out.write( b.array(), b.arrayOffset(), b.limit() );
+            }
+        else
+            {
+            WritableByteChannel channel = Channels.newChannel( out );
+            while( b.hasRemaining() )
+                channel.write( b );
+            }
+        out.flush();
+    }
+
+    /**
+     *  Writes the specified struct as the root of a GFF file to the
+     *  specified file.
+     */
+    public void writeStruct( Struct struct, File f ) throws IOException
+    {
+        ByteBuffer b = writeStruct( struct );
+        FileOutputStream fOut = new FileOutputStream( f );
+        try
+            {
+            FileChannel channel = fOut.getChannel();
+            while( b.hasRemaining() )
+                channel.write( b );
+            }
+        finally
+            {
+            fOut.close();
+            }
+    }
+
+    private void reset()
+    {
+        labelMap.clear();
+        labels.clear();
+        structCount = 0;
+        fieldCount = 0;
+        dataSize = 0;
+        fieldIndexSize = 0;
+        listSize = 0;
+        nextStruct = 0;
+        nextField = 0;
+    }
+
+    private void addLabel( String label )
+    {
+        if( labelMap.containsKey( label ) )
+            return;
+        labelMap.put( label, new Integer( labels.size() ) );
+        labels.add( label );
+    }
+
+    /**
+     *  Returns the number of bytes the string encodes to.  In a single
+     *  byte charset every code point is one byte, including surrogate
+     *  pairs, which are two chars but get replaced by one '?'.
+     */
+    private int encodedLength( String s )
+    {
+        if( singleByte )
+            return( s.codePointCount( 0, s.length() ) );
+        try
+            {
+            return( s.getBytes( nwnEncoding ).length );
+            }
+        catch( UnsupportedEncodingException e )
+            {
+            throw new RuntimeException( "Unsupported encoding:" + nwnEncoding, e );
+            }
+    }
+
+    private void sizeStruct( Struct struct )
+    {
+        structCount++;
+
+        int count = struct.getValueCount();
+        if( count > 1 )
+            fieldIndexSize += 4 * count;
+
+        for( Iterator i = struct.values(); i.hasNext(); )
+            {
+            sizeElement( (Element)i.next() );
+            }
+    }
+
+    private void sizeElement( Element el )
+    {
+        fieldCount++;
+        addLabel( el.getName() );
+
+        switch( el.getType() )
+            {
+            case Element.TYPE_UINT64:
+            case Element.TYPE_INT64:
+            case Element.TYPE_DOUBLE:
+                dataSize += 8;
+                break;
+            case Element.TYPE_STRING:
+                dataSize += 4 + encodedLength( ((StringElement)el).getValue() );
+                break;
+            case Element.TYPE_RESREF:
+                dataSize += 1 + Math.min( 255, encodedLength( ((StringElement)el).getValue() ) );
+                break;
+            case Element.TYPE_STRREF:
+                dataSize += 12;
+                Map map = ((LocalizedStringElement)el).getLocalStrings();
+                for( Iterator i = map.values().iterator(); i.hasNext(); )
+                    {
+                    dataSize += 8 + encodedLength( (String)i.next() );
+                    }
+                break;
+            case Element.TYPE_DATREF:
+                dataSize += 4 + ((byte[])((ObjectElement)el).getValue()).length;
+                break;
+            case Element.TYPE_STRUCTREF:
+                sizeStruct( ((StructElement)el).getStruct() );
+                break;
+            case Element.TYPE_LIST:
+                List list = ((ListElement)el).getValue();
+                listSize += 4 + 4 * list.size();
+                for( Iterator i = list.iterator(); i.hasNext(); )
+                    {
+                    sizeStruct( (Struct)i.next() );
+                    }
+                break;
+            }
+    }
+
+    private void writeHeader()
+    {
+        buffer.position( 0 );
+        buffer.put( type );
+        buffer.put( version );
+
+        buffer.putInt( structOffset );
+        buffer.putInt( structCount );
+        buffer.putInt( fieldOffset );
+        buffer.putInt( fieldCount );
+        buffer.putInt( labelOffset );
+        buffer.putInt( labels.size() );
+        buffer.putInt( dataOffset );
+        buffer.putInt( dataSize );
+        buffer.putInt( fieldIndexOffset );
+        buffer.putInt( fieldIndexSize );
+        buffer.putInt( listOffset );
+        buffer.putInt( listSize );
+    }
+
+    private void writeLabels()
+    {
+        // The buffer starts zeroed so only the label bytes
+        // need to be written.
+        int pos = labelOffset;
+        for( Iterator i = labels.iterator(); i.hasNext(); pos += 16 )
+            {
+            byte[] sb = ((String)i.next()).getBytes();
+            buffer.position( pos );
+            buffer.put( sb, 0, Math.min( 16, sb.length ) );
+            }
+    }
+
+    private int writeStructData( Struct struct ) throws IOException
+    {
+        int index = nextStruct++;
+        int pos = structOffset + index * 12;
+        int count = struct.getValueCount();
+
+        // Reserve the field indices up front just like GffWriter
+        int indices = -1;
+        if( count > 1 )
+            {
+            indices = fieldIndexPos;
+            fieldIndexPos += 4 * count;
+            }
+
+        buffer.putInt( pos, struct.getId() );
+        buffer.putInt( pos + 8, count );
+
+        if( count == 0 )
+            buffer.putInt( pos + 4, -1 );
+        else if( count > 1 )
+            buffer.putInt( pos + 4, indices - fieldIndexOffset );
+
+        int n = 0;
+        for( Iterator i = struct.values(); i.hasNext(); n++ )
+            {
+            int field = writeElement( (Element)i.next() );
+            if( count == 1 )
+                buffer.putInt( pos + 4, field );
+            else
+                buffer.putInt( indices + n * 4, field );
+            }
+
+        return( index );
+    }
+
+    private int writeElement( Element el ) throws IOException
+    {
+        int index = nextField++;
+        int pos = fieldOffset + index * 12;
+        int type = el.getType();
+
+        buffer.putInt( pos, type );
+        buffer.putInt( pos + 4, ((Integer)labelMap.get( el.getName() )).intValue() );
+
+        int data;
+        switch( type )
+            {
+            case Element.TYPE_UINT8:
+            case Element.TYPE_INT8:
+            case Element.TYPE_UINT16:
+            case Element.TYPE_INT16:
+            case Element.TYPE_UINT32:
+            case Element.TYPE_INT32:
+                data = ((IntElement)el).getValue();
+                break;
+            case Element.TYPE_FLOAT:
+                data = Float.floatToIntBits( ((FloatElement)el).getValue() );
+                break;
+            case Element.TYPE_UINT64:
+            case Element.TYPE_INT64:
+                data = dataPos - dataOffset;
+                buffer.putLong( dataPos, ((Long)((ObjectElement)el).getValue()).longValue() );
+                dataPos += 8;
+                break;
+            case Element.TYPE_DOUBLE:
+                data = dataPos - dataOffset;
+                buffer.putDouble( dataPos, ((Double)((ObjectElement)el).getValue()).doubleValue() );
+                dataPos += 8;
+                break;
+            case Element.TYPE_STRING:
+                data = dataPos - dataOffset;
+                dataPos += 4;
+                buffer.putInt( data + dataOffset, putString( ((StringElement)el).getValue(), 0x7fffffff ) );
+                break;
+            case Element.TYPE_RESREF:
+                data = dataPos - dataOffset;
+                dataPos += 1;
+                buffer.put( data + dataOffset, (byte)putString( ((StringElement)el).getValue(), 255 ) );
+                break;
+            case Element.TYPE_STRREF:
+                data = dataPos - dataOffset;
+                LocalizedStringElement lse = (LocalizedStringElement)el;
+                Map map = lse.getLocalStrings();
+                int start = dataPos;
+                buffer.putInt( start + 4, lse.getReferenceId() );
+                buffer.putInt( start + 8, map.size() );
+                dataPos += 12;
+                for( Iterator i = map.entrySet().iterator(); i.hasNext(); )
+                    {
+                    Map.Entry e = (Map.Entry)i.next();
+                    int langPos = dataPos;
+                    buffer.putInt( langPos, ((Integer)e.getKey()).intValue() );
+                    dataPos += 8;
+                    buffer.putInt( langPos + 4, putString( (String)e.getValue(), 0x7fffffff ) );
+                    }
+
+                // The size on disk doesn't include the size itself
+                buffer.putInt( start, dataPos - start - 4 );
+                break;
+            case Element.TYPE_DATREF:
+                data = dataPos - dataOffset;
+                byte[] bytes = (byte[])((ObjectElement)el).getValue();
+                buffer.putInt( dataPos, bytes.length );
+                buffer.position( dataPos + 4 );
+                buffer.put( bytes );
+                dataPos += 4 + bytes.length;
+                break;
+            case Element.TYPE_STRUCTREF:
+                data = writeStructData( ((StructElement)el).getStruct() );
+                break;
+            case Element.TYPE_LIST:
+                data = listPos - listOffset;
+                List list = ((ListElement)el).getValue();
+                int listStart = listPos;
+                int size = list.size();
+                listPos += 4 + 4 * size;
+                buffer.putInt( listStart, size );
+                int n = 0;
+                for( Iterator i = list.iterator(); i.hasNext(); n++ )
+                    {
+                    buffer.putInt( listStart + 4 + n * 4, writeStructData( (Struct)i.next() ) );
+                    }
+                break;
+            default:
+                throw new IOException( "Cannot write type:" + type );
+            }
+
+        buffer.putInt( pos + 8, data );
+        return( index );
+    }
+
+    /**
+     *  Encodes the string directly into the buffer at the current
+     *  data position, advancing it, and returns the number of bytes
+     *  written.
+     */
+    private int putString( String s, int max ) throws IOException
+    {
+        int start = dataPos;
+        int len = Math.min( max, encodedLength( s ) );
+
+        buffer.position( start );
+        buffer.limit( start + len );
+        encoder.reset();
+        CoderResult result = encoder.encode( CharBuffer.wrap( s ), buffer, true );
+        if( result.isError() )
+            result.throwException();
+        encoder.flush( buffer );
+        buffer.limit( buffer.capacity() );
+
+        dataPos = start + len;
+        return( len );
+    }
+}
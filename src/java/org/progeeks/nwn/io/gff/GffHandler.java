@@ -0,0 +1,77 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.gff;
+
+import java.io.*;
+
+import org.progeeks.nwn.gff.*;
+
+/**
+ *  Callback interface for receiving the contents of a GFF file
+ *  as a stream of events instead of a fully built Struct tree.
+ *  See GffBufferReader.parse().
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public interface GffHandler
+{
+    /**
+     *  Called at the start of a struct.  The name is the label of the
+     *  STRUCTREF field containing the struct or null if the struct is
+     *  the root struct or an entry in a list.
+     */
+    public void startStruct( String name, int id ) throws IOException;
+
+    /**
+     *  Called for every field that is not a struct or a list.
+     */
+    public void field( Element element ) throws IOException;
+
+    /**
+     *  Called at the start of a LIST field.  The struct entries
+     *  of the list follow as startStruct()/endStruct() pairs.
+     */
+    public void startList( String name ) throws IOException;
+
+    /**
+     *  Called after the last struct in a LIST field.
+     */
+    public void endList( String name ) throws IOException;
+
+    /**
+     *  Called at the end of a struct with the same values
+     *  passed to the matching startStruct().
+     */
+    public void endStruct( String name, int id ) throws IOException;
+}
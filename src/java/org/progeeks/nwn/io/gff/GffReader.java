@@ -186,6 +186,14 @@ public class GffReader
             }
 
         int dataOffset = header.getValues().getOffset();
+
+        // Compressed files can have several fields pointing to the
+        // same payload in the data block.  Since the stubs are sorted
+        // those fields are next to each other... we just have to reuse
+        // the value since we can't go back and read it again.
+        Element lastData = null;
+        int lastDataOffset = -1;
+
 //System.out.println( "Data offset:" + dataOffset );
         for( int i = 0; i < fieldStubs.length; i++ )
             {
@@ -196,6 +204,12 @@ public class GffReader
             int len;
             byte[] buff;
 
+            if( lastData != null && stub.data == lastDataOffset && stub.type == lastData.getType() )
+                {
+                fields.set( stub.entryNumber, copyElement( lastData, name ) );
+                continue;
+                }
+
             switch( stub.type )
                 {
                 case Element.TYPE_UINT8:
@@ -306,9 +320,71 @@ for( Iterator it = charsets.keySet().iterator(); it.hasNext(); )
                 }
 
             fields.set( stub.entryNumber, el );
+
+            if( el != null && isDataBlockType( stub.type ) )
+                {
+                lastData = el;
+                lastDataOffset = stub.data;
+                }
+            }
+    }
+
+    private static boolean isDataBlockType( int type )
+    {
+        switch( type )
+            {
+            case Element.TYPE_UINT64:
+            case Element.TYPE_INT64:
+            case Element.TYPE_DOUBLE:
+            case Element.TYPE_STRING:
+            case Element.TYPE_RESREF:
+            case Element.TYPE_STRREF:
+            case Element.TYPE_DATREF:
+                return( true );
+            default:
+                return( false );
             }
     }
 
+    /**
+     *  Returns a copy of the specified data block element with
+     *  a new name.
+     */
+    private static Element copyElement( Element el, String name )
+    {
+        if( el instanceof StringElement )
+            return( new StringElement( name, el.getType(), ((StringElement)el).getValue() ) );
+
+        if( el instanceof LocalizedStringElement )
+            {
+            LocalizedStringElement lse = (LocalizedStringElement)el;
+            LocalizedStringElement result = new LocalizedStringElement( name, el.getType(),
+                                                                        lse.getReferenceId() );
+
+            // The first string added is the default value so make
+            // sure it goes in first.
+            Map strings = lse.getLocalStrings();
+            for( Iterator i = strings.entrySet().iterator(); i.hasNext(); )
+                {
+                Map.Entry e = (Map.Entry)i.next();
+                if( e.getValue() == lse.getValue() )
+                    result.addLocalString( ((Integer)e.getKey()).intValue(), (String)e.getValue() );
+                }
+            for( Iterator i = strings.entrySet().iterator(); i.hasNext(); )
+                {
+                Map.Entry e = (Map.Entry)i.next();
+                if( e.getValue() != lse.getValue() )
+                    result.addLocalString( ((Integer)e.getKey()).intValue(), (String)e.getValue() );
+                }
+            return( result );
+            }
+
+        Object value = ((ObjectElement)el).getValue();
+        if( value instanceof byte[] )
+            value = ((byte[])value).clone();
+        return( new ObjectElement( name, el.getType(), value ) );
+    }
+
     private void resolveFieldIndices( Stub[] structStubs ) throws IOException
     {
         int multimapOffset = header.getFieldIndices().getOffset();
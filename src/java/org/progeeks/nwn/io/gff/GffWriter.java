@@ -62,6 +62,17 @@ public class GffWriter
     private List elementStubs = new ArrayList();
     private List listStubs = new ArrayList();
 
+    /**
+     *  Maps ElementKeys to element indexes when compressing.
+     */
+    private Map elementMap = new HashMap();
+
+    /**
+     *  Maps ElementKeys without labels to data block offsets when
+     *  compressing so that identical payloads can be shared.
+     */
+    private Map payloadMap = new HashMap();
+
     /**
      *  Set to true if the writer should attempt to consolidate
      *  redundant elements.
@@ -158,20 +169,22 @@ public class GffWriter
 
         // If we're attempting to do extra compression then
         // reuse elements if possible.
+        ElementKey key = null;
         if( compress )
             {
-            i = elements.indexOf( el );
-            if( i >= 0 )
+            key = new ElementKey( el.getType(), el.getName(), getPayload( el ) );
+            Integer existing = (Integer)elementMap.get( key );
+            if( existing != null )
                 {
-                //System.out.println( "******** Reusing Element index:" + i );
-                //System.out.println( "Adding:" + el );
-                //System.out.println( "Reusing:" + elements.get( i ) );
-                return( i );
+                //System.out.println( "******** Reusing Element index:" + existing );
+                return( existing.intValue() );
                 }
             }
 
         i = elements.size();
         elements.add( el );
+        if( key != null )
+            elementMap.put( key, new Integer( i ) );
 
         ElementStub lastStub = (ElementStub)getLastItem( elementStubs );
 
@@ -209,11 +222,58 @@ public class GffWriter
             // they take extra care.
             stub.data = stub.getOffset();
             stub.size = el.getSize();
+
+            // See if an identical payload has already been written
+            // to the data block.
+            if( compress )
+                {
+                ElementKey payloadKey = new ElementKey( el.getType(), null, key.value );
+                Integer offset = (Integer)payloadMap.get( payloadKey );
+                if( offset != null )
+                    {
+                    stub.data = offset.intValue();
+                    stub.size = 0;
+                    stub.shared = true;
+                    }
+                else
+                    {
+                    payloadMap.put( payloadKey, new Integer( stub.data ) );
+                    }
+                }
             }
 
         return( i );
     }
 
+    /**
+     *  Returns an object representing the value of the specified element
+     *  that is suitable for hashing and comparison.
+     */
+    protected Object getPayload( Element el )
+    {
+        if( el instanceof IntElement )
+            return( new Integer( ((IntElement)el).getValue() ) );
+        if( el instanceof FloatElement )
+            return( new Integer( Float.floatToIntBits( ((FloatElement)el).getValue() ) ) );
+        if( el instanceof StringElement )
+            return( ((StringElement)el).getValue() );
+        if( el instanceof StructElement )
+            return( ((StructElement)el).getStruct() );
+        if( el instanceof ListElement )
+            return( ((ListElement)el).getValue() );
+        if( el instanceof LocalizedStringElement )
+            {
+            LocalizedStringElement lse = (LocalizedStringElement)el;
+            List result = new ArrayList( 2 );
+            result.add( new Integer( lse.getReferenceId() ) );
+            result.add( lse.getLocalStrings() );
+            return( result );
+            }
+        if( el instanceof ObjectElement )
+            return( ((ObjectElement)el).getValue() );
+        return( el );
+    }
+
     protected int addStruct( Struct struct )
     {
         int i;
@@ -371,9 +431,17 @@ public class GffWriter
         Long l;
         String s;
         byte[] sb;
+        Iterator stubs = elementStubs.iterator();
         for( Iterator i = elements.iterator(); i.hasNext(); )
             {
             Element el = (Element)i.next();
+            ElementStub elStub = (ElementStub)stubs.next();
+            if( elStub.shared )
+                {
+                // The payload was already written for another element
+                continue;
+                }
+
             switch( el.getType() )
                 {
                 case Element.TYPE_UINT8:
@@ -567,6 +635,9 @@ public class GffWriter
         int labelIndex;
         int data;
 
+        // True if the data points to another element's payload
+        boolean shared = false;
+
         public ElementStub( int type, int labelIndex, Stub previous )
         {
             super( previous );
@@ -580,6 +651,58 @@ public class GffWriter
         }
     }
 
+    /**
+     *  Hash key for an element's type, label, and payload.  byte[]
+     *  payloads are compared by content.
+     */
+    private static class ElementKey
+    {
+        int type;
+        String name;
+        Object value;
+        int hash;
+
+        public ElementKey( int type, String name, Object value )
+        {
+            this.type = type;
+            this.name = name;
+            this.value = value;
+
+            int h = type;
+            if( name != null )
+                h = h * 31 + name.hashCode();
+            if( value instanceof byte[] )
+                h = h * 31 + Arrays.hashCode( (byte[])value );
+            else if( value != null )
+                h = h * 31 + value.hashCode();
+            this.hash = h;
+        }
+
+        public int hashCode()
+        {
+            return( hash );
+        }
+
+        public boolean equals( Object obj )
+        {
+            if( !(obj instanceof ElementKey) )
+                return( false );
+
+            ElementKey key = (ElementKey)obj;
+            if( hash != key.hash || type != key.type )
+                return( false );
+
+            if( name != key.name && (name == null || !name.equals( key.name )) )
+                return( false );
+
+            if( value == key.value )
+                return( true );
+            if( value instanceof byte[] && key.value instanceof byte[] )
+                return( Arrays.equals( (byte[])value, (byte[])key.value ) );
+            return( value != null && value.equals( key.value ) );
+        }
+    }
+
     private class ListStub extends Stub
     {
         int indexSize = 0;
@@ -33,6 +33,7 @@
 package org.progeeks.nwn.io.gff;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import org.progeeks.nwn.io.*;
 
@@ -69,6 +70,27 @@ public class Header
         lists = new BlockIndex(in);
     }
 
+    /**
+     *  Reads the header from the start of the specified buffer.  The
+     *  buffer is expected to already be in little-endian order.
+     */
+    public Header( ByteBuffer in )
+    {
+        byte[] buff = new byte[4];
+        in.position( 0 );
+        in.get( buff );
+        type = new String(buff);
+        in.get( buff );
+        version = new String(buff);
+
+        structs = new BlockIndex(in);
+        fields = new BlockIndex(in);
+        labels = new BlockIndex(in);
+        values = new BlockIndex(in);
+        fieldIndices = new BlockIndex(in);
+        lists = new BlockIndex(in);
+    }
+
     public String getType()
     {
         return( type );
@@ -0,0 +1,192 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.gff;
+
+import java.io.*;
+import java.util.*;
+
+import org.progeeks.nwn.gff.*;
+
+/**
+ *  Struct view over the raw GFF data of a GffBufferReader that
+ *  only decodes field values as they are requested.  Looking up a
+ *  single field by name does not create elements for any of the
+ *  other fields in the struct and getInt()/getString() avoid
+ *  creating elements at all.  Anything that needs the whole set of
+ *  values or modifies the struct causes it to be fully resolved,
+ *  after which it behaves like a regular Struct.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class LazyStruct extends Struct
+{
+    private GffBufferReader reader;
+    private int index;
+    private boolean resolved = false;
+
+    LazyStruct( GffBufferReader reader, int id, int index )
+    {
+        super( id );
+        this.reader = reader;
+        this.index = index;
+    }
+
+    /**
+     *  Decodes all of the fields of this struct into the regular
+     *  Struct value map if that hasn't already been done.
+     */
+    protected void resolve()
+    {
+        if( resolved )
+            return;
+
+        int count = reader.getFieldCount( index );
+        List list = new ArrayList( count );
+        for( int i = 0; i < count; i++ )
+            {
+            list.add( decodeField( reader.getFieldIndex( index, i ) ) );
+            }
+
+        resolved = true;
+        super.setValues( list );
+    }
+
+    protected Element decodeField( int field )
+    {
+        try
+            {
+            return( reader.getField( field ) );
+            }
+        catch( IOException e )
+            {
+            throw new RuntimeException( "Error decoding field:" + field, e );
+            }
+    }
+
+    public void setValues( List values )
+    {
+        resolved = true;
+        super.setValues( values );
+    }
+
+    public Iterator values()
+    {
+        resolve();
+        return( super.values() );
+    }
+
+    public List getValues()
+    {
+        resolve();
+        return( super.getValues() );
+    }
+
+    public int getValueCount()
+    {
+        if( resolved )
+            return( super.getValueCount() );
+        return( reader.getUniqueFieldCount( index ) );
+    }
+
+    public void setValue( String name, Element element )
+    {
+        resolve();
+        super.setValue( name, element );
+    }
+
+    public Element getValue( String name )
+    {
+        if( resolved )
+            return( super.getValue( name ) );
+
+        int field = reader.findField( index, name );
+        if( field < 0 )
+            return( null );
+        return( decodeField( field ) );
+    }
+
+    public int getInt( String name )
+    {
+        if( resolved )
+            return( super.getInt( name ) );
+
+        int field = reader.findField( index, name );
+        if( field < 0 )
+            return( -1 );
+
+        switch( reader.getFieldType( field ) )
+            {
+            case Element.TYPE_UINT8:
+            case Element.TYPE_INT8:
+            case Element.TYPE_UINT16:
+            case Element.TYPE_INT16:
+            case Element.TYPE_UINT32:
+            case Element.TYPE_INT32:
+                return( reader.getFieldData( field ) );
+            default:
+                return( -1 );
+            }
+    }
+
+    public String getString( String name )
+    {
+        if( resolved )
+            return( super.getString( name ) );
+
+        int field = reader.findField( index, name );
+        if( field < 0 )
+            return( null );
+
+        try
+            {
+            return( reader.getFieldString( field ) );
+            }
+        catch( IOException e )
+            {
+            throw new RuntimeException( "Error decoding field:" + name, e );
+            }
+    }
+
+    protected Map getElementMap()
+    {
+        resolve();
+        return( super.getElementMap() );
+    }
+
+    public String toString()
+    {
+        resolve();
+        return( super.toString() );
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.key;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.progeeks.util.log.*;
+
+import org.progeeks.nwn.io.ChannelInputStream;
+import org.progeeks.nwn.io.TempFileUtils;
+import org.progeeks.nwn.resource.*;
+
+/**
+ *  A merged, read-only index of the resources in a set of key files
+ *  stored in a flat binary form that can be written to disk and memory
+ *  mapped back in on the next run without reparsing the key files.
+ *  When the same resource appears in more than one key file, the entry
+ *  from the later key file wins.  Lookups use absolute buffer reads so
+ *  an index may be shared by multiple threads.
+ *
+ *  <p>The format is little-endian:
+ *  <pre>
+ *  header:     magic "NKIX", version, key file count, BIF count,
+ *              entry count, hash table size, entry offset, table offset
+ *  key files:  per file: size (long), last modified (long), path
+ *  BIF files:  per file: path
+ *  entries:    per entry: name (16 bytes), type (short), BIF (short),
+ *              resource ID (int)
+ *  hash table: per slot: entry number + 1, or 0 if empty
+ *  </pre>
+ *  Paths are stored as an int length followed by UTF-8 bytes.</p>
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class KeyIndex
+{
+    static Log log = Log.getLog( KeyIndex.class );
+
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x58494b4e; // "NKIX"
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 24;
+    private static final int NAME_SIZE = 16;
+
+    private ByteBuffer buffer;
+    private int entryCount;
+    private int tableMask;
+    private int entryOffset;
+    private int tableOffset;
+    private File[] keyFiles;
+    private long[] keySizes;
+    private long[] keyTimes;
+    private File[] bifFiles;
+
+    protected KeyIndex( ByteBuffer buffer ) throws IOException
+    {
+        this.buffer = buffer;
+        buffer.order( ByteOrder.LITTLE_ENDIAN );
+
+        try
+            {
+            if( buffer.getInt( 0 ) != MAGIC )
+                throw new IOException( "Not a key index." );
+            if( buffer.getInt( 4 ) != VERSION )
+                throw new IOException( "Unsupported key index version:" + buffer.getInt( 4 ) );
+
+            int keyCount = buffer.getInt( 8 );
+            int bifCount = buffer.getInt( 12 );
+            entryCount = buffer.getInt( 16 );
+            int tableSize = buffer.getInt( 20 );
+            entryOffset = buffer.getInt( 24 );
+            tableOffset = buffer.getInt( 28 );
+
+            if( Integer.bitCount( tableSize ) != 1
+                || tableOffset + tableSize * 4L > buffer.limit()
+                || entryOffset + (long)entryCount * ENTRY_SIZE > tableOffset )
+                {
+                throw new IOException( "Corrupt key index." );
+                }
+            tableMask = tableSize - 1;
+
+            buffer.position( HEADER_SIZE );
+            keyFiles = new File[keyCount];
+            keySizes = new long[keyCount];
+            keyTimes = new long[keyCount];
+            for( int i = 0; i < keyCount; i++ )
+                {
+                keySizes[i] = buffer.getLong();
+                keyTimes[i] = buffer.getLong();
+                keyFiles[i] = new File( getString( buffer ) );
+                }
+
+            bifFiles = new File[bifCount];
+            for( int i = 0; i < bifCount; i++ )
+                bifFiles[i] = new File( getString( buffer ) );
+            }
+        catch( BufferUnderflowException e )
+            {
+            throw new EOFException( "Unexpected end of key index." );
+            }
+        catch( RuntimeException e )
+            {
+            IOException ioe = new IOException( "Corrupt key index." );
+            ioe.initCause( e );
+            throw ioe;
+            }
+    }
+
+    /**
+     *  Returns an index for the specified key files, reading it from the
+     *  cache file if the cache is up to date and otherwise building it from
+     *  the key files and trying to save it to the cache file for next time.
+     *  A cache that can't be written is not an error.  The cache is only
+     *  mapped once it is known to be current so that a stale one can
+     *  always be replaced.
+     */
+    public static KeyIndex load( File[] keyFiles, File cache ) throws IOException
+    {
+        if( cache != null && cache.exists() )
+            {
+            try
+                {
+                if( isCurrent( cache, keyFiles ) )
+                    return( read( cache ) );
+                }
+            catch( IOException e )
+                {
+                // We'll just rebuild it
+                }
+            }
+
+        KeyIndex index = create( keyFiles );
+        if( cache != null )
+            {
+            try
+                {
+                index.write( cache );
+                }
+            catch( IOException e )
+                {
+                log.warn( "Unable to write key index cache:" + cache, e );
+                }
+            }
+        return( index );
+    }
+
+    /**
+     *  Returns true if the specified index file was built from exactly
+     *  the specified key files and none of them have changed since.  Only
+     *  the header and the key file list are read, into a heap buffer, so
+     *  the file is never mapped.  Some platforms won't let a mapped file
+     *  be replaced until the mapping is garbage collected.
+     */
+    public static boolean isCurrent( File f, File[] files ) throws IOException
+    {
+        FileInputStream fIn = new FileInputStream( f );
+        try
+            {
+            FileChannel channel = fIn.getChannel();
+            if( channel.size() < HEADER_SIZE )
+                return( false );
+
+            ByteBuffer header = readBlock( channel, 0, HEADER_SIZE );
+            if( header.getInt( 0 ) != MAGIC || header.getInt( 4 ) != VERSION )
+                return( false );
+
+            // The key and BIF file lists fill the space up to the entries
+            int keyCount = header.getInt( 8 );
+            int entryOffset = header.getInt( 24 );
+            if( keyCount != files.length || entryOffset < HEADER_SIZE || entryOffset > channel.size() )
+                return( false );
+
+            ByteBuffer buff = readBlock( channel, HEADER_SIZE, entryOffset - HEADER_SIZE );
+            for( int i = 0; i < keyCount; i++ )
+                {
+                long size = buff.getLong();
+                long time = buff.getLong();
+                if( !isUnchanged( files[i], new File( getString( buff ) ), size, time ) )
+                    return( false );
+                }
+            return( true );
+            }
+        catch( BufferUnderflowException e )
+            {
+            return( false );
+            }
+        finally
+            {
+            fIn.close();
+            }
+    }
+
+    private static ByteBuffer readBlock( FileChannel channel, long position, int size ) throws IOException
+    {
+        ByteBuffer buff = ByteBuffer.allocate( size );
+        buff.order( ByteOrder.LITTLE_ENDIAN );
+        ChannelInputStream.readFully( channel, buff, position );
+        buff.flip();
+        return( buff );
+    }
+
+    /**
+     *  Memory maps the specified index file.
+     */
+    public static KeyIndex read( File f ) throws IOException
+    {
+        FileInputStream fIn = new FileInputStream( f );
+        try
+            {
+            FileChannel channel = fIn.getChannel();
+            return( new KeyIndex( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ) ) );
+            }
+        finally
+            {
+            // The mapping stays valid after the channel is closed.
+            fIn.close();
+            }
+    }
+
+    /**
+     *  Builds a new in-memory index from the specified key files.
+     */
+    public static KeyIndex create( File[] keyFiles ) throws IOException
+    {
+        List bifs = new ArrayList();
+        Map bifMap = new HashMap();
+
+        // Later key files override earlier ones
+        Map entries = new LinkedHashMap();
+        for( int k = 0; k < keyFiles.length; k++ )
+            {
+            FileInputStream fIn = new FileInputStream( keyFiles[k] );
+            try
+                {
+                File parent = keyFiles[k].getAbsoluteFile().getParentFile();
+                KeyReader reader = new KeyReader( new BufferedInputStream( fIn, 65536 ) );
+                for( Iterator i = reader.getFiles().iterator(); i.hasNext(); )
+                    {
+                    KeyReader.FileEntry file = (KeyReader.FileEntry)i.next();
+
+                    // Bioware encodes \'s in the path which don't work
+                    // everywhere.
+                    String fileName = file.getFileName();
+                    if( File.separatorChar != '\\' )
+                        fileName = fileName.replaceAll( "\\\\", "/" );
+
+                    String path = new File( parent, fileName ).getPath();
+                    Integer bif = (Integer)bifMap.get( path );
+                    if( bif == null )
+                        {
+                        bif = new Integer( bifs.size() );
+                        bifMap.put( path, bif );
+                        bifs.add( path );
+                        }
+
+                    for( Iterator j = file.getKeyEntries().iterator(); j.hasNext(); )
+                        {
+                        KeyReader.KeyEntry key = (KeyReader.KeyEntry)j.next();
+                        ResourceKey rk = key.getKey();
+                        checkKey( rk );
+                        entries.put( rk, new int[] { bif.intValue(), key.getResourceId() } );
+                        }
+                    }
+                }
+            finally
+                {
+                fIn.close();
+                }
+            }
+
+        if( bifs.size() > 0xffff )
+            throw new IOException( "Too many BIF files for key index:" + bifs.size() );
+
+        // Figure out the layout
+        byte[][] keyPaths = new byte[keyFiles.length][];
+        int size = HEADER_SIZE;
+        for( int i = 0; i < keyFiles.length; i++ )
+            {
+            keyPaths[i] = keyFiles[i].getAbsolutePath().getBytes( "UTF-8" );
+            size += 8 + 8 + 4 + keyPaths[i].length;
+            }
+        byte[][] bifPaths = new byte[bifs.size()][];
+        for( int i = 0; i < bifPaths.length; i++ )
+            {
+            bifPaths[i] = ((String)bifs.get(i)).getBytes( "UTF-8" );
+            size += 4 + bifPaths[i].length;
+            }
+
+        int entryOffset = (size + 3) & ~3;
+        int tableOffset = entryOffset + entries.size() * ENTRY_SIZE;
+        int tableSize = Integer.highestOneBit( Math.max( 16, entries.size() * 2 ) - 1 ) << 1;
+        size = tableOffset + tableSize * 4;
+
+        ByteBuffer buff = ByteBuffer.allocate( size );
+        buff.order( ByteOrder.LITTLE_ENDIAN );
+        buff.putInt( MAGIC );
+        buff.putInt( VERSION );
+        buff.putInt( keyFiles.length );
+        buff.putInt( bifs.size() );
+        buff.putInt( entries.size() );
+        buff.putInt( tableSize );
+        buff.putInt( entryOffset );
+        buff.putInt( tableOffset );
+
+        for( int i = 0; i < keyFiles.length; i++ )
+            {
+            buff.putLong( keyFiles[i].length() );
+            buff.putLong( keyFiles[i].lastModified() );
+            buff.putInt( keyPaths[i].length );
+            buff.put( keyPaths[i] );
+            }
+        for( int i = 0; i < bifPaths.length; i++ )
+            {
+            buff.putInt( bifPaths[i].length );
+            buff.put( bifPaths[i] );
+            }
+
+        int mask = tableSize - 1;
+        int entry = 0;
+        for( Iterator i = entries.entrySet().iterator(); i.hasNext(); entry++ )
+            {
+            Map.Entry e = (Map.Entry)i.next();
+            ResourceKey key = (ResourceKey)e.getKey();
+            int[] location = (int[])e.getValue();
+
+            int pos = entryOffset + entry * ENTRY_SIZE;
+            String name = key.getName();
+            for( int c = 0; c < name.length(); c++ )
+                buff.put( pos + c, (byte)name.charAt(c) );
+            buff.putShort( pos + NAME_SIZE, (short)key.getType() );
+            buff.putShort( pos + NAME_SIZE + 2, (short)location[0] );
+            buff.putInt( pos + NAME_SIZE + 4, location[1] );
+
+            int slot = hash( name, key.getType() ) & mask;
+            while( buff.getInt( tableOffset + slot * 4 ) != 0 )
+                slot = (slot + 1) & mask;
+            buff.putInt( tableOffset + slot * 4, entry + 1 );
+            }
+
+        buff.clear();
+        return( new KeyIndex( buff ) );
+    }
+
+    private static void checkKey( ResourceKey key ) throws IOException
+    {
+        String name = key.getName();
+        if( key.getType() < 0 || key.getType() > 0xffff )
+            throw new IOException( "Unsupported resource type for key index:" + key );
+        if( name.length() > NAME_SIZE )
+            throw new IOException( "Resource name too long for key index:" + name );
+        for( int i = 0; i < name.length(); i++ )
+            {
+            char c = name.charAt(i);
+            if( c == 0 || c > 0xff )
+                throw new IOException( "Unsupported resource name for key index:" + name );
+            }
+    }
+
+    private static int hash( String name, int type )
+    {
+        int h = type & 0xffff;
+        for( int i = 0; i < name.length(); i++ )
+            h = 31 * h + name.charAt(i);
+        return( h ^ (h >>> 16) );
+    }
+
+    private static String getString( ByteBuffer buff ) throws IOException
+    {
+        int length = buff.getInt();
+        if( length < 0 || length > buff.remaining() )
+            throw new IOException( "Corrupt key index." );
+        byte[] bytes = new byte[length];
+        buff.get( bytes );
+        return( new String( bytes, "UTF-8" ) );
+    }
+
+    /**
+     *  Writes this index to the specified file.  The index is written to
+     *  a temporary file first and then renamed so that other processes
+     *  never see a partial index.
+     */
+    public void write( File f ) throws IOException
+    {
+        File temp = TempFileUtils.createTempFile( f );
+        try
+            {
+            FileOutputStream fOut = new FileOutputStream( temp );
+            try
+                {
+                ByteBuffer buff = buffer.duplicate();
+                buff.clear();
+                FileChannel channel = fOut.getChannel();
+                while( buff.hasRemaining() )
+                    channel.write( buff );
+                }
+            finally
+                {
+                fOut.close();
+                }
+
+            TempFileUtils.replaceFile( temp, f );
+            }
+        finally
+            {
+            if( temp.exists() )
+                temp.delete();
+            }
+    }
+
+    /**
+     *  Returns true if this index was built from exactly the specified
+     *  key files and none of them have changed size or modification time
+     *  since.
+     */
+    public boolean isValidFor( File[] files )
+    {
+        if( files.length != keyFiles.length )
+            return( false );
+        for( int i = 0; i < files.length; i++ )
+            {
+            if( !isUnchanged( files[i], keyFiles[i], keySizes[i], keyTimes[i] ) )
+                return( false );
+            }
+        return( true );
+    }
+
+    /**
+     *  Returns true if the file is the key file recorded in an index
+     *  and still has the recorded size and modification time.
+     */
+    private static boolean isUnchanged( File file, File keyFile, long size, long time )
+    {
+        return( file.getAbsoluteFile().equals( keyFile )
+                && file.length() == size && file.lastModified() == time );
+    }
+
+    public int getEntryCount()
+    {
+        return( entryCount );
+    }
+
+    /**
+     *  Returns the entry number for the specified key or -1 if the
+     *  key is not in the index.  Names are case sensitive just like
+     *  ResourceKey.equals().
+     */
+    public int indexOf( ResourceKey key )
+    {
+        String name = key.getName();
+        int type = key.getType();
+        if( name.length() > NAME_SIZE || type < 0 || type > 0xffff )
+            return( -1 );
+
+        int slot = hash( name, type ) & tableMask;
+        while( true )
+            {
+            int entry = buffer.getInt( tableOffset + slot * 4 ) - 1;
+            if( entry < 0 )
+                return( -1 );
+            if( matches( entry, name, type ) )
+                return( entry );
+            slot = (slot + 1) & tableMask;
+            }
+    }
+
+    private boolean matches( int entry, String name, int type )
+    {
+        int pos = entryOffset + entry * ENTRY_SIZE;
+        if( (buffer.getShort( pos + NAME_SIZE ) & 0xffff) != type )
+            return( false );
+
+        int len = name.length();
+        for( int i = 0; i < len; i++ )
+            {
+            if( (buffer.get( pos + i ) & 0xff) != name.charAt(i) )
+                return( false );
+            }
+        return( len == NAME_SIZE || buffer.get( pos + len ) == 0 );
+    }
+
+    public ResourceKey getKey( int entry )
+    {
+        int pos = entryOffset + entry * ENTRY_SIZE;
+        char[] name = new char[NAME_SIZE];
+        int len = 0;
+        while( len < NAME_SIZE && buffer.get( pos + len ) != 0 )
+            {
+            name[len] = (char)(buffer.get( pos + len ) & 0xff);
+            len++;
+            }
+        return( new ResourceKey( new String( name, 0, len ), buffer.getShort( pos + NAME_SIZE ) & 0xffff ) );
+    }
+
+    /**
+     *  Returns the BIF file containing the specified entry.
+     */
+    public File getBifFile( int entry )
+    {
+        int pos = entryOffset + entry * ENTRY_SIZE;
+        return( bifFiles[buffer.getShort( pos + NAME_SIZE + 2 ) & 0xffff] );
+    }
+
+    /**
+     *  Returns the key file resource ID of the specified entry.  The
+     *  lower 14 bits are the index into the BIF's variable resource
+     *  table.
+     */
+    public int getResourceId( int entry )
+    {
+        int pos = entryOffset + entry * ENTRY_SIZE;
+        return( buffer.getInt( pos + NAME_SIZE + 4 ) );
+    }
+
+    public String toString()
+    {
+        return( "KeyIndex[keys:" + keyFiles.length + ", bifs:" + bifFiles.length + ", entries:" + entryCount + "]" );
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.xml;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.stream.*;
+
+import org.progeeks.nwn.gff.*;
+
+/**
+ *  Reads the XML written by GffXmlWriter using a StAX stream
+ *  reader.  This produces the same Struct trees as GffXmlReader
+ *  but builds the elements directly as the tags are read rather
+ *  than going through per-tag handler objects.  Field labels are
+ *  shared between all of the files read by one reader instance.
+ *  Instances are not thread-safe.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class GffXmlStreamReader
+{
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private static XMLInputFactory factory;
+
+    private String name;
+    private String type;
+    private String version;
+    private Struct root;
+
+    /**
+     *  Maps labels to the shared copy of that label.
+     */
+    private Map labels = new HashMap();
+
+    private Object[] stack = new Object[32];
+    private int depth;
+    private StringBuffer text = new StringBuffer();
+    private StringBuffer data = new StringBuffer();
+
+    public GffXmlStreamReader()
+    {
+    }
+
+    private static synchronized XMLStreamReader createReader( Reader in ) throws XMLStreamException
+    {
+        if( factory == null )
+            {
+            factory = XMLInputFactory.newInstance();
+            factory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE );
+            factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+            factory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.FALSE );
+
+            // The JDK's parser reports data blocks as plain characters
+            // unless asked not to.
+            if( factory.isPropertySupported( REPORT_CDATA ) )
+                factory.setProperty( REPORT_CDATA, Boolean.TRUE );
+            }
+        return( factory.createXMLStreamReader( in ) );
+    }
+
+    /**
+     *  Returns the resource name of the last file read.
+     */
+    public String getName()
+    {
+        return( name );
+    }
+
+    /**
+     *  Returns the resource type string of the last file read.
+     */
+    public String getType()
+    {
+        return( type );
+    }
+
+    /**
+     *  Returns the resource version of the last file read.
+     */
+    public String getVersion()
+    {
+        return( version );
+    }
+
+    public void reset()
+    {
+        name = null;
+        root = null;
+    }
+
+    /**
+     *  Reads the XML from the specified reader and returns the
+     *  root Struct.
+     */
+    public Object readObject( Reader in ) throws IOException
+    {
+        reset();
+        depth = 0;
+        try
+            {
+            XMLStreamReader xml = createReader( in );
+            try
+                {
+                read( xml );
+                }
+            finally
+                {
+                xml.close();
+                }
+            return( root );
+            }
+        catch( XMLStreamException e )
+            {
+            IOException ioe = new IOException( "Error reading XML: " + e.getMessage() );
+            ioe.initCause( e );
+            throw ioe;
+            }
+        finally
+            {
+            // Don't hold on to the last tree
+            Arrays.fill( stack, null );
+            }
+    }
+
+    private void read( XMLStreamReader xml ) throws XMLStreamException
+    {
+        while( xml.hasNext() )
+            {
+            switch( xml.next() )
+                {
+                case XMLStreamConstants.START_ELEMENT:
+                    startTag( xml );
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    endTag( xml );
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    // Only string elements care about their text
+                    if( depth > 0 && stack[depth - 1] instanceof StringElement )
+                        text.append( xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength() );
+                    break;
+                }
+            }
+    }
+
+    private void startTag( XMLStreamReader xml ) throws XMLStreamException
+    {
+        String tag = xml.getLocalName();
+        Object parent = depth == 0 ? null : stack[depth - 1];
+
+        switch( tag.charAt( 0 ) )
+            {
+            case 'e':
+                if( "element".equals( tag ) )
+                    {
+                    push( readElement( xml, parent ) );
+                    return;
+                    }
+                break;
+            case 's':
+                if( "struct".equals( tag ) )
+                    {
+                    push( readStruct( xml, parent ) );
+                    return;
+                    }
+                break;
+            case 'v':
+                if( "value".equals( tag ) )
+                    {
+                    readValue( xml, parent );
+                    return;
+                    }
+                break;
+            case 'l':
+                if( "localString".equals( tag ) )
+                    {
+                    push( readLocalString( xml, parent ) );
+                    return;
+                    }
+                break;
+            case 'g':
+                if( "gff".equals( tag ) )
+                    {
+                    reset();
+                    name = xml.getAttributeValue( null, "name" );
+                    type = xml.getAttributeValue( null, "type" );
+                    version = xml.getAttributeValue( null, "version" );
+                    push( null );
+                    return;
+                    }
+                break;
+            }
+
+        // Unknown tags are ignored along with anything in them
+        skipTag( xml );
+    }
+
+    private void endTag( XMLStreamReader xml )
+    {
+        Object obj = stack[--depth];
+        stack[depth] = null;
+
+        if( obj instanceof StringElement )
+            {
+            // A string without a value attribute or value tag
+            // takes the text of the element itself.
+            StringElement se = (StringElement)obj;
+            if( se.getValue() == null )
+                se.setValue( text.toString() );
+            }
+    }
+
+    private void push( Object obj )
+    {
+        if( depth == stack.length )
+            {
+            Object[] temp = new Object[depth * 2];
+            System.arraycopy( stack, 0, temp, 0, depth );
+            stack = temp;
+            }
+        stack[depth++] = obj;
+        text.setLength( 0 );
+    }
+
+    private void skipTag( XMLStreamReader xml ) throws XMLStreamException
+    {
+        int level = 1;
+        while( level > 0 )
+            {
+            int event = xml.next();
+            if( event == XMLStreamConstants.START_ELEMENT )
+                level++;
+            else if( event == XMLStreamConstants.END_ELEMENT )
+                level--;
+            }
+    }
+
+    private String getLabel( String label )
+    {
+        if( label == null )
+            return( null );
+        String shared = (String)labels.get( label );
+        if( shared == null )
+            {
+            labels.put( label, label );
+            shared = label;
+            }
+        return( shared );
+    }
+
+    // <struct id="-1" >
+    private Struct readStruct( XMLStreamReader xml, Object parent )
+    {
+        int id = Integer.parseInt( xml.getAttributeValue( null, "id" ) );
+
+        Struct struct = new Struct( id );
+
+        if( parent == null )
+            root = struct;
+        else if( parent instanceof StructElement )
+            ((StructElement)parent).setStruct( struct );
+        else if( parent instanceof ListElement )
+            ((ListElement)parent).addValue( struct );
+        else
+            throw new RuntimeException( "Unknown parent type:" + parent.getClass() );
+
+        return( struct );
+    }
+
+    // <element name="AreaProperties" type="14" >
+    // <element name="AmbientSndDay" type="5" value="51" />
+    private Element readElement( XMLStreamReader xml, Object parent )
+    {
+        String label = null;
+        String typeValue = null;
+        String value = null;
+
+        for( int i = xml.getAttributeCount() - 1; i >= 0; i-- )
+            {
+            String att = xml.getAttributeLocalName( i );
+            switch( att.charAt( 0 ) )
+                {
+                case 'n':
+                    if( "name".equals( att ) )
+                        label = getLabel( xml.getAttributeValue( i ) );
+                    break;
+                case 't':
+                    if( "type".equals( att ) )
+                        typeValue = xml.getAttributeValue( i );
+                    break;
+                case 'v':
+                    if( "value".equals( att ) )
+                        value = xml.getAttributeValue( i );
+                    break;
+                }
+            }
+
+        int elementType = Integer.parseInt( typeValue );
+        Element el;
+
+        switch( elementType )
+            {
+            case Element.TYPE_UINT8:
+            case Element.TYPE_INT8:
+            case Element.TYPE_UINT16:
+            case Element.TYPE_INT16:
+            case Element.TYPE_UINT32:
+            case Element.TYPE_INT32:
+                el = new IntElement( label, elementType, Integer.parseInt( value ) );
+                break;
+            case Element.TYPE_FLOAT:
+                el = new FloatElement( label, elementType, Float.parseFloat( value ) );
+                break;
+            case Element.TYPE_UINT64:
+            case Element.TYPE_INT64:
+                el = new ObjectElement( label, elementType, new Long( value ) );
+                break;
+            case Element.TYPE_DOUBLE:
+                el = new ObjectElement( label, elementType, new Double( value ) );
+                break;
+            case Element.TYPE_STRING:
+            case Element.TYPE_RESREF:
+                // Multi-line strings come from a nested value tag
+                el = new StringElement( label, elementType, value );
+                break;
+            case Element.TYPE_STRREF:
+                el = new LocalizedStringElement( label, elementType, Integer.parseInt( value ) );
+                break;
+            case Element.TYPE_DATREF:
+                // We don't really handle this type correctly yet.
+                el = new ObjectElement( label, elementType );
+                el.setStringValue( value );
+                break;
+            case Element.TYPE_STRUCTREF:
+                // We'll pick up the struct as a nested tag
+                el = new StructElement( label, elementType, null );
+                break;
+            case Element.TYPE_LIST:
+                // We'll pick up the entries as nested tags
+                el = new ListElement( label, elementType );
+                break;
+            default:
+                throw new RuntimeException( "Cannot calculate size for type." );
+            }
+
+        if( parent instanceof Struct )
+            ((Struct)parent).addValue( el );
+        else
+            throw new RuntimeException( "Unknown parent type:" + (parent == null ? null : parent.getClass()) );
+
+        return( el );
+    }
+
+    // <localString languageId="0" value="Some text" />
+    private Object readLocalString( XMLStreamReader xml, Object parent )
+    {
+        if( !(parent instanceof LocalizedStringElement) )
+            throw new RuntimeException( "Unknown parent type:" + (parent == null ? null : parent.getClass()) );
+
+        LocalizedStringElement el = (LocalizedStringElement)parent;
+        int langId = Integer.parseInt( xml.getAttributeValue( null, "languageId" ) );
+        String value = xml.getAttributeValue( null, "value" );
+        if( value != null )
+            {
+            el.addLocalString( langId, value );
+            return( null );
+            }
+
+        // The text comes from a nested value tag
+        return( new LocalStringHolder( el, langId ) );
+    }
+
+    /**
+     *  Reads the contents of a value tag and applies it to the parent.
+     *  GffXmlWriter writes values as a data block so when there is one
+     *  only its contents are used.
+     */
+    private void readValue( XMLStreamReader xml, Object parent ) throws XMLStreamException
+    {
+        StringBuffer chars = new StringBuffer();
+        data.setLength( 0 );
+        boolean hasData = false;
+
+        int level = 1;
+        while( level > 0 )
+            {
+            switch( xml.next() )
+                {
+                case XMLStreamConstants.START_ELEMENT:
+                    level++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    level--;
+                    break;
+                case XMLStreamConstants.CDATA:
+                    hasData = true;
+                    data.append( xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength() );
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    if( !hasData )
+                        chars.append( xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength() );
+                    break;
+                }
+            }
+
+        String value = hasData ? data.toString() : chars.toString();
+        if( parent instanceof StringElement )
+            {
+            ((StringElement)parent).setValue( value );
+            }
+        else if( parent instanceof LocalStringHolder )
+            {
+            // Resolve the holder to the original element
+            LocalStringHolder holder = (LocalStringHolder)parent;
+            holder.el.addLocalString( holder.languageId, value );
+            }
+        else
+            {
+            throw new RuntimeException( "Unknown parent type:" + (parent == null ? null : parent.getClass()) );
+            }
+    }
+
+    private static class LocalStringHolder
+    {
+        LocalizedStringElement el;
+        int languageId;
+
+        public LocalStringHolder( LocalizedStringElement el, int languageId )
+        {
+            this.el = el;
+            this.languageId = languageId;
+        }
+    }
+}
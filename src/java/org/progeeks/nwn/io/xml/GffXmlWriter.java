@@ -39,53 +39,128 @@ import org.progeeks.meta.xml.*;
 import org.progeeks.util.xml.*;
 
 import org.progeeks.nwn.gff.*;
+import org.progeeks.nwn.io.gff.GffHandler;
 
 /**
  *  This writes Gff elements as XML tags.  This is not a
- *  standard Writer implementation.
+ *  standard Writer implementation.  As a GffHandler it can
+ *  also write the events from GffBufferReader.parse() directly
+ *  without a Struct tree being built first.  Output goes through
+ *  the faster XmlBufferWriter, which writes exactly what
+ *  XmlPrintWriter does, unless the nwn.xml.fastWriter system
+ *  property is set to false.
  *
  *  @version   $Revision$
  *  @author    Paul Speed
  */
-public class GffXmlWriter
+public class GffXmlWriter implements GffHandler
 {
+    private static final String[] TYPE_NAMES = new String[Element.TYPE_STRUCT + 1];
+    static
+        {
+        for( int i = 0; i < TYPE_NAMES.length; i++ )
+            TYPE_NAMES[i] = String.valueOf( i );
+        }
+
+    private static final boolean FAST_PATH = !"false".equals( System.getProperty( "nwn.xml.fastWriter" ) );
+
     private String name;
     private String type;
     private String version;
     private XmlPrintWriter out;
+    private XmlBufferWriter fast;
 
     public GffXmlWriter( String resourceName, String type, String version, Writer out )
+    {
+        this( resourceName, type, version, out, FAST_PATH );
+    }
+
+    /**
+     *  Returns true if writers created without specifying a path
+     *  write through XmlBufferWriter.
+     */
+    public static boolean isFastPathDefault()
+    {
+        return( FAST_PATH );
+    }
+
+    /**
+     *  Creates a writer that writes through an XmlBufferWriter if
+     *  useFastPath is true or through XmlPrintWriter otherwise.
+     */
+    public GffXmlWriter( String resourceName, String type, String version, Writer out,
+                         boolean useFastPath )
     {
         this.name = resourceName;
         this.type = type;
         this.version = version;
-        this.out = new XmlPrintWriter( out );
+        if( useFastPath )
+            this.fast = new XmlBufferWriter( out );
+        else
+            this.out = new XmlPrintWriter( out );
 
         init();
     }
 
     protected void init()
     {
-        out.startComment();
-        out.println( "This file was generated by the NWNTools GFF to XML writer." );
-        out.println( "http://nwntools.sf.net/" );
-        out.println( "** Do not hand edit unless you know what you are doing. **" );
-        out.closeComment();
+        startComment();
+        println( "This file was generated by the NWNTools GFF to XML writer." );
+        println( "http://nwntools.sf.net/" );
+        println( "** Do not hand edit unless you know what you are doing. **" );
+        closeComment();
 
-        out.pushTag( "gff" );
-        out.printAttribute( "name", name );
-        out.printAttribute( "type", type );
-        out.printAttribute( "version", version );
+        pushTag( "gff" );
+        printAttribute( "name", name );
+        printAttribute( "type", type );
+        printAttribute( "version", version );
     }
 
     public void writeStruct( Struct struct )
     {
-        out.pushTag( "struct" );
-        out.printAttribute( "id", String.valueOf( struct.getId() ) );
+        pushTag( "struct" );
+        printAttribute( "id", struct.getId() );
 
         writeElements( struct.getValues() );
 
-        out.popTag();
+        popTag();
+    }
+
+    public void startStruct( String name, int id )
+    {
+        if( name != null )
+            {
+            pushTag( "element" );
+            printAttribute( "name", name );
+            printType( Element.TYPE_STRUCTREF );
+            }
+
+        pushTag( "struct" );
+        printAttribute( "id", id );
+    }
+
+    public void field( Element element )
+    {
+        writeElement( element );
+    }
+
+    public void startList( String name )
+    {
+        pushTag( "element" );
+        printAttribute( "name", name );
+        printType( Element.TYPE_LIST );
+    }
+
+    public void endList( String name )
+    {
+        popTag();
+    }
+
+    public void endStruct( String name, int id )
+    {
+        popTag();
+        if( name != null )
+            popTag();
     }
 
     protected void writeElements( List elements )
@@ -104,9 +179,9 @@ public class GffXmlWriter
 
     protected void writeElement( Element el )
     {
-        out.pushTag( "element" );
-        out.printAttribute( "name", el.getName() );
-        out.printAttribute( "type", String.valueOf( el.getType() ) );
+        pushTag( "element" );
+        printAttribute( "name", el.getName() );
+        printType( el.getType() );
 
         if( el instanceof StructElement )
             {
@@ -124,59 +199,149 @@ public class GffXmlWriter
             String val = se.getValue();
             // no attribute means no value
             if( val != null )
-                {
-                if( val.indexOf( '\r' ) < 0 && val.indexOf( '\n' ) < 0 )
-                    {
-                    out.printAttribute( "value", val );
-                    }
-                else
-                    {
-                    out.pushTag( "value" );
-                    out.startDataBlock();
-                    out.print( val );
-                    out.closeDataBlock();
-                    out.popTag();
-                    }
-                }
+                writeValue( val );
             }
         else if( el instanceof LocalizedStringElement )
             {
             LocalizedStringElement se = (LocalizedStringElement)el;
 
-            out.printAttribute( "value", String.valueOf( se.getReferenceId() ) );
+            printAttribute( "value", se.getReferenceId() );
 
             for( Iterator i = se.getLocalStrings().entrySet().iterator(); i.hasNext(); )
                 {
                 Map.Entry e = (Map.Entry)i.next();
-                out.pushTag( "localString" );
-                out.printAttribute( "languageId", e.getKey().toString() );
-                String val = (String)e.getValue();
-                if( val.indexOf( '\r' ) < 0 && val.indexOf( '\n' ) < 0 )
-                    {
-                    out.printAttribute( "value", val );
-                    }
-                else
-                    {
-                    out.pushTag( "value" );
-                    out.startDataBlock();
-                    out.print( val );
-                    out.closeDataBlock();
-                    out.popTag();
-                    }
-                out.popTag();
+                pushTag( "localString" );
+                printAttribute( "languageId", ((Integer)e.getKey()).intValue() );
+                writeValue( (String)e.getValue() );
+                popTag();
                 }
             }
+        else if( el instanceof IntElement )
+            {
+            printAttribute( "value", ((IntElement)el).getValue() );
+            }
         else
             {
-            out.printAttribute( "value", el.getStringValue() );
+            printAttribute( "value", el.getStringValue() );
             }
 
-        out.popTag();
+        popTag();
+    }
+
+    /**
+     *  Writes a string as a value attribute or as a nested value
+     *  tag if it has line breaks.
+     */
+    private void writeValue( String val )
+    {
+        if( val.indexOf( '\r' ) < 0 && val.indexOf( '\n' ) < 0 )
+            {
+            printAttribute( "value", val );
+            }
+        else
+            {
+            pushTag( "value" );
+            startDataBlock();
+            print( val );
+            closeDataBlock();
+            popTag();
+            }
+    }
+
+    private void printType( int elementType )
+    {
+        if( elementType >= 0 && elementType < TYPE_NAMES.length )
+            printAttribute( "type", TYPE_NAMES[elementType] );
+        else
+            printAttribute( "type", elementType );
+    }
+
+    private void pushTag( String tag )
+    {
+        if( fast != null )
+            fast.pushTag( tag );
+        else
+            out.pushTag( tag );
+    }
+
+    private void popTag()
+    {
+        if( fast != null )
+            fast.popTag();
+        else
+            out.popTag();
+    }
+
+    private void printAttribute( String attribute, String value )
+    {
+        if( fast != null )
+            fast.printAttribute( attribute, value );
+        else
+            out.printAttribute( attribute, value );
+    }
+
+    private void printAttribute( String attribute, int value )
+    {
+        if( fast != null )
+            fast.printAttribute( attribute, value );
+        else
+            out.printAttribute( attribute, String.valueOf( value ) );
+    }
+
+    private void startDataBlock()
+    {
+        if( fast != null )
+            fast.startDataBlock();
+        else
+            out.startDataBlock();
+    }
+
+    private void closeDataBlock()
+    {
+        if( fast != null )
+            fast.closeDataBlock();
+        else
+            out.closeDataBlock();
+    }
+
+    private void print( String s )
+    {
+        if( fast != null )
+            fast.print( s );
+        else
+            out.print( s );
+    }
+
+    private void startComment()
+    {
+        if( fast != null )
+            fast.startComment();
+        else
+            out.startComment();
+    }
+
+    private void println( String s )
+    {
+        if( fast != null )
+            fast.println( s );
+        else
+            out.println( s );
+    }
+
+    private void closeComment()
+    {
+        if( fast != null )
+            fast.closeComment();
+        else
+            out.closeComment();
     }
 
     public void close()
     {
-        out.popTag();
-        out.close();
+        popTag();
+        if( fast != null )
+            fast.close();
+        else
+            out.close();
     }
 }
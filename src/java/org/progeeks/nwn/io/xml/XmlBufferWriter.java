@@ -0,0 +1,358 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.xml;
+
+import java.io.*;
+
+/**
+ *  Writes indented XML tags into a reusable character buffer that
+ *  is flushed to the underlying Writer in large blocks.  Tags and
+ *  attributes are formatted the same way as XmlPrintWriter but
+ *  integers are formatted in place and attribute values are only
+ *  escaped when a scan finds something that needs it.  Only the
+ *  characters that XmlPrintWriter escapes are escaped so the output
+ *  is identical to it.  Like PrintWriter, write errors are not thrown
+ *  and are reported by checkError() instead.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class XmlBufferWriter
+{
+    private static final char[] LINE_END = System.getProperty( "line.separator", "\n" ).toCharArray();
+    private static final char[] INDENT = "    ".toCharArray();
+    private static final char[] OPEN_END = " >".toCharArray();
+    private static final char[] EMPTY_END = " />".toCharArray();
+    private static final char[] DATA_START = "<![CDATA[".toCharArray();
+    private static final char[] DATA_END = "]]>".toCharArray();
+    private static final char[] COMMENT_START = "<!--".toCharArray();
+    private static final char[] COMMENT_END = "-->".toCharArray();
+
+    private Writer out;
+    private char[] buff = new char[16384];
+    private int pos;
+
+    private String[] tags = new String[32];
+    private int depth;
+    private boolean tagOpen;
+    private boolean error;
+
+    public XmlBufferWriter( Writer out )
+    {
+        this.out = out;
+    }
+
+    /**
+     *  Starts a new tag nested in the current one.  Attributes can be
+     *  added until the next tag or data is written.
+     */
+    public void pushTag( String tag )
+    {
+        closeTagStart();
+        indent( depth );
+        append( '<' );
+        append( tag );
+
+        if( depth == tags.length )
+            {
+            String[] temp = new String[depth * 2];
+            System.arraycopy( tags, 0, temp, 0, depth );
+            tags = temp;
+            }
+        tags[depth++] = tag;
+        tagOpen = true;
+    }
+
+    public void printAttribute( String name, String value )
+    {
+        append( ' ' );
+        append( name );
+        append( '=' );
+        append( '"' );
+        appendEscaped( value );
+        append( '"' );
+    }
+
+    public void printAttribute( String name, int value )
+    {
+        append( ' ' );
+        append( name );
+        append( '=' );
+        append( '"' );
+        appendInt( value );
+        append( '"' );
+    }
+
+    public void popTag()
+    {
+        String tag = tags[--depth];
+        tags[depth] = null;
+        if( tagOpen )
+            {
+            append( EMPTY_END );
+            tagOpen = false;
+            }
+        else
+            {
+            indent( depth );
+            append( '<' );
+            append( '/' );
+            append( tag );
+            append( '>' );
+            }
+        append( LINE_END );
+    }
+
+    public void startDataBlock()
+    {
+        closeTagStart();
+        indent( depth );
+        append( DATA_START );
+    }
+
+    public void closeDataBlock()
+    {
+        append( DATA_END );
+        append( LINE_END );
+    }
+
+    /**
+     *  Writes the specified text without escaping.
+     */
+    public void print( String s )
+    {
+        append( s );
+    }
+
+    public void startComment()
+    {
+        closeTagStart();
+        indent( depth );
+        append( COMMENT_START );
+        append( LINE_END );
+    }
+
+    /**
+     *  Writes a line of comment text.
+     */
+    public void println( String s )
+    {
+        indent( depth + 1 );
+        append( s );
+        append( LINE_END );
+    }
+
+    public void closeComment()
+    {
+        indent( depth );
+        append( COMMENT_END );
+        append( LINE_END );
+    }
+
+    public void flush()
+    {
+        try
+            {
+            writeBuffer();
+            out.flush();
+            }
+        catch( IOException e )
+            {
+            error = true;
+            }
+    }
+
+    public void close()
+    {
+        try
+            {
+            writeBuffer();
+            out.close();
+            }
+        catch( IOException e )
+            {
+            error = true;
+            }
+    }
+
+    /**
+     *  Flushes the buffer and returns true if any write has failed.
+     */
+    public boolean checkError()
+    {
+        flush();
+        return( error );
+    }
+
+    private void writeBuffer() throws IOException
+    {
+        int count = pos;
+        pos = 0;
+        if( !error )
+            out.write( buff, 0, count );
+    }
+
+    private void closeTagStart()
+    {
+        if( !tagOpen )
+            return;
+        append( OPEN_END );
+        append( LINE_END );
+        tagOpen = false;
+    }
+
+    private void indent( int level )
+    {
+        for( int i = 0; i < level; i++ )
+            append( INDENT );
+    }
+
+    private void ensureCapacity( int count )
+    {
+        if( pos + count <= buff.length )
+            return;
+
+        try
+            {
+            writeBuffer();
+            }
+        catch( IOException e )
+            {
+            error = true;
+            }
+
+        if( count > buff.length )
+            buff = new char[Math.max( count, buff.length * 2 )];
+    }
+
+    private void append( char c )
+    {
+        if( pos == buff.length )
+            ensureCapacity( 1 );
+        buff[pos++] = c;
+    }
+
+    private void append( char[] chars )
+    {
+        ensureCapacity( chars.length );
+        System.arraycopy( chars, 0, buff, pos, chars.length );
+        pos += chars.length;
+    }
+
+    private void append( String s )
+    {
+        int length = s.length();
+        ensureCapacity( length );
+        s.getChars( 0, length, buff, pos );
+        pos += length;
+    }
+
+    private void appendInt( int value )
+    {
+        if( value == Integer.MIN_VALUE )
+            {
+            append( String.valueOf( value ) );
+            return;
+            }
+
+        ensureCapacity( 11 );
+        if( value < 0 )
+            {
+            buff[pos++] = '-';
+            value = -value;
+            }
+
+        int end = pos;
+        int v = value;
+        do
+            {
+            end++;
+            v /= 10;
+            }
+        while( v != 0 );
+
+        int i = end;
+        do
+            {
+            buff[--i] = (char)('0' + value % 10);
+            value /= 10;
+            }
+        while( value != 0 );
+        pos = end;
+    }
+
+    private void appendEscaped( String s )
+    {
+        int length = s.length();
+        int i;
+        for( i = 0; i < length; i++ )
+            {
+            char c = s.charAt( i );
+            if( c == '&' || c == '<' || c == '>' || c == '"' )
+                break;
+            }
+
+        // Nothing to escape is the common case
+        if( i == length )
+            {
+            append( s );
+            return;
+            }
+
+        ensureCapacity( i );
+        s.getChars( 0, i, buff, pos );
+        pos += i;
+        for( ; i < length; i++ )
+            {
+            char c = s.charAt( i );
+            switch( c )
+                {
+                case '&':
+                    append( "&amp;" );
+                    break;
+                case '<':
+                    append( "&lt;" );
+                    break;
+                case '>':
+                    append( "&gt;" );
+                    break;
+                case '"':
+                    append( "&quot;" );
+                    break;
+                default:
+                    append( c );
+                    break;
+                }
+            }
+    }
+}
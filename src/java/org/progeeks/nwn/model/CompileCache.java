@@ -0,0 +1,202 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.model;
+
+import java.io.*;
+
+import org.progeeks.util.FileUtils;
+
+import org.progeeks.nwn.io.ConversionCache;
+
+/**
+ *  Content-addressed store of script compiler results.  Each entry
+ *  is a directory named by a key that ScriptCompiler builds from the
+ *  script, everything it includes, and the compiler settings.  The
+ *  directory holds the compiler's output text and any files the
+ *  compile produced, such as the .ncs and .ndb files.  A script
+ *  whose key is in the cache can be restored from it instead of
+ *  running the compiler again.  Entries are written to a temporary
+ *  directory and renamed into place and the whole cache directory
+ *  can be deleted at any time.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class CompileCache
+{
+    /**
+     *  Bump this when the way entries are stored or keyed changes
+     *  so that old entries are no longer used.
+     */
+    public static final int VERSION = 1;
+
+    private static final String OUTPUT_FILE = "output.txt";
+
+    private File root;
+    private int hits;
+    private int misses;
+
+    public CompileCache( File root )
+    {
+        this.root = root;
+    }
+
+    public File getRoot()
+    {
+        return( root );
+    }
+
+    private File getDirectory( String key )
+    {
+        // Split the entries over sub-directories to keep
+        // directory sizes reasonable.
+        return( new File( new File( root, key.substring( 0, 2 ) ), key ) );
+    }
+
+    /**
+     *  Copies the files for the specified key into the destination
+     *  directory and returns the compiler output that went with them,
+     *  or returns null if there is no entry.
+     */
+    public String restore( String key, File destination ) throws IOException
+    {
+        File dir = getDirectory( key );
+        File output = new File( dir, OUTPUT_FILE );
+        if( !output.exists() )
+            {
+            miss();
+            return( null );
+            }
+
+        String result;
+        try
+            {
+            result = new String( ConversionCache.readFile( output ), "ISO-8859-1" );
+
+            File[] list = dir.listFiles();
+            if( list == null )
+                {
+                miss();
+                return( null );
+                }
+
+            for( int i = 0; i < list.length; i++ )
+                {
+                if( OUTPUT_FILE.equals( list[i].getName() ) )
+                    continue;
+                FileUtils.copyFile( list[i], new File( destination, list[i].getName() ) );
+                }
+            }
+        catch( FileNotFoundException e )
+            {
+            // Removed out from under us
+            miss();
+            return( null );
+            }
+
+        synchronized( this )
+            {
+            hits++;
+            }
+        return( result );
+    }
+
+    /**
+     *  Stores the compiler output and a copy of each of the specified
+     *  files as the entry for the specified key.
+     */
+    public void store( String key, String output, File[] files ) throws IOException
+    {
+        File dir = getDirectory( key );
+        if( dir.exists() )
+            return;
+
+        File parent = dir.getParentFile();
+        if( !parent.exists() && !parent.mkdirs() && !parent.exists() )
+            throw new IOException( "Error creating cache directory:" + parent );
+
+        File temp = File.createTempFile( key, ".tmp", parent );
+        temp.delete();
+        if( !temp.mkdir() )
+            throw new IOException( "Error creating cache directory:" + temp );
+
+        try
+            {
+            FileOutputStream out = new FileOutputStream( new File( temp, OUTPUT_FILE ) );
+            try
+                {
+                out.write( output.getBytes( "ISO-8859-1" ) );
+                }
+            finally
+                {
+                out.close();
+                }
+
+            for( int i = 0; i < files.length; i++ )
+                FileUtils.copyFile( files[i], new File( temp, files[i].getName() ) );
+
+            if( !temp.renameTo( dir ) && !dir.exists() )
+                throw new IOException( "Error renaming:" + temp + " to:" + dir );
+            }
+        finally
+            {
+            if( temp.exists() )
+                {
+                File[] list = temp.listFiles();
+                for( int i = 0; list != null && i < list.length; i++ )
+                    list[i].delete();
+                temp.delete();
+                }
+            }
+    }
+
+    private synchronized void miss()
+    {
+        misses++;
+    }
+
+    public synchronized int getHitCount()
+    {
+        return( hits );
+    }
+
+    public synchronized int getMissCount()
+    {
+        return( misses );
+    }
+
+    public String toString()
+    {
+        return( "CompileCache[" + root + ", hits:" + getHitCount() + ", misses:" + getMissCount() + "]" );
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.model;
+
+import java.io.*;
+
+import org.progeeks.util.log.*;
+
+/**
+ *  Compiler backend that runs the compiler as an external process.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class ExecCompilerBackend implements CompilerBackend
+{
+    static Log log = Log.getLog( ExecCompilerBackend.class );
+
+    public boolean hasCompiler( File compiler )
+    {
+        // Do a test run to see if the compiler exists
+        try
+            {
+            Process p = Runtime.getRuntime().exec( compiler.toString() );
+            return( true );
+            }
+        catch( IOException e )
+            {
+            log.warn( "Compiler not found:" + compiler, e );
+            return( false );
+            }
+    }
+
+    /**
+     *  Starts the compiler with its standard error going to ours so
+     *  that only its standard output needs to be read.
+     */
+    public Process exec( String[] cmdLine, File directory ) throws IOException
+    {
+        ProcessBuilder pb = new ProcessBuilder( cmdLine );
+        pb.directory( directory );
+        pb.redirectError( ProcessBuilder.Redirect.INHERIT );
+        return( pb.start() );
+    }
+}
@@ -33,8 +33,11 @@
 package org.progeeks.nwn.model;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.StringTokenizer;
 
+import org.progeeks.nwn.io.ContentHash;
+
 /**
  *  Similar to a java.io.File except this one is always relative
  *  to the project root... even if the project root changes.
@@ -48,6 +51,7 @@ public class FileIndex implements Comparable
     private String file;
     private String fullPath;
     private long   lastModified;
+    private long   contentHash;
 
     public FileIndex( FileIndex parent, String file )
     {
@@ -142,6 +146,33 @@ public class FileIndex implements Comparable
         return( lastModified > old );
     }
 
+    /**
+     *  Sets the hash of the file's contents as of the last time
+     *  it was built.  Zero means the hash is unknown.
+     */
+    public void setContentHash( long contentHash )
+    {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     *  Returns the hash of the file's contents as of the last time
+     *  it was built or zero if it is not known.
+     */
+    public long getContentHash()
+    {
+        return( contentHash );
+    }
+
+    /**
+     *  Reads the physical file and returns the hash of its current
+     *  contents.  This does not change the cached hash.
+     */
+    public long computeContentHash( Project project ) throws IOException
+    {
+        return( ContentHash.hashFile( getFile( project ) ) );
+    }
+
     /**
      *  Returns the physical file for this file index based
      *  on the specified project's directory settings.
@@ -0,0 +1,378 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.model;
+
+import java.io.*;
+import java.util.*;
+
+import org.progeeks.util.log.*;
+
+import org.progeeks.nwn.io.TempFileUtils;
+import org.progeeks.nwn.io.nss.DependencyReader;
+import org.progeeks.nwn.resource.*;
+
+/**
+ *  Keeps track of the #include relationships between a project's
+ *  scripts.  For each script this records the includes it had the
+ *  last time it was read along with the file's time stamp so that
+ *  only the scripts that have changed need to be read again.  The
+ *  reverse relationships are kept too so that everything that
+ *  depends on a changed include can be found in one pass instead
+ *  of reading every script in the project.  The graph is saved to
+ *  the project's work directory between builds.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class IncludeGraph
+{
+    static Log log = Log.getLog( IncludeGraph.class );
+
+    /**
+     *  Bump this when the file format or the include parsing changes
+     *  so that old files are thrown away.
+     */
+    public static final int VERSION = 1;
+
+    private static final String HEADER = "# Script includes v";
+
+    /**
+     *  Maps script names to their Entry.
+     */
+    private Map scripts = new HashMap();
+
+    /**
+     *  Maps include names to the Set of scripts that include them.
+     */
+    private Map dependents = new HashMap();
+
+    private boolean modified = false;
+
+    public IncludeGraph()
+    {
+    }
+
+    /**
+     *  Returns the file used to store the include graph for the
+     *  specified project or null if the project has no work directory.
+     */
+    public static File getFile( Project project )
+    {
+        if( project.getWorkDirectory() == null )
+            return( null );
+        File work = project.getWorkDirectory().getFile( project );
+        return( new File( work, "includes.txt" ) );
+    }
+
+    /**
+     *  Loads the include graph for the specified project.  An empty
+     *  graph is returned if there is no saved graph or it can't be read.
+     */
+    public static IncludeGraph load( Project project )
+    {
+        IncludeGraph result = new IncludeGraph();
+        File f = getFile( project );
+        if( f == null || !f.exists() )
+            return( result );
+
+        try
+            {
+            result.read( f );
+            }
+        catch( IOException e )
+            {
+            log.warn( "Error reading include graph:" + f, e );
+            result = new IncludeGraph();
+            }
+        return( result );
+    }
+
+    /**
+     *  Saves the include graph for the specified project if it has
+     *  changed since it was loaded.
+     */
+    public void save( Project project ) throws IOException
+    {
+        File f = getFile( project );
+        if( f == null || !modified )
+            return;
+        write( f );
+        modified = false;
+    }
+
+    /**
+     *  Returns true if the graph has changed since it was last
+     *  read or written.
+     */
+    public boolean isModified()
+    {
+        return( modified );
+    }
+
+    /**
+     *  Rereads the includes for the specified script resource if its
+     *  source has changed since the last time it was read.  Returns
+     *  true if the script was read.
+     */
+    public boolean update( Project project, ResourceIndex ri ) throws IOException
+    {
+        String name = ri.getKey().getName();
+        File f = ri.getSource().getFile( project );
+        long lastModified = f.lastModified();
+
+        Entry entry = (Entry)scripts.get( name );
+        if( entry != null && entry.lastModified == lastModified )
+            return( false );
+
+        List includes = new ArrayList();
+        DependencyReader reader = new DependencyReader( new FileReader( f ) );
+        try
+            {
+            for( Iterator i = reader.readDependencies().iterator(); i.hasNext(); )
+                {
+                ResourceKey key = (ResourceKey)i.next();
+                includes.add( key.getName() );
+                }
+            }
+        finally
+            {
+            reader.close();
+            }
+
+        setIncludes( name, lastModified, includes );
+        return( true );
+    }
+
+    /**
+     *  Sets the includes for the specified script, replacing any that
+     *  were previously recorded.
+     */
+    public void setIncludes( String script, long lastModified, List includes )
+    {
+        remove( script );
+
+        Entry entry = new Entry( lastModified, includes );
+        scripts.put( script, entry );
+        for( Iterator i = includes.iterator(); i.hasNext(); )
+            {
+            String include = (String)i.next();
+            Set set = (Set)dependents.get( include );
+            if( set == null )
+                {
+                set = new HashSet();
+                dependents.put( include, set );
+                }
+            set.add( script );
+            }
+        modified = true;
+    }
+
+    /**
+     *  Returns the includes recorded for the specified script or
+     *  null if the script has never been read.
+     */
+    public List getIncludes( String script )
+    {
+        Entry entry = (Entry)scripts.get( script );
+        if( entry == null )
+            return( null );
+        return( Collections.unmodifiableList( entry.includes ) );
+    }
+
+    /**
+     *  Removes the specified script from the graph.
+     */
+    public void remove( String script )
+    {
+        Entry entry = (Entry)scripts.remove( script );
+        if( entry == null )
+            return;
+
+        for( Iterator i = entry.includes.iterator(); i.hasNext(); )
+            {
+            String include = (String)i.next();
+            Set set = (Set)dependents.get( include );
+            if( set == null )
+                continue;
+            set.remove( script );
+            if( set.isEmpty() )
+                dependents.remove( include );
+            }
+        modified = true;
+    }
+
+    /**
+     *  Removes any scripts from the graph that are not in the
+     *  specified set of script names.
+     */
+    public void retainAll( Set names )
+    {
+        List removed = new ArrayList();
+        for( Iterator i = scripts.keySet().iterator(); i.hasNext(); )
+            {
+            Object name = i.next();
+            if( !names.contains( name ) )
+                removed.add( name );
+            }
+
+        for( Iterator i = removed.iterator(); i.hasNext(); )
+            remove( (String)i.next() );
+    }
+
+    /**
+     *  Returns the names of all of the scripts that directly or
+     *  indirectly include any of the specified scripts.
+     */
+    public Set getDependents( Collection names )
+    {
+        Set result = new HashSet();
+        LinkedList pending = new LinkedList( names );
+        while( !pending.isEmpty() )
+            {
+            Set set = (Set)dependents.get( pending.removeFirst() );
+            if( set == null )
+                continue;
+
+            for( Iterator i = set.iterator(); i.hasNext(); )
+                {
+                Object script = i.next();
+                if( result.add( script ) )
+                    pending.add( script );
+                }
+            }
+        return( result );
+    }
+
+    /**
+     *  Reads the graph from the specified file.  Each line is a
+     *  script name, its time stamp, and its includes separated by
+     *  spaces.
+     */
+    protected void read( File f ) throws IOException
+    {
+        BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( f ), "UTF-8" ) );
+        try
+            {
+            String line = in.readLine();
+            if( line == null || !line.equals( HEADER + VERSION ) )
+                {
+                log.info( "Ignoring out of date include graph:" + f );
+                modified = true;
+                return;
+                }
+
+            while( (line = in.readLine()) != null )
+                {
+                StringTokenizer st = new StringTokenizer( line, " " );
+                if( st.countTokens() < 2 )
+                    throw new IOException( "Bad include graph entry:" + line );
+
+                String script = st.nextToken();
+                long lastModified;
+                try
+                    {
+                    lastModified = Long.parseLong( st.nextToken() );
+                    }
+                catch( NumberFormatException e )
+                    {
+                    throw new IOException( "Bad include graph entry:" + line );
+                    }
+
+                List includes = new ArrayList();
+                while( st.hasMoreTokens() )
+                    includes.add( st.nextToken() );
+
+                setIncludes( script, lastModified, includes );
+                }
+            }
+        finally
+            {
+            in.close();
+            }
+
+        modified = false;
+    }
+
+    /**
+     *  Writes the graph to the specified file by way of a temporary
+     *  file so that a failed write doesn't leave a partial graph.
+     */
+    protected void write( File f ) throws IOException
+    {
+        File temp = TempFileUtils.createTempFile( f );
+        PrintWriter out = new PrintWriter( new BufferedWriter( new OutputStreamWriter(
+                                                new FileOutputStream( temp ), "UTF-8" ) ) );
+        try
+            {
+            out.println( HEADER + VERSION );
+            for( Iterator i = scripts.entrySet().iterator(); i.hasNext(); )
+                {
+                Map.Entry e = (Map.Entry)i.next();
+                Entry entry = (Entry)e.getValue();
+                out.print( e.getKey() );
+                out.print( ' ' );
+                out.print( entry.lastModified );
+                for( Iterator j = entry.includes.iterator(); j.hasNext(); )
+                    {
+                    out.print( ' ' );
+                    out.print( j.next() );
+                    }
+                out.println();
+                }
+            }
+        finally
+            {
+            out.close();
+            }
+
+        if( out.checkError() )
+            {
+            temp.delete();
+            throw new IOException( "Error writing:" + temp );
+            }
+
+        TempFileUtils.replaceFile( temp, f );
+    }
+
+    private static class Entry
+    {
+        long lastModified;
+        List includes;
+
+        public Entry( long lastModified, List includes )
+        {
+            this.lastModified = lastModified;
+            this.includes = includes;
+        }
+    }
+}
@@ -174,6 +174,22 @@ public class ResourceIndex implements Comparable
         return( source.getLastModified() > destination.getLastModified() );
     }
 
+    /**
+     *  Returns true if the source file's time stamp says it is newer
+     *  than the destination but its contents hash the same as when the
+     *  resource was last built.  In that case the destination does not
+     *  need to be rebuilt and makeAllUpToDate() can be called instead.
+     *  The destination must exist and a content hash must have been
+     *  recorded for the source.
+     */
+    public boolean isSourceUnchanged( long currentHash )
+    {
+        if( destination.getLastModified() == 0 )
+            return( false );
+        long hash = source.getContentHash();
+        return( hash != 0 && hash == currentHash );
+    }
+
     /**
      *  Forces the source and destination times to be the same.
      */
@@ -195,6 +211,9 @@ public class ResourceIndex implements Comparable
      */
     public void makeDirty( Project project )
     {
+        // The recorded contents no longer describe a good build
+        getSource().setContentHash( 0 );
+
         makeAllUpToDate( project );
         if( isSourceNewer() )
             {
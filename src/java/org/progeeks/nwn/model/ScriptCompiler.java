@@ -33,53 +33,144 @@
 package org.progeeks.nwn.model;
 
 import java.io.*;
+import java.security.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.progeeks.util.*;
 import org.progeeks.util.log.*;
-import org.progeeks.util.thread.*;
+
+import org.progeeks.nwn.io.ConversionCache;
+import org.progeeks.nwn.io.DigestUtils;
+import org.progeeks.nwn.io.nss.DependencyReader;
+import org.progeeks.nwn.resource.ResourceKey;
 
 /**
  *  Runs the script compiler.  I did it this way so that it would
  *  be easy to update the implementation later.  Perhaps even make
  *  this an interface and have actually implementations that can
- *  be swapped in when configuring Pandora.
+ *  be swapped in when configuring Pandora.  The processes themselves
+ *  are started by a CompilerBackend which can be replaced with a stub
+ *  that doesn't need the real compiler.
  *
  *  @version   $Revision$
  *  @author    Paul Speed
  */
 public class ScriptCompiler
 {
-    public static final int MAX_COMPILERS = 10;
-
     static Log log = Log.getLog( ScriptCompiler.class );
 
-    private int maxCompilerCount = MAX_COMPILERS;
+    private int maxCompilerCount = getDefaultCompilerCount();
+    private Semaphore permits = new Semaphore( maxCompilerCount );
     private File compiler = new File( "nwnnsscomp" );
-    private CompilerWatcher watcher = new CompilerWatcher();
+    private CompilerBackend backend = createDefaultBackend();
+    private ExecutorService drainers = Executors.newCachedThreadPool( new ThreadFactory()
+                                                    {
+                                                        public Thread newThread( Runnable r )
+                                                        {
+                                                            Thread t = new Thread( r, "ScriptCompiler" );
+                                                            t.setDaemon( true );
+                                                            return( t );
+                                                        }
+                                                    } );
+    private Object pendingLock = new Object();
+    private int pendingCount = 0;
+    private Object outputLock = new Object();
     private volatile int compiledCount = 0;
     private volatile int includeCount = 0;
+    private volatile CompileCache compileCache;
+
+    private int maxBatchSize = Integer.getInteger( "nwn.compiler.batchSize", 0 ).intValue();
+    private volatile int batchSize = Math.min( maxBatchSize, INITIAL_BATCH_SIZE );
+    private double millisPerScript = -1;
+    private Object batchLock = new Object();
+    private Batch batch;
+
+    /**
+     *  Maps script Files to the ScriptInfo last read for them.
+     */
+    private Map scriptInfo = new HashMap();
+
+
+    /**
+     *  The number of scripts in the first batch before there are
+     *  any compile times to go by.
+     */
+    private static final int INITIAL_BATCH_SIZE = 4;
+
+    /**
+     *  How long a batch should take to compile.  Long enough that the
+     *  compiler start up time doesn't matter much but short enough that
+     *  the scripts are still spread over all of the running compilers.
+     */
+    private static final long TARGET_BATCH_MILLIS = 1000;
 
     public ScriptCompiler()
     {
-        watcher.start();
+    }
+
+    /**
+     *  Returns a new instance of the backend class named by the
+     *  nwn.compiler.backend system property or an ExecCompilerBackend
+     *  if the property isn't set.
+     */
+    public static CompilerBackend createDefaultBackend()
+    {
+        String name = System.getProperty( "nwn.compiler.backend" );
+        if( name == null )
+            return( new ExecCompilerBackend() );
+
+        try
+            {
+            return( (CompilerBackend)Class.forName( name ).getDeclaredConstructor().newInstance() );
+            }
+        catch( Exception e )
+            {
+            throw new RuntimeException( "Error creating compiler backend:" + name, e );
+            }
+    }
+
+    /**
+     *  Sets the backend that starts the compiler processes.
+     */
+    public void setBackend( CompilerBackend backend )
+    {
+        this.backend = backend;
+    }
+
+    public CompilerBackend getBackend()
+    {
+        return( backend );
+    }
+
+    /**
+     *  Returns the default maximum number of compiles that will run
+     *  at once, which is the number of available processors.
+     */
+    public static int getDefaultCompilerCount()
+    {
+        return( Runtime.getRuntime().availableProcessors() );
     }
 
     /**
      *  Sets the maximum number of compile threads that will be spawned
-     *  by this script compiler.
+     *  by this script compiler.  Compiles that are already running
+     *  still count against the old limit until they finish.
      */
-    public void setMaxCompilerCount( int count )
+    public synchronized void setMaxCompilerCount( int count )
     {
+        if( count < 1 )
+            count = 1;
         this.maxCompilerCount = count;
+        this.permits = new Semaphore( count );
     }
 
     /**
      *  Returns the maximum number of compile threads that will be spawned
      *  by this script compiler.
      */
-    public int getMaxCompilerCount()
+    public synchronized int getMaxCompilerCount()
     {
         return( maxCompilerCount );
     }
@@ -107,6 +198,58 @@ public class ScriptCompiler
         return( includeCount );
     }
 
+    /**
+     *  Sets the cache that compile results are stored in and restored
+     *  from.  Scripts found in the cache are not compiled again.  Null
+     *  turns off caching.
+     */
+    public void setCompileCache( CompileCache compileCache )
+    {
+        this.compileCache = compileCache;
+    }
+
+    /**
+     *  Returns the cache that compile results are stored in or null
+     *  if results are not cached.
+     */
+    public CompileCache getCompileCache()
+    {
+        return( compileCache );
+    }
+
+    /**
+     *  Sets the largest number of scripts that will be passed to one
+     *  run of the compiler.  The compiler must accept more than one
+     *  script on its command line, as Torlack's nwnnsscomp does.  The
+     *  actual number is adjusted as compiles finish so that each run
+     *  takes about a second.  Zero or one compiles every script
+     *  separately, which is the default unless the nwn.compiler.batchSize
+     *  system property is set.
+     */
+    public void setMaxBatchSize( int size )
+    {
+        synchronized( batchLock )
+            {
+            this.maxBatchSize = size;
+            this.batchSize = Math.min( size, INITIAL_BATCH_SIZE );
+            this.millisPerScript = -1;
+            }
+    }
+
+    public int getMaxBatchSize()
+    {
+        return( maxBatchSize );
+    }
+
+    /**
+     *  Returns the number of scripts currently being passed to each
+     *  run of the compiler.
+     */
+    public int getBatchSize()
+    {
+        return( batchSize );
+    }
+
     /**
      *  Sets the compiler path include the name of the exe file.
      */
@@ -130,17 +273,7 @@ public class ScriptCompiler
      */
     public boolean hasCompiler( File path )
     {
-        // Do a test run to see if the compiler exists
-        try
-            {
-            Process p = Runtime.getRuntime().exec( path.toString() );
-            return( true );
-            }
-        catch( IOException e )
-            {
-            log.warn( "Compiler not found", e );
-            return( false );
-            }
+        return( backend.hasCompiler( path ) );
     }
 
     /**
@@ -150,73 +283,353 @@ public class ScriptCompiler
      */
     public boolean hasCompiler()
     {
-        // Do a test run to see if the compiler exists
+        return( backend.hasCompiler( compiler ) );
+    }
+
+    /**
+     *  Builds the specified script that resides in the specified directory.
+     */
+    public void compileScript( String script, File directory, ErrorListener listener )
+    {
+        System.out.println( "Exec: nwnnsscomp " + script );
+        startCompile( script, new String[] { compiler.toString(), script }, directory, listener );
+    }
+
+    /**
+     *  Builds the specified script that resides in the specified directory.
+     */
+    public void compileScript( String script, String[] args, File directory, ErrorListener listener )
+    {
+        StringBuffer debug = new StringBuffer( compiler.toString() + " " );
+
+        String[] cmdLine = new String[ 2 + args.length ];
+        cmdLine[0] = compiler.toString();
+        for( int i = 0; i < args.length; i++ )
+            {
+            cmdLine[i + 1] = args[i];
+
+            if( log.isDebugEnabled() )
+                debug.append( args[i] + " " );
+            }
+        cmdLine[args.length + 1] = "\"" + script + "\"";
+
+        if( log.isDebugEnabled() )
+            {
+            debug.append( script );
+            log.debug( "Command line:" + debug );
+            }
+
+        startCompile( script, cmdLine, directory, listener );
+    }
+
+    /**
+     *  Compiles the specified script, either by restoring it from the
+     *  compile cache, by adding it to the current batch, or by starting
+     *  a compiler just for it.
+     */
+    protected void startCompile( String script, String[] cmdLine, File directory, ErrorListener listener )
+    {
+        CompileJob job = new CompileJob( script, listener );
+        if( restore( job, cmdLine, directory ) )
+            return;
+
+        if( maxBatchSize > 1 )
+            {
+            addToBatch( job, cmdLine, directory );
+            return;
+            }
+
+        List jobs = new ArrayList();
+        jobs.add( job );
+        runCompiler( cmdLine, directory, jobs, false );
+    }
+
+    /**
+     *  Restores the job's results from the compile cache and returns
+     *  true, or returns false and sets the job up to store its results
+     *  when they aren't cached.
+     */
+    protected boolean restore( CompileJob job, String[] cmdLine, File directory )
+    {
+        CompileCache cache = compileCache;
+        if( cache == null )
+            return( false );
+
         try
             {
-            Process p = Runtime.getRuntime().exec( compiler.toString() );
-            return( true );
+            String key = getCacheKey( job.script, cmdLine, directory );
+            String output = cache.restore( key, directory );
+            if( output != null )
+                {
+                log.debug( "Restored from cache:" + job.script );
+                job.results.append( output );
+                synchronized( outputLock )
+                    {
+                    processOutput( job );
+                    }
+                return( true );
+                }
+
+            job.cache = cache;
+            job.cacheKey = key;
+            job.directory = directory;
             }
         catch( IOException e )
             {
-            log.warn( "Compiler not found:" + compiler, e );
-            return( false );
+            log.warn( "Error checking compile cache for:" + job.script, e );
             }
+        return( false );
     }
 
     /**
-     *  Builds the specified script that resides in the specified directory.
+     *  Adds the job to the current batch, starting the batch once it is
+     *  full.  Jobs with different arguments or directories can't share
+     *  a batch so the current batch is started early when one comes in.
      */
-    public void compileScript( String script, File directory, ErrorListener listener )
+    protected void addToBatch( CompileJob job, String[] cmdLine, File directory )
+    {
+        List ready = new ArrayList();
+        synchronized( batchLock )
+            {
+            if( batch != null && !batch.accepts( cmdLine, directory ) )
+                {
+                ready.add( batch );
+                batch = null;
+                }
+
+            if( batch == null )
+                batch = new Batch( cmdLine, directory );
+            batch.add( job, cmdLine[cmdLine.length - 1] );
+
+            if( batch.jobs.size() >= Math.max( batchSize, 1 ) )
+                {
+                ready.add( batch );
+                batch = null;
+                }
+            }
+
+        for( Iterator i = ready.iterator(); i.hasNext(); )
+            ((Batch)i.next()).start();
+    }
+
+    /**
+     *  Starts compiling any scripts waiting in a partial batch.
+     */
+    public void flushBatch()
+    {
+        Batch ready;
+        synchronized( batchLock )
+            {
+            ready = batch;
+            batch = null;
+            }
+        if( ready != null )
+            ready.start();
+    }
+
+    /**
+     *  Adjusts the batch size based on how long the last batch took.
+     */
+    private void batchFinished( int scriptCount, long millis )
+    {
+        synchronized( batchLock )
+            {
+            double perScript = (double)millis / scriptCount;
+            if( millisPerScript < 0 )
+                millisPerScript = perScript;
+            else
+                millisPerScript = millisPerScript * 0.75 + perScript * 0.25;
+
+            int size = (int)(TARGET_BATCH_MILLIS / Math.max( millisPerScript, 1.0 ));
+            batchSize = Math.max( 1, Math.min( size, maxBatchSize ) );
+            }
+    }
+
+    /**
+     *  Starts the compiler process once one of the compile permits is
+     *  free and hands it off to a thread that reads its output.  This blocks the caller while the maximum
+     *  number of compiles are already running.
+     */
+    protected void runCompiler( String[] cmdLine, File directory, List jobs, boolean batched )
     {
+        Semaphore running;
+        synchronized( this )
+            {
+            running = permits;
+            }
+        running.acquireUninterruptibly();
+
+        long started = System.currentTimeMillis();
+        Process p;
         try
             {
-            System.out.println( "Exec: nwnnsscomp " + script );
-            Process p = Runtime.getRuntime().exec( new String[] { compiler.toString(), script }, null,
-                                                   directory );
-            //runningCompiles.add( p );
-            watcher.addCompiler( script, "nwnnsscomp " + script, p, listener );
+            p = backend.exec( cmdLine, directory );
             }
         catch( IOException e )
             {
+            running.release();
             log.error( "Error compiling script", e );
+            return;
             }
+
+        synchronized( pendingLock )
+            {
+            pendingCount++;
+            }
+
+        String command = "nwnnsscomp";
+        for( Iterator i = jobs.iterator(); i.hasNext(); )
+            {
+            CompileJob job = (CompileJob)i.next();
+            job.started = started;
+            command += " " + job.script;
+            }
+        drainers.execute( new CompilerInfo( command, p, jobs, batched, running, started ) );
     }
 
     /**
-     *  Builds the specified script that resides in the specified directory.
+     *  Returns the compile cache key for the specified compile.  This
+     *  is a hash of the compiler settings, the script, and everything
+     *  the script includes directly or indirectly.  Includes are looked
+     *  for next to the script, in the compile directory, and in any
+     *  directories passed with -i.  Includes that can't be found, such
+     *  as the game's own scripts, only contribute their names.
      */
-    public void compileScript( String script, String[] args, File directory, ErrorListener listener )
+    protected String getCacheKey( String script, String[] cmdLine, File directory ) throws IOException
     {
-        try
-            {
-            StringBuffer debug = new StringBuffer( compiler.toString() + " " );
+        File src = new File( script );
+        if( !src.isAbsolute() )
+            src = new File( directory, script );
 
-            String[] cmdLine = new String[ 2 + args.length ];
-            cmdLine[0] = compiler.toString();
-            for( int i = 0; i < args.length; i++ )
-                {
-                cmdLine[i + 1] = args[i];
+        List path = new ArrayList();
+        path.add( src.getParentFile() );
+        path.add( directory );
+
+        StringBuffer settings = new StringBuffer();
+        settings.append( CompileCache.VERSION + ":" + backend.getClass().getName()
+                         + ":" + compiler + ":" + compiler.length()
+                         + ":" + compiler.lastModified() + ":" );
 
-                if( log.isDebugEnabled() )
-                    debug.append( args[i] + " " );
+        // The first argument is the compiler and the last is the script.
+        // The include path is only needed for finding includes since
+        // their contents are part of the key anyway.
+        for( int i = 1; i < cmdLine.length - 1; i++ )
+            {
+            if( "-i".equals( cmdLine[i] ) && i + 1 < cmdLine.length - 1 )
+                {
+                i++;
+                StringTokenizer st = new StringTokenizer( cmdLine[i], ";" );
+                while( st.hasMoreTokens() )
+                    path.add( new File( st.nextToken() ) );
+                continue;
                 }
-            cmdLine[args.length + 1] = "\"" + script + "\"";
+            settings.append( cmdLine[i] + ":" );
+            }
+        settings.append( src.getName() );
 
-            if( log.isDebugEnabled() )
+        MessageDigest digest = DigestUtils.createSha1();
+        digest.update( settings.toString().getBytes( "UTF-8" ) );
+
+        ScriptInfo main = getScriptInfo( src );
+        digest.update( main.digest );
+
+        // Collect the include closure, sorted so that the order
+        // they are found in doesn't matter.
+        Map closure = new TreeMap();
+        LinkedList pending = new LinkedList( main.includes );
+        while( !pending.isEmpty() )
+            {
+            String name = (String)pending.removeFirst();
+            if( closure.containsKey( name ) )
+                continue;
+
+            File f = findInclude( name, path );
+            if( f == null )
                 {
-                debug.append( script );
-                log.debug( "Command line:" + debug );
+                closure.put( name, null );
+                continue;
                 }
 
-            //System.out.println( "nwnnsscomp " + script );
-            Process p = Runtime.getRuntime().exec( cmdLine, null,
-                                                   directory );
-            //runningCompiles.add( p );
-            watcher.addCompiler( script, "nwnnsscomp " + script, p, listener );
+            ScriptInfo info = getScriptInfo( f );
+            closure.put( name, info.digest );
+            pending.addAll( info.includes );
             }
-        catch( IOException e )
+
+        for( Iterator i = closure.entrySet().iterator(); i.hasNext(); )
             {
-            log.error( "Error compiling script", e );
+            Map.Entry e = (Map.Entry)i.next();
+            digest.update( ("\n" + e.getKey() + "=").getBytes( "UTF-8" ) );
+            if( e.getValue() != null )
+                digest.update( (byte[])e.getValue() );
+            }
+
+        return( DigestUtils.toHex( digest.digest() ) );
+    }
+
+    private File findInclude( String name, List path )
+    {
+        for( Iterator i = path.iterator(); i.hasNext(); )
+            {
+            File dir = (File)i.next();
+            File f = new File( dir, name + ".nss" );
+            if( f.exists() )
+                return( f );
+            f = new File( dir, name.toLowerCase() + ".nss" );
+            if( f.exists() )
+                return( f );
+            }
+        return( null );
+    }
+
+    /**
+     *  Returns the content hash and includes for the specified script
+     *  file, only rereading the file if it has changed since the last
+     *  time it was read.
+     */
+    private ScriptInfo getScriptInfo( File f ) throws IOException
+    {
+        long lastModified = f.lastModified();
+        long length = f.length();
+        synchronized( scriptInfo )
+            {
+            ScriptInfo info = (ScriptInfo)scriptInfo.get( f );
+            if( info != null && info.lastModified == lastModified && info.length == length )
+                return( info );
+            }
+
+        byte[] data = ConversionCache.readFile( f );
+
+        List includes = new ArrayList();
+        DependencyReader reader = new DependencyReader( new ByteArrayInputStream( data ) );
+        try
+            {
+            for( Iterator i = reader.readDependencies().iterator(); i.hasNext(); )
+                includes.add( ((ResourceKey)i.next()).getName() );
+            }
+        finally
+            {
+            reader.close();
+            }
+
+        ScriptInfo info = new ScriptInfo( lastModified, length, DigestUtils.createSha1().digest( data ), includes );
+        synchronized( scriptInfo )
+            {
+            scriptInfo.put( f, info );
+            }
+        return( info );
+    }
+
+    /**
+     *  Called by each compile when it has finished.
+     */
+    private void compileFinished( CompilerInfo info )
+    {
+        info.running.release();
+        synchronized( pendingLock )
+            {
+            pendingCount--;
+            if( pendingCount == 0 )
+                pendingLock.notifyAll();
             }
     }
 
@@ -225,21 +638,20 @@ public class ScriptCompiler
      */
     public void waitForAll() throws InterruptedException
     {
-        watcher.waitForAll();
+        flushBatch();
+        synchronized( pendingLock )
+            {
+            while( pendingCount > 0 )
+                pendingLock.wait();
+            }
     }
 
-    protected void processOutput( CompilerInfo info )
+    protected void processOutput( CompileJob info )
     {
         StringBuffer results = info.results;
 
         log.debug( results );
 
-        if( info.errors.length() > 0 )
-            {
-            // I've never actually seen this happen.
-            System.out.println( "Errors:\n" + info.errors );
-            }
-
         // Don't bother checking the include files
         if( results.indexOf( "File is an include file, ignored" ) >= 0 )
             {
@@ -304,164 +716,274 @@ public class ScriptCompiler
     }
 
     /**
-     *  Watches all of the running compiles to see when they
-     *  terminate.
+     *  Reads everything from the specified stream into the
+     *  specified buffer until the end of the stream.
+     */
+    private static void drain( InputStream in, StringBuffer sb ) throws IOException
+    {
+        byte[] buff = new byte[4096];
+        int read;
+        while( (read = in.read( buff )) >= 0 )
+            {
+            for( int i = 0; i < read; i++ )
+                sb.append( (char)(buff[i] & 0xff) );
+            }
+    }
+
+    /**
+     *  Supervises one running compile.  The compiler's standard output
+     *  is read to the end on one of the drainer threads.  The backend
+     *  is responsible for sending standard error somewhere that doesn't
+     *  need reading.  The results are processed once Process.onExit()
+     *  says the compiler has exited so that no thread sits in waitFor().
      */
-    private class CompilerWatcher extends Thread
+    private class CompilerInfo implements Runnable
     {
-        private List compilers = new ArrayList();
-        private ConditionalLock pause = new ConditionalLock( true );
-        private boolean go = true;
-        private int waiters = 0;
+        String command;
+        Process p;
+        List jobs;
+        boolean batched;
+        Semaphore running;
+        long started;
+
+        StringBuffer results = new StringBuffer();
+
+        public CompilerInfo( String command, Process p, List jobs, boolean batched,
+                             Semaphore running, long started )
+        {
+            this.command = command;
+            this.p = p;
+            this.jobs = jobs;
+            this.batched = batched;
+            this.running = running;
+            this.started = started;
+        }
 
-        public synchronized void addCompiler( String script, String command, Process p, ErrorListener listener )
+        public void run()
         {
-            while( compilers.size() > maxCompilerCount )
+            try
                 {
-                waiters++;
-                try
+                p.getOutputStream().close();
+                drain( p.getInputStream(), results );
+                }
+            catch( IOException e )
+                {
+                log.error( "Error getting process info:" + command, e );
+                close();
+                compileFinished( this );
+                return;
+                }
+
+            p.onExit().thenRunAsync( new Runnable()
+                                        {
+                                            public void run()
+                                            {
+                                                exited();
+                                            }
+                                        }, drainers );
+        }
+
+        /**
+         *  Called once the compiler has exited to hand the results
+         *  to the jobs.
+         */
+        protected void exited()
+        {
+            try
+                {
+                if( batched )
                     {
-                    // Then wait
-                    wait();
+                    splitResults();
+                    batchFinished( jobs.size(), System.currentTimeMillis() - started );
                     }
-                catch( InterruptedException e )
+                else
                     {
-                    log.error( "Error waiting", e );
+                    CompileJob job = (CompileJob)jobs.get( 0 );
+                    job.results.append( results );
+                    job.cleanup();
                     }
-                waiters--;
-                }
 
-            compilers.add( new CompilerInfo( script, command, p, listener ) );
-            pause.setFalse();
-        }
+                for( Iterator i = jobs.iterator(); i.hasNext(); )
+                    {
+                    CompileJob job = (CompileJob)i.next();
+                    if( batched && job.results.length() == 0 )
+                        {
+                        missingOutput( job );
+                        continue;
+                        }
 
-        public void waitForAll() throws InterruptedException
-        {
-            pause.waitForTrue();
+                    // Listeners only ever see one compile's errors at a time
+                    synchronized( outputLock )
+                        {
+                        processOutput( job );
+                        }
+
+                    if( job.cacheKey != null )
+                        job.storeResult();
+                    }
+                }
+            catch( RuntimeException e )
+                {
+                log.error( "Error processing output:" + command, e );
+                }
+            finally
+                {
+                close();
+                compileFinished( this );
+                }
         }
 
-        public void run()
+        protected void close()
         {
             try
                 {
-                runLoop();
+                p.getInputStream().close();
+                p.getErrorStream().close();
                 }
-            catch( Throwable t )
+            catch( IOException e )
                 {
-                t.printStackTrace();
+                log.warn( "Error closing process streams:" + command, e );
                 }
         }
 
-        public void runLoop()
+        /**
+         *  Splits the output of a batch compile at each "Compiling:"
+         *  line and hands each piece to the job for the script named
+         *  on that line.
+         */
+        protected void splitResults()
         {
-            while( go )
+            Map byName = new HashMap();
+            for( Iterator i = jobs.iterator(); i.hasNext(); )
                 {
-                try
+                CompileJob job = (CompileJob)i.next();
+                String name = getFileName( job.script ).toLowerCase();
+                List list = (List)byName.get( name );
+                if( list == null )
                     {
-                    pause.waitForFalse();
-                    synchronized( this )
-                        {
-                        for( Iterator i = compilers.iterator(); i.hasNext(); )
-                            {
-                            try
-                                {
-                                CompilerInfo p = (CompilerInfo)i.next();
-
-                                //System.out.println( "Checking:" + p.command + "  done?: " + p.done );
-
-                                // Read a character
-                                p.update();
-
-                                if( p.done )
-                                    {
-                                    //System.out.println( p.command + " finished:" + p.p.exitValue() );
-                                    p.cleanup();
-                                    processOutput( p );
-                                    i.remove();
-                                    }
-                                }
-                            catch( IOException e )
-                                {
-                                log.error( "Error getting process info", e );
-                                }
-                            }
-
-                        if( compilers.size() < maxCompilerCount && waiters > 0 )
-                            {
-                            notifyAll();
-                            }
-
-                        if( compilers.size() == 0 )
-                            {
-                            pause.setTrue();
-                            }
-                        }
-
+                    list = new LinkedList();
+                    byName.put( name, list );
                     }
-                catch( InterruptedException e )
+                list.add( job );
+                }
+
+            String text = results.toString();
+            int chop = text.indexOf( "Total Execution time" );
+            if( chop > 0 )
+                text = text.substring( 0, chop );
+
+            CompileJob current = null;
+            int pos = 0;
+            while( pos < text.length() )
+                {
+                int end = text.indexOf( '\n', pos );
+                end = end < 0 ? text.length() : end + 1;
+                String line = text.substring( pos, end );
+                pos = end;
+
+                if( line.startsWith( "Compiling:" ) )
                     {
-                    log.error( "Error waiting", e );
+                    String name = line.substring( "Compiling:".length() ).trim();
+                    if( name.startsWith( "\"" ) && name.endsWith( "\"" ) && name.length() > 1 )
+                        name = name.substring( 1, name.length() - 1 );
+                    List list = (List)byName.get( getFileName( name ).toLowerCase() );
+                    current = (list == null || list.isEmpty()) ? null : (CompileJob)list.remove( 0 );
                     }
+
+                if( current != null )
+                    current.results.append( line );
+                }
+        }
+
+        /**
+         *  Reports a script from a batch that the compiler never got to.
+         */
+        protected void missingOutput( CompileJob job )
+        {
+            ErrorInfo err = new ErrorInfo( "Compiling", "No compiler output for script." );
+            synchronized( outputLock )
+                {
+                if( job.listener == null )
+                    System.out.println( job.script + "  " + err );
+                else
+                    job.listener.error( job.script, err );
                 }
         }
     }
 
-    private class CompilerInfo
+    private static String getFileName( String script )
+    {
+        int split = Math.max( script.lastIndexOf( '/' ), script.lastIndexOf( '\\' ) );
+        return( script.substring( split + 1 ) );
+    }
+
+    /**
+     *  One script to be compiled along with the output the compiler
+     *  produced for it.
+     */
+    protected class CompileJob
     {
         String script;
-        String command;
-        Process p;
         ErrorListener listener;
-        long started;
-        InputStream in;
-        OutputStream out;
-        InputStream err;
-        boolean done = false;
-        boolean inDone = false;
-        boolean errDone = false;
-
         StringBuffer results = new StringBuffer();
-        StringBuffer errors = new StringBuffer();
 
-        public CompilerInfo( String script, String command, Process p, ErrorListener listener )
+        CompileCache cache;
+        String cacheKey;
+        File directory;
+        long started;
+
+        public CompileJob( String script, ErrorListener listener )
         {
             this.script = script;
-            this.started = System.currentTimeMillis();
-            this.command = command;
-            this.p = p;
             this.listener = listener;
-            in = p.getInputStream();
-            out = p.getOutputStream();
-            err = p.getErrorStream();
         }
 
-        public void update() throws IOException
+        /**
+         *  Stores the compiler output and the files it produced in
+         *  the compile cache.
+         */
+        protected void storeResult()
         {
-            if( done )
+            String output = results.toString();
+
+            // Nothing came back so there is nothing we can trust
+            if( output.length() == 0 )
                 return;
-//System.out.println( "Results:" + results );
-            if( !inDone )
+
+            List files = new ArrayList();
+            if( output.indexOf( "Error:" ) < 0 )
                 {
-                int b = in.read();
-                if( b >= 0 )
-                    results.append( (char)b );
-                else
-                    inDone = true;
+                String base = getFileName( script );
+                int split = base.lastIndexOf( '.' );
+                if( split > 0 )
+                    base = base.substring( 0, split );
+
+                String[] extensions = new String[] { ".ncs", ".ndb" };
+                for( int i = 0; i < extensions.length; i++ )
+                    {
+                    File f = new File( directory, base + extensions[i] );
+
+                    // Leave out older output from some other compile,
+                    // allowing for coarse file system time stamps.
+                    if( f.exists() && f.lastModified() >= started - 2000 )
+                        files.add( f );
+                    }
+
+                if( files.isEmpty() && output.indexOf( "File is an include file, ignored" ) < 0 )
+                    {
+                    log.debug( "No compiled output found to cache for:" + script );
+                    return;
+                    }
                 }
 
-            /*
-            We never seem to actually see errors and the blocking
-            causes problems sometimes.
-            if( !errDone && err.available() > 0 )
+            try
                 {
-                int b = err.read();
-                if( b >= 0 )
-                    errors.append( (char)b );
-                else
-                    errDone = true;
-                }*/
-
-            done = inDone; // && errDone;
+                cache.store( cacheKey, output, (File[])files.toArray( new File[files.size()] ) );
+                }
+            catch( IOException e )
+                {
+                log.warn( "Error caching compile results for:" + script, e );
+                }
         }
 
         public void cleanup()
@@ -476,4 +998,72 @@ public class ScriptCompiler
                 results.delete( chop, results.length() );
         }
     }
+
+    /**
+     *  Scripts waiting to be compiled together by one compiler run.
+     */
+    private class Batch
+    {
+        String[] baseCmdLine;
+        File directory;
+        List jobs = new ArrayList();
+        List scripts = new ArrayList();
+
+        public Batch( String[] cmdLine, File directory )
+        {
+            this.baseCmdLine = new String[cmdLine.length - 1];
+            System.arraycopy( cmdLine, 0, baseCmdLine, 0, baseCmdLine.length );
+            this.directory = directory;
+        }
+
+        /**
+         *  Returns true if the specified command line only differs from
+         *  this batch's by the script being compiled.
+         */
+        public boolean accepts( String[] cmdLine, File dir )
+        {
+            if( cmdLine.length != baseCmdLine.length + 1 || !directory.equals( dir ) )
+                return( false );
+            for( int i = 0; i < baseCmdLine.length; i++ )
+                {
+                if( !baseCmdLine[i].equals( cmdLine[i] ) )
+                    return( false );
+                }
+            return( true );
+        }
+
+        public void add( CompileJob job, String scriptArg )
+        {
+            jobs.add( job );
+            scripts.add( scriptArg );
+        }
+
+        public void start()
+        {
+            String[] cmdLine = new String[baseCmdLine.length + scripts.size()];
+            System.arraycopy( baseCmdLine, 0, cmdLine, 0, baseCmdLine.length );
+            for( int i = 0; i < scripts.size(); i++ )
+                cmdLine[baseCmdLine.length + i] = (String)scripts.get( i );
+
+            if( log.isDebugEnabled() )
+                log.debug( "Compiling batch of " + jobs.size() + " scripts." );
+            runCompiler( cmdLine, directory, jobs, true );
+        }
+    }
+
+    private static class ScriptInfo
+    {
+        long lastModified;
+        long length;
+        byte[] digest;
+        List includes;
+
+        public ScriptInfo( long lastModified, long length, byte[] digest, List includes )
+        {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.digest = digest;
+            this.includes = includes;
+        }
+    }
 }
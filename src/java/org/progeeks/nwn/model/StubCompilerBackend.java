@@ -0,0 +1,412 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.model;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import org.progeeks.nwn.io.ContentHash;
+
+/**
+ *  Compiler backend that pretends to be nwnnsscomp without running
+ *  anything, so that the build's scheduling, output parsing, and error
+ *  handling can be exercised and timed on machines without the real
+ *  compiler.  Each "process" is a thread that waits out a configurable
+ *  start up time and per-script time, writes a fake .ncs (and .ndb
+ *  when -g is given) for each script, and prints nwnnsscomp style
+ *  output.  Several scripts can be given at once as with batch mode.
+ *  The results only depend on the scripts' contents and names:
+ *  <ul>
+ *  <li>A script without a main() or StartingConditional() is reported
+ *      as an include file.</li>
+ *  <li>Each line containing the error marker, "STUB_ERROR" by default,
+ *      is reported as an error on that line using the rest of the line
+ *      as the message.</li>
+ *  <li>If an error rate is set then that fraction of the scripts, picked
+ *      by name, are reported as having an error on line 1.</li>
+ *  </ul>
+ *  The defaults can be set with the nwn.stubCompiler.startMillis,
+ *  nwn.stubCompiler.scriptMillis, and nwn.stubCompiler.errorRate
+ *  system properties so that the stub can be picked with the
+ *  nwn.compiler.backend property without any other set up.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class StubCompilerBackend implements CompilerBackend
+{
+    public static final String DEFAULT_ERROR_MARKER = "STUB_ERROR";
+
+    private long startMillis = Long.getLong( "nwn.stubCompiler.startMillis", 0 ).longValue();
+    private long scriptMillis = Long.getLong( "nwn.stubCompiler.scriptMillis", 0 ).longValue();
+    private double errorRate = Double.parseDouble( System.getProperty( "nwn.stubCompiler.errorRate", "0" ) );
+    private String errorMarker = DEFAULT_ERROR_MARKER;
+    private volatile int processCount = 0;
+
+    public StubCompilerBackend()
+    {
+    }
+
+    /**
+     *  Sets how long each compiler process takes to start before
+     *  it compiles anything.
+     */
+    public void setStartMillis( long startMillis )
+    {
+        this.startMillis = startMillis;
+    }
+
+    public long getStartMillis()
+    {
+        return( startMillis );
+    }
+
+    /**
+     *  Sets how long each script takes to compile.
+     */
+    public void setScriptMillis( long scriptMillis )
+    {
+        this.scriptMillis = scriptMillis;
+    }
+
+    public long getScriptMillis()
+    {
+        return( scriptMillis );
+    }
+
+    /**
+     *  Sets the fraction of scripts, from 0 to 1, that fail to compile
+     *  regardless of their contents.  The same scripts always fail.
+     */
+    public void setErrorRate( double errorRate )
+    {
+        this.errorRate = errorRate;
+    }
+
+    public double getErrorRate()
+    {
+        return( errorRate );
+    }
+
+    /**
+     *  Sets the text that marks a script line as having an error.
+     */
+    public void setErrorMarker( String errorMarker )
+    {
+        this.errorMarker = errorMarker;
+    }
+
+    public String getErrorMarker()
+    {
+        return( errorMarker );
+    }
+
+    /**
+     *  Returns the number of compiler processes that have been started.
+     */
+    public int getProcessCount()
+    {
+        return( processCount );
+    }
+
+    public boolean hasCompiler( File compiler )
+    {
+        return( true );
+    }
+
+    public Process exec( String[] cmdLine, File directory ) throws IOException
+    {
+        synchronized( this )
+            {
+            processCount++;
+            }
+        return( new StubProcess( cmdLine, directory ) );
+    }
+
+    /**
+     *  Compiles the scripts on the specified command line and writes
+     *  the compiler output to the specified writer.
+     */
+    protected void compile( String[] cmdLine, File directory, PrintWriter out ) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        boolean debug = false;
+        File outputDir = directory;
+        List scripts = new ArrayList();
+        for( int i = 1; i < cmdLine.length; i++ )
+            {
+            String arg = cmdLine[i];
+            if( "-g".equals( arg ) )
+                debug = true;
+            else if( "-b".equals( arg ) && i + 1 < cmdLine.length )
+                outputDir = resolve( cmdLine[++i], directory );
+            else if( "-i".equals( arg ) )
+                i++;
+            else if( arg.startsWith( "-" ) )
+                continue;
+            else
+                scripts.add( arg );
+            }
+
+        out.println( "Stub NWScript Compiler" );
+        sleep( startMillis );
+
+        for( Iterator i = scripts.iterator(); i.hasNext(); )
+            {
+            String script = (String)i.next();
+            if( script.startsWith( "\"" ) && script.endsWith( "\"" ) && script.length() > 1 )
+                script = script.substring( 1, script.length() - 1 );
+
+            sleep( scriptMillis );
+            compileScript( script, resolve( script, directory ), outputDir, debug, out );
+            }
+
+        out.println( "Total Execution time = " + (System.currentTimeMillis() - start) + " ms" );
+    }
+
+    /**
+     *  Compiles one script, writing its output files to the specified
+     *  directory.
+     */
+    protected void compileScript( String script, File source, File outputDir, boolean debug,
+                                  PrintWriter out ) throws IOException
+    {
+        out.println( "Compiling: " + script );
+        if( !source.exists() )
+            {
+            out.println( "Error: Unable to open input file \"" + script + "\"" );
+            return;
+            }
+
+        String name = source.getName();
+        List lines = readLines( source );
+
+        boolean hasMain = false;
+        int errors = 0;
+        for( int i = 0; i < lines.size(); i++ )
+            {
+            String line = (String)lines.get( i );
+            if( line.indexOf( "main" ) >= 0 || line.indexOf( "StartingConditional" ) >= 0 )
+                hasMain = true;
+
+            int split = line.indexOf( errorMarker );
+            if( split < 0 )
+                continue;
+
+            String message = line.substring( split + errorMarker.length() ).trim();
+            if( message.length() == 0 )
+                message = "SYNTAX ERROR";
+            out.println( name + "(" + (i + 1) + "): Error: " + message );
+            errors++;
+            }
+
+        if( errors == 0 && failsByName( name ) )
+            {
+            out.println( name + "(1): Error: STUB FAILURE" );
+            errors++;
+            }
+
+        if( errors > 0 )
+            {
+            out.println( "Compilation aborted with errors." );
+            return;
+            }
+
+        if( !hasMain )
+            {
+            out.println( "File is an include file, ignored" );
+            return;
+            }
+
+        String base = name;
+        int dot = base.lastIndexOf( '.' );
+        if( dot > 0 )
+            base = base.substring( 0, dot );
+
+        long hash = ContentHash.hashFile( source );
+        writeOutput( new File( outputDir, base + ".ncs" ), "NCS V1.0", hash );
+        if( debug )
+            writeOutput( new File( outputDir, base + ".ndb" ), "NDB V1.0", hash );
+    }
+
+    /**
+     *  Returns true if the error rate says this script should fail.
+     */
+    protected boolean failsByName( String name )
+    {
+        if( errorRate <= 0 )
+            return( false );
+        int bucket = (name.toLowerCase().hashCode() & 0x7fffffff) % 10000;
+        return( bucket < errorRate * 10000 );
+    }
+
+    private void writeOutput( File f, String header, long hash ) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream( new FileOutputStream( f ) );
+        try
+            {
+            out.writeBytes( header );
+            out.writeLong( hash );
+            }
+        finally
+            {
+            out.close();
+            }
+    }
+
+    private static List readLines( File f ) throws IOException
+    {
+        List result = new ArrayList();
+        BufferedReader in = new BufferedReader( new FileReader( f ) );
+        try
+            {
+            String line;
+            while( (line = in.readLine()) != null )
+                result.add( line );
+            }
+        finally
+            {
+            in.close();
+            }
+        return( result );
+    }
+
+    private static File resolve( String path, File directory )
+    {
+        File f = new File( path );
+        if( f.isAbsolute() || directory == null )
+            return( f );
+        return( new File( directory, path ) );
+    }
+
+    private static void sleep( long millis )
+    {
+        if( millis <= 0 )
+            return;
+        try
+            {
+            Thread.sleep( millis );
+            }
+        catch( InterruptedException e )
+            {
+            Thread.currentThread().interrupt();
+            }
+    }
+
+    /**
+     *  Fake process whose output is written through a pipe by a
+     *  thread running the stub compiler.
+     */
+    private class StubProcess extends Process implements Runnable
+    {
+        private String[] cmdLine;
+        private File directory;
+        private PipedInputStream in = new PipedInputStream();
+        private PipedOutputStream pipe;
+        private Thread thread;
+        private volatile int exitValue = 0;
+        private CompletableFuture exited = new CompletableFuture();
+
+        public StubProcess( String[] cmdLine, File directory ) throws IOException
+        {
+            this.cmdLine = cmdLine;
+            this.directory = directory;
+            this.pipe = new PipedOutputStream( in );
+            this.thread = new Thread( this, "StubCompiler" );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        public void run()
+        {
+            PrintWriter out = new PrintWriter( new OutputStreamWriter( pipe ) );
+            try
+                {
+                compile( cmdLine, directory, out );
+                }
+            catch( IOException e )
+                {
+                out.println( "Error: " + e.getMessage() );
+                exitValue = 1;
+                }
+            finally
+                {
+                out.close();
+                exited.complete( this );
+                }
+        }
+
+        public OutputStream getOutputStream()
+        {
+            return( new ByteArrayOutputStream() );
+        }
+
+        public InputStream getInputStream()
+        {
+            return( in );
+        }
+
+        public InputStream getErrorStream()
+        {
+            return( new ByteArrayInputStream( new byte[0] ) );
+        }
+
+        public int waitFor() throws InterruptedException
+        {
+            thread.join();
+            return( exitValue );
+        }
+
+        /**
+         *  Overridden so that no thread has to sit in waitFor() to
+         *  find out when the stub has finished.
+         */
+        public CompletableFuture onExit()
+        {
+            return( exited );
+        }
+
+        public int exitValue()
+        {
+            if( thread.isAlive() )
+                throw new IllegalThreadStateException( "Stub compiler is still running." );
+            return( exitValue );
+        }
+
+        public void destroy()
+        {
+            thread.interrupt();
+        }
+    }
+}
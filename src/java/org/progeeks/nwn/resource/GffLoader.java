@@ -33,6 +33,9 @@
 package org.progeeks.nwn.resource;
 
 import java.io.*;
+import java.util.*;
+
+import org.progeeks.nwn.gff.*;
 
 import org.progeeks.nwn.io.gff.*;
 import org.progeeks.nwn.resource.ResourceKey;
@@ -43,20 +46,54 @@ import org.progeeks.nwn.resource.ResourceKey;
  *  @version   $Revision$
  *  @author    Paul Speed
  */
-public class GffLoader implements ResourceLoader
+public class GffLoader implements ResourceLoader, ResourceWeigher
 {
+    /**
+     *  Rough number of bytes used by each loaded struct or element.
+     */
+    private static final int NODE_WEIGHT = 64;
+
     public Object loadResource( ResourceKey key, InputStream in ) throws IOException
     {
-        GffReader reader = new GffReader( in );
         try
             {
+            GffBufferReader reader = new GffBufferReader( in );
             return( reader.readRootStruct() );
             }
         finally
             {
-            reader.close();
+            in.close();
             }
     }
-}
 
+    /**
+     *  Estimates the size of a loaded GFF from the number of
+     *  structs and elements it contains.
+     */
+    public int getWeight( ResourceKey key, Object resource )
+    {
+        return( countNodes( (Struct)resource ) * NODE_WEIGHT );
+    }
 
+    protected int countNodes( Struct struct )
+    {
+        int count = 1;
+        for( Iterator i = struct.values(); i.hasNext(); )
+            {
+            Element e = (Element)i.next();
+            count++;
+            if( e instanceof StructElement )
+                {
+                Struct child = ((StructElement)e).getStruct();
+                if( child != null )
+                    count += countNodes( child );
+                }
+            else if( e instanceof ListElement )
+                {
+                for( Iterator j = ((ListElement)e).getValue().iterator(); j.hasNext(); )
+                    count += countNodes( (Struct)j.next() );
+                }
+            }
+        return( count );
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "Meta-JB", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.resource;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.progeeks.util.log.*;
+
+/**
+ *  Off-heap cache of raw resource data.  Data is stored in fixed size
+ *  blocks carved out of large direct ByteBuffers that are allocated
+ *  as needed up to the byte budget and then reused, so cached
+ *  payloads put no load on the garbage collector.  The least recently
+ *  used entries are evicted to make room for new ones.  An entry is
+ *  pinned while a stream is reading it and its blocks aren't reused
+ *  until that stream is closed.  A stream that is dropped without
+ *  being closed releases its pin once it has been garbage collected
+ *  and a warning is logged.  All methods are thread safe.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class ResourceByteCache
+{
+    static Log log = Log.getLog( ResourceByteCache.class );
+
+    public static final int DEFAULT_BLOCK_SIZE = 65536;
+
+    /**
+     *  Size of the direct buffers that blocks are carved from.
+     */
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static ResourceByteCache sharedCache;
+    private static boolean sharedCacheChecked;
+
+    private int blockSize;
+    private int maxBlocks;
+    private int blocksPerChunk;
+    private long maxEntrySize;
+
+    private List chunks = new ArrayList();
+    private ByteBuffer[] blocks;
+    private int allocatedBlocks;
+    private int[] freeBlocks;
+    private int freeCount;
+
+    /**
+     *  Entries in least-recently-used order.
+     */
+    private LinkedHashMap entries = new LinkedHashMap( 256, 0.75f, true );
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long bypasses;
+    private long leaks;
+
+    /**
+     *  The pins held by open streams.  Pins whose streams are
+     *  collected without being closed show up in leakedPins.
+     */
+    private Set pins = new HashSet();
+    private ReferenceQueue leakedPins = new ReferenceQueue();
+
+    /**
+     *  Creates a cache that will use at most maxBytes of direct
+     *  memory in 64k blocks.
+     */
+    public ResourceByteCache( long maxBytes )
+    {
+        this( maxBytes, DEFAULT_BLOCK_SIZE );
+    }
+
+    public ResourceByteCache( long maxBytes, int blockSize )
+    {
+        if( blockSize <= 0 || blockSize > CHUNK_SIZE )
+            throw new IllegalArgumentException( "Invalid block size:" + blockSize );
+
+        this.blockSize = blockSize;
+        this.maxBlocks = (int)Math.min( Integer.MAX_VALUE, maxBytes / blockSize );
+        this.blocksPerChunk = CHUNK_SIZE / blockSize;
+        this.blocks = new ByteBuffer[maxBlocks];
+        this.freeBlocks = new int[maxBlocks];
+
+        // Don't let one resource push out more than a quarter
+        // of the cache.
+        this.maxEntrySize = (long)maxBlocks * blockSize / 4;
+    }
+
+    /**
+     *  Returns the cache shared by ResourceStreamers or null if there
+     *  isn't one.  The shared cache is only created if the
+     *  nwn.resource.byteCacheSize system property is set to the
+     *  number of bytes it may use.
+     */
+    public static synchronized ResourceByteCache getSharedCache()
+    {
+        if( !sharedCacheChecked )
+            {
+            sharedCacheChecked = true;
+            long size = Long.getLong( "nwn.resource.byteCacheSize", 0 ).longValue();
+            if( size > 0 )
+                sharedCache = new ResourceByteCache( size );
+            }
+        return( sharedCache );
+    }
+
+    public long getMaxBytes()
+    {
+        return( (long)maxBlocks * blockSize );
+    }
+
+    public int getBlockSize()
+    {
+        return( blockSize );
+    }
+
+    /**
+     *  Returns the number of bytes of direct memory currently holding
+     *  cached data.
+     */
+    public synchronized long getUsedBytes()
+    {
+        return( (long)(allocatedBlocks - freeCount) * blockSize );
+    }
+
+    public synchronized int size()
+    {
+        return( entries.size() );
+    }
+
+    /**
+     *  Returns a stream over the cached data for the specified key
+     *  or null if it isn't cached.  The stream must be closed when
+     *  done so that the entry can be evicted.
+     */
+    public synchronized InputStream open( Object key )
+    {
+        reclaimLeakedPins();
+
+        Entry e = (Entry)entries.get( key );
+        if( e == null )
+            {
+            misses++;
+            return( null );
+            }
+        hits++;
+        return( pin( e ) );
+    }
+
+    /**
+     *  Reads the specified stream of size bytes into the cache and returns
+     *  a stream over the cached copy.  If the data can't be cached
+     *  then the original stream is returned unread.  The original stream
+     *  is closed once it has been read.
+     */
+    public InputStream load( Object key, InputStream in, long size ) throws IOException
+    {
+        if( size < 0 || size > maxEntrySize )
+            {
+            synchronized( this )
+                {
+                bypasses++;
+                }
+            return( in );
+            }
+
+        int[] entryBlocks = allocate( (int)((size + blockSize - 1) / blockSize) );
+        if( entryBlocks == null )
+            return( in );
+
+        // Fill the blocks outside of the lock.  No one else can
+        // see them until the entry is added.
+        int total = 0;
+        try
+            {
+            ReadableByteChannel channel = Channels.newChannel( in );
+            for( int i = 0; i < entryBlocks.length; i++ )
+                {
+                ByteBuffer buff = blocks[entryBlocks[i]].duplicate();
+                buff.clear();
+                buff.limit( (int)Math.min( blockSize, size - total ) );
+                while( buff.hasRemaining() )
+                    {
+                    if( channel.read( buff ) < 0 )
+                        throw new EOFException( "Resource ended after:" + (total + buff.position())
+                                                + " of " + size + " bytes." );
+                    }
+                total += buff.limit();
+                }
+            }
+        catch( IOException e )
+            {
+            free( entryBlocks );
+            throw e;
+            }
+        catch( RuntimeException e )
+            {
+            free( entryBlocks );
+            throw e;
+            }
+        finally
+            {
+            in.close();
+            }
+
+        Entry e = new Entry( entryBlocks, total );
+        synchronized( this )
+            {
+            Entry old = (Entry)entries.put( key, e );
+            if( old != null )
+                remove( old );
+            return( pin( e ) );
+            }
+    }
+
+    /**
+     *  Removes the specified key from the cache.
+     */
+    public synchronized void invalidate( Object key )
+    {
+        Entry e = (Entry)entries.remove( key );
+        if( e != null )
+            remove( e );
+    }
+
+    /**
+     *  Removes everything from the cache.  Data that is still being
+     *  read is freed when its stream is closed.
+     */
+    public synchronized void clear()
+    {
+        for( Iterator i = entries.values().iterator(); i.hasNext(); )
+            remove( (Entry)i.next() );
+        entries.clear();
+    }
+
+    /**
+     *  Returns the requested number of blocks, evicting unpinned
+     *  entries as needed, or null if there isn't enough room.
+     */
+    private synchronized int[] allocate( int count )
+    {
+        reclaimLeakedPins();
+
+        while( freeCount + (maxBlocks - allocatedBlocks) < count )
+            {
+            if( !evictOne() )
+                {
+                bypasses++;
+                return( null );
+                }
+            }
+
+        int[] result = new int[count];
+        for( int i = 0; i < count; i++ )
+            {
+            if( freeCount > 0 )
+                result[i] = freeBlocks[--freeCount];
+            else
+                result[i] = newBlock();
+            }
+        return( result );
+    }
+
+    private int newBlock()
+    {
+        int block = allocatedBlocks++;
+        int chunk = block / blocksPerChunk;
+        if( chunk == chunks.size() )
+            {
+            int chunkBlocks = Math.min( blocksPerChunk, maxBlocks - chunk * blocksPerChunk );
+            chunks.add( ByteBuffer.allocateDirect( chunkBlocks * blockSize ) );
+            }
+
+        ByteBuffer buff = ((ByteBuffer)chunks.get( chunk )).duplicate();
+        int start = (block % blocksPerChunk) * blockSize;
+        buff.limit( start + blockSize );
+        buff.position( start );
+        blocks[block] = buff.slice();
+        return( block );
+    }
+
+    private boolean evictOne()
+    {
+        for( Iterator i = entries.values().iterator(); i.hasNext(); )
+            {
+            Entry e = (Entry)i.next();
+            if( e.pins > 0 )
+                continue;
+            i.remove();
+            remove( e );
+            evictions++;
+            return( true );
+            }
+        return( false );
+    }
+
+    private void remove( Entry e )
+    {
+        e.removed = true;
+        if( e.pins == 0 )
+            free( e.blocks );
+    }
+
+    private synchronized void free( int[] entryBlocks )
+    {
+        for( int i = 0; i < entryBlocks.length; i++ )
+            freeBlocks[freeCount++] = entryBlocks[i];
+    }
+
+    /**
+     *  Pins the entry and returns a stream that releases the pin
+     *  when it is closed.
+     */
+    private synchronized InputStream pin( Entry e )
+    {
+        e.pins++;
+        EntryInputStream in = new EntryInputStream( e );
+        in.pin = new Pin( in, e, leakedPins );
+        pins.add( in.pin );
+        return( in );
+    }
+
+    private synchronized void release( Pin pin )
+    {
+        // Only release once, either when the stream is closed
+        // or when it is found to have leaked.
+        if( !pins.remove( pin ) )
+            return;
+        pin.clear();
+
+        Entry e = pin.entry;
+        e.pins--;
+        if( e.removed && e.pins == 0 )
+            free( e.blocks );
+    }
+
+    /**
+     *  Releases the pins of any streams that were garbage collected
+     *  without being closed.
+     */
+    private synchronized void reclaimLeakedPins()
+    {
+        Pin pin;
+        while( (pin = (Pin)leakedPins.poll()) != null )
+            {
+            if( !pins.contains( pin ) )
+                continue;
+            leaks++;
+            log.warn( "Cached resource stream was not closed, releasing its data." );
+            release( pin );
+            }
+    }
+
+    public synchronized long getHitCount()
+    {
+        return( hits );
+    }
+
+    public synchronized long getMissCount()
+    {
+        return( misses );
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return( evictions );
+    }
+
+    /**
+     *  Returns the number of resources that were too big
+     *  to be cached.
+     */
+    public synchronized long getBypassCount()
+    {
+        return( bypasses );
+    }
+
+    /**
+     *  Returns the number of streams that were garbage collected
+     *  without being closed.
+     */
+    public synchronized long getLeakCount()
+    {
+        return( leaks );
+    }
+
+    public synchronized String toString()
+    {
+        return( "ResourceByteCache[entries:" + entries.size() + ", used:" + getUsedBytes() + "/" + getMaxBytes()
+                + ", hits:" + hits + ", misses:" + misses + ", evictions:" + evictions
+                + ", bypasses:" + bypasses + ", leaks:" + leaks + "]" );
+    }
+
+    private static class Entry
+    {
+        int[] blocks;
+        int size;
+        int pins;
+        boolean removed;
+
+        public Entry( int[] blocks, int size )
+        {
+            this.blocks = blocks;
+            this.size = size;
+        }
+    }
+
+    /**
+     *  Tracks one stream's pin on an entry.  It only holds a phantom
+     *  reference to the stream so that a stream that is never closed can
+     *  still be collected.
+     */
+    private static class Pin extends PhantomReference
+    {
+        Entry entry;
+
+        public Pin( EntryInputStream in, Entry entry, ReferenceQueue queue )
+        {
+            super( in, queue );
+            this.entry = entry;
+        }
+    }
+
+    /**
+     *  Reads an entry's blocks in order.  Holds a pin on the entry
+     *  until closed.
+     */
+    private class EntryInputStream extends InputStream
+    {
+        private Entry entry;
+        private Pin pin;
+        private int position;
+        private ByteBuffer current;
+        private boolean closed;
+
+        public EntryInputStream( Entry entry )
+        {
+            this.entry = entry;
+        }
+
+        private boolean nextBlock() throws IOException
+        {
+            if( closed )
+                throw new IOException( "Stream closed." );
+            if( current != null && current.hasRemaining() )
+                return( true );
+            if( position >= entry.size )
+                return( false );
+
+            current = blocks[entry.blocks[position / blockSize]].duplicate();
+            int start = position % blockSize;
+            current.limit( Math.min( blockSize, start + entry.size - position ) );
+            current.position( start );
+            return( true );
+        }
+
+        public int read() throws IOException
+        {
+            if( !nextBlock() )
+                return( -1 );
+            position++;
+            return( current.get() & 0xff );
+        }
+
+        public int read( byte[] b, int off, int len ) throws IOException
+        {
+            if( len == 0 )
+                return( 0 );
+
+            int total = 0;
+            while( len > 0 && nextBlock() )
+                {
+                int count = Math.min( len, current.remaining() );
+                current.get( b, off, count );
+                position += count;
+                total += count;
+                off += count;
+                len -= count;
+                }
+            return( total == 0 ? -1 : total );
+        }
+
+        public long skip( long n ) throws IOException
+        {
+            if( n <= 0 )
+                return( 0 );
+            long count = Math.min( n, entry.size - position );
+            position += (int)count;
+            current = null;
+            return( count );
+        }
+
+        public int available()
+        {
+            return( entry.size - position );
+        }
+
+        public void close()
+        {
+            if( closed )
+                return;
+            closed = true;
+            release( pin );
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "Meta-JB", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.resource;
+
+import java.util.*;
+
+/**
+ *  Size-bounded, least-recently-used cache of loaded resource
+ *  objects.  Each entry is weighed when it is added and the least
+ *  recently used entries are dropped once the total weight passes
+ *  the maximum.  All methods are thread safe.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class ResourceCache
+{
+    private long maxWeight;
+    private long weight;
+
+    private LinkedHashMap entries = new LinkedHashMap( 256, 0.75f, true );
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ResourceCache( long maxWeight )
+    {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     *  Sets the maximum total weight of the cached objects.  0
+     *  disables caching and empties the cache.
+     */
+    public synchronized void setMaxWeight( long maxWeight )
+    {
+        this.maxWeight = maxWeight;
+        if( maxWeight <= 0 )
+            clear();
+        else
+            evict();
+    }
+
+    public synchronized long getMaxWeight()
+    {
+        return( maxWeight );
+    }
+
+    /**
+     *  Returns true if the cache keeps anything at all.  Callers can
+     *  use this to skip weighing objects that won't be cached.
+     */
+    public synchronized boolean isEnabled()
+    {
+        return( maxWeight > 0 );
+    }
+
+    public synchronized long getWeight()
+    {
+        return( weight );
+    }
+
+    public synchronized int size()
+    {
+        return( entries.size() );
+    }
+
+    /**
+     *  Returns the cached object for the specified key or null
+     *  if it isn't cached.
+     */
+    public synchronized Object get( ResourceKey key )
+    {
+        Entry e = (Entry)entries.get( key );
+        if( e == null )
+            {
+            misses++;
+            return( null );
+            }
+        hits++;
+        return( e.value );
+    }
+
+    /**
+     *  Adds the specified object to the cache with the specified weight.
+     *  Objects heavier than the whole cache are not added and nothing,
+     *  not even weightless objects, is added while caching is disabled.
+     */
+    public synchronized void put( ResourceKey key, Object value, int objectWeight )
+    {
+        remove( key );
+        if( maxWeight <= 0 || value == null || objectWeight > maxWeight )
+            return;
+
+        entries.put( key, new Entry( value, objectWeight ) );
+        weight += objectWeight;
+        evict();
+    }
+
+    /**
+     *  Removes the specified key from the cache.
+     */
+    public synchronized void remove( ResourceKey key )
+    {
+        Entry e = (Entry)entries.remove( key );
+        if( e != null )
+            weight -= e.weight;
+    }
+
+    /**
+     *  Removes everything from the cache.  The statistics are
+     *  not reset.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        weight = 0;
+    }
+
+    private void evict()
+    {
+        for( Iterator i = entries.values().iterator(); weight > maxWeight && i.hasNext(); )
+            {
+            Entry e = (Entry)i.next();
+            i.remove();
+            weight -= e.weight;
+            evictions++;
+            }
+    }
+
+    public synchronized long getHitCount()
+    {
+        return( hits );
+    }
+
+    public synchronized long getMissCount()
+    {
+        return( misses );
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return( evictions );
+    }
+
+    public synchronized void resetStatistics()
+    {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    public synchronized String toString()
+    {
+        return( "ResourceCache[entries:" + entries.size() + ", weight:" + weight + "/" + maxWeight
+                + ", hits:" + hits + ", misses:" + misses + ", evictions:" + evictions + "]" );
+    }
+
+    private static class Entry
+    {
+        Object value;
+        int weight;
+
+        public Entry( Object value, int weight )
+        {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
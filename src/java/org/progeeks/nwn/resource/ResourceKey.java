@@ -97,7 +97,7 @@ public class ResourceKey implements java.io.Serializable, Comparable //, Resourc
 
     public int hashCode()
     {
-        return( name.hashCode() + type );
+        return( name.hashCode() * 31 + type );
     }
 
     public boolean equals( ResourceKey key )
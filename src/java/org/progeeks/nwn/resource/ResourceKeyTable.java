@@ -0,0 +1,325 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "Meta-JB", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.resource;
+
+/**
+ *  Open-addressing hash table from resource keys to long values that
+ *  stores the keys in packed primitive form.  Resource names of up to
+ *  16 ASCII characters are packed into two longs, eight bits per
+ *  character, and the type into an int, so the table needs no objects
+ *  per entry and lookups don't allocate.  Keys that can't be packed
+ *  are rejected by put() and never found by get().  Values must not be
+ *  negative.  Not thread safe for concurrent modification.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class ResourceKeyTable implements Cloneable
+{
+    /**
+     *  Marks an empty slot in the types array.
+     */
+    private static final int EMPTY = -1;
+
+    private long[] lows;
+    private long[] highs;
+    private int[] types;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    public ResourceKeyTable()
+    {
+        this( 16 );
+    }
+
+    /**
+     *  Creates a table that can hold the specified number of keys
+     *  without growing.
+     */
+    public ResourceKeyTable( int expectedSize )
+    {
+        int capacity = 16;
+        while( capacity < expectedSize * 2 )
+            capacity <<= 1;
+        allocate( capacity );
+    }
+
+    private void allocate( int capacity )
+    {
+        lows = new long[capacity];
+        highs = new long[capacity];
+        types = new int[capacity];
+        values = new long[capacity];
+        java.util.Arrays.fill( types, EMPTY );
+        mask = capacity - 1;
+    }
+
+    /**
+     *  Returns true if the specified key can be stored in a
+     *  ResourceKeyTable.
+     */
+    public static boolean isPackable( ResourceKey key )
+    {
+        return( isPackable( key.getName(), key.getType() ) );
+    }
+
+    /**
+     *  Returns true if the name is 16 characters or less with every
+     *  character in the range 1 to 127 and the type is between
+     *  0 and 0xffff.
+     */
+    public static boolean isPackable( String name, int type )
+    {
+        if( type < 0 || type > 0xffff )
+            return( false );
+        int len = name.length();
+        if( len > 16 )
+            return( false );
+        for( int i = 0; i < len; i++ )
+            {
+            char c = name.charAt(i);
+            if( c == 0 || c > 127 )
+                return( false );
+            }
+        return( true );
+    }
+
+    /**
+     *  Returns the first eight characters of the name packed into a long.
+     */
+    public static long packLow( String name )
+    {
+        return( pack( name, 0 ) );
+    }
+
+    /**
+     *  Returns the second eight characters of the name packed into a long.
+     */
+    public static long packHigh( String name )
+    {
+        return( pack( name, 8 ) );
+    }
+
+    private static long pack( String name, int start )
+    {
+        long result = 0;
+        int end = Math.min( name.length(), start + 8 );
+        for( int i = end - 1; i >= start; i-- )
+            result = (result << 8) | (name.charAt(i) & 0xff);
+        return( result );
+    }
+
+    /**
+     *  Returns the name packed into the two longs.
+     */
+    public static String unpack( long low, long high )
+    {
+        char[] chars = new char[16];
+        int len = 0;
+        for( ; len < 8 && (low & 0xff) != 0; len++, low >>>= 8 )
+            chars[len] = (char)(low & 0xff);
+        if( len == 8 )
+            {
+            for( ; len < 16 && (high & 0xff) != 0; len++, high >>>= 8 )
+                chars[len] = (char)(high & 0xff);
+            }
+        return( new String( chars, 0, len ) );
+    }
+
+    private static int hash( long low, long high, int type )
+    {
+        long h = low * 0x9e3779b97f4a7c15L;
+        h ^= high * 0xc2b2ae3d27d4eb4fL;
+        h ^= type * 0x165667b19e3779f9L;
+        h ^= h >>> 29;
+        return( (int)(h ^ (h >>> 32)) );
+    }
+
+    private int findSlot( long low, long high, int type )
+    {
+        int slot = hash( low, high, type ) & mask;
+        while( types[slot] != EMPTY )
+            {
+            if( types[slot] == type && lows[slot] == low && highs[slot] == high )
+                return( slot );
+            slot = (slot + 1) & mask;
+            }
+        return( slot );
+    }
+
+    public int size()
+    {
+        return( size );
+    }
+
+    /**
+     *  Returns the value for the specified key or -1 if the
+     *  key isn't in the table.
+     */
+    public long get( ResourceKey key )
+    {
+        if( !isPackable( key ) )
+            return( -1 );
+        String name = key.getName();
+        return( get( packLow( name ), packHigh( name ), key.getType() ) );
+    }
+
+    /**
+     *  Returns the value for the specified packed key or -1 if the
+     *  key isn't in the table.
+     */
+    public long get( long low, long high, int type )
+    {
+        int slot = findSlot( low, high, type );
+        if( types[slot] == EMPTY )
+            return( -1 );
+        return( values[slot] );
+    }
+
+    public boolean containsKey( ResourceKey key )
+    {
+        return( get( key ) >= 0 );
+    }
+
+    /**
+     *  Sets the value for the specified key and returns the old value
+     *  or -1 if the key wasn't in the table.
+     *
+     *  @throws IllegalArgumentException if the key can't be packed or
+     *          the value is negative.
+     */
+    public long put( ResourceKey key, long value )
+    {
+        if( !isPackable( key ) )
+            throw new IllegalArgumentException( "Key can't be packed:" + key );
+        if( value < 0 )
+            throw new IllegalArgumentException( "Negative value:" + value );
+
+        String name = key.getName();
+        long low = packLow( name );
+        long high = packHigh( name );
+        int type = key.getType();
+
+        int slot = findSlot( low, high, type );
+        if( types[slot] != EMPTY )
+            {
+            long old = values[slot];
+            values[slot] = value;
+            return( old );
+            }
+
+        lows[slot] = low;
+        highs[slot] = high;
+        types[slot] = type;
+        values[slot] = value;
+        size++;
+
+        // Keep the load factor at or below 1/2
+        if( size * 2 > types.length )
+            grow();
+        return( -1 );
+    }
+
+    private void grow()
+    {
+        long[] oldLows = lows;
+        long[] oldHighs = highs;
+        int[] oldTypes = types;
+        long[] oldValues = values;
+
+        allocate( oldTypes.length * 2 );
+        for( int i = 0; i < oldTypes.length; i++ )
+            {
+            if( oldTypes[i] == EMPTY )
+                continue;
+            int slot = findSlot( oldLows[i], oldHighs[i], oldTypes[i] );
+            lows[slot] = oldLows[i];
+            highs[slot] = oldHighs[i];
+            types[slot] = oldTypes[i];
+            values[slot] = oldValues[i];
+            }
+    }
+
+    public void clear()
+    {
+        java.util.Arrays.fill( types, EMPTY );
+        size = 0;
+    }
+
+    /**
+     *  Returns the number of slots in the table.  Used with isUsed(),
+     *  getKey(), and getValue() to walk the entries.
+     */
+    public int getCapacity()
+    {
+        return( types.length );
+    }
+
+    public boolean isUsed( int slot )
+    {
+        return( types[slot] != EMPTY );
+    }
+
+    public ResourceKey getKey( int slot )
+    {
+        return( new ResourceKey( unpack( lows[slot], highs[slot] ), types[slot] ) );
+    }
+
+    public long getValue( int slot )
+    {
+        return( values[slot] );
+    }
+
+    public Object clone()
+    {
+        try
+            {
+            ResourceKeyTable clone = (ResourceKeyTable)super.clone();
+            clone.lows = lows.clone();
+            clone.highs = highs.clone();
+            clone.types = types.clone();
+            clone.values = values.clone();
+            return( clone );
+            }
+        catch( CloneNotSupportedException e )
+            {
+            throw new RuntimeException( "Clone not supported", e );
+            }
+    }
+
+    public String toString()
+    {
+        return( "ResourceKeyTable[size:" + size + ", capacity:" + types.length + "]" );
+    }
+}
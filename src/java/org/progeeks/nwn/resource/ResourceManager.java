@@ -34,6 +34,7 @@ package org.progeeks.nwn.resource;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.progeeks.util.log.*;
 
@@ -50,6 +51,32 @@ public class ResourceManager implements Cloneable
 
     public static final File DEFAULT_NWN_DIR = new File( "/NeverwinterNights/NWN" );
 
+    /**
+     *  The default maximum weight, roughly in bytes, of the loaded
+     *  resource cache.  Set with the nwn.resource.cacheSize system
+     *  property.  Defaults to 0 which disables the cache since cached
+     *  objects are shared between callers.
+     */
+    public static final long DEFAULT_CACHE_SIZE = Long.getLong( "nwn.resource.cacheSize", 0 ).longValue();
+
+    /**
+     *  Weight used for resources whose loader isn't a ResourceWeigher.
+     */
+    private static final int DEFAULT_WEIGHT = 1024;
+
+    /**
+     *  The number of threads reading raw data for getResourcesAsync().
+     *  Reads are mostly I/O bound so a couple are plenty.
+     */
+    private static final int READER_COUNT = 2;
+
+    /**
+     *  How many resources each reader may have read but not yet
+     *  loaded.  This keeps the raw data from piling up in memory when
+     *  loading is slower than reading.
+     */
+    private static final int MAX_READ_AHEAD = Runtime.getRuntime().availableProcessors() * 2;
+
     /**
      *  Maps loaders to resource types.
      */
@@ -60,6 +87,24 @@ public class ResourceManager implements Cloneable
      */
     private ResourceStreamer streamer = new ResourceStreamer();
 
+    /**
+     *  Recently loaded resource objects.
+     */
+    private ResourceCache cache = new ResourceCache( DEFAULT_CACHE_SIZE );
+
+    /**
+     *  Runs the loads for getResourcesAsync().  Created on first use
+     *  if one hasn't been set.
+     */
+    private ExecutorService executor;
+
+    /**
+     *  Runs the GroupReaders for getResourcesAsync().  They have their
+     *  own threads so that a reader waiting for its loads to catch up
+     *  never holds a thread the loads need.
+     */
+    private ExecutorService readers;
+
     public ResourceManager()
     {
         setupDefaultLoaders();
@@ -74,6 +119,9 @@ public class ResourceManager implements Cloneable
         ResourceManager clone = new ResourceManager();
         clone.loaderMap.putAll( loaderMap );
         clone.streamer = (ResourceStreamer)streamer.clone();
+        clone.cache = new ResourceCache( cache.getMaxWeight() );
+        clone.executor = executor;
+        clone.readers = readers;
 
         return( clone );
     }
@@ -107,11 +155,48 @@ public class ResourceManager implements Cloneable
         return( streamer.getResourceLocationInfo( key ) );
     }
 
+    /**
+     *  Returns the cache of loaded resource objects.  This can be used
+     *  to enable or resize the cache with setMaxWeight() or to check
+     *  its hit and miss counts.
+     */
+    public ResourceCache getResourceCache()
+    {
+        return( cache );
+    }
+
+    /**
+     *  Removes any cached object for the specified key so that it
+     *  will be reloaded the next time it is requested.
+     */
+    public void invalidate( ResourceKey key )
+    {
+        cache.remove( key );
+    }
+
+    /**
+     *  Removes all cached resource objects.
+     */
+    public void clearCache()
+    {
+        cache.clear();
+    }
+
     /**
      *  Returns a type-specific object for the specified resource key.
+     *  If the resource cache is enabled then loaded objects are cached
+     *  and the same instance is returned to every caller until it is
+     *  evicted or invalidated.  Callers must not modify the returned
+     *  Struct, List, Image, etc. in that case; copy it first or call
+     *  invalidate() after changing it.  With the cache disabled, the
+     *  default, every call loads a new object.
      */
     public Object getResource( ResourceKey key )
     {
+        Object result = cache.get( key );
+        if( result != null )
+            return( result );
+
         ResourceLoader loader = getLoader( key.getType() );
         if( loader == null )
             {
@@ -128,7 +213,9 @@ public class ResourceManager implements Cloneable
 
         try
             {
-            return( loader.loadResource( key, in ) );
+            result = loader.loadResource( key, in );
+            cacheResource( key, loader, result );
+            return( result );
             }
         catch( IOException e )
             {
@@ -137,6 +224,116 @@ public class ResourceManager implements Cloneable
             }
     }
 
+    private void cacheResource( ResourceKey key, ResourceLoader loader, Object result )
+    {
+        // Weighing can mean walking the whole object so don't bother
+        // when it won't be kept.
+        if( result == null || !cache.isEnabled() )
+            return;
+
+        int weight = DEFAULT_WEIGHT;
+        if( loader instanceof ResourceWeigher )
+            weight = ((ResourceWeigher)loader).getWeight( key, result );
+        cache.put( key, result, weight );
+    }
+
+    /**
+     *  Sets the executor used by getResourcesAsync().
+     */
+    public synchronized void setExecutor( ExecutorService executor )
+    {
+        this.executor = executor;
+    }
+
+    /**
+     *  Returns the executor used by getResourcesAsync().  If one hasn't
+     *  been set then a pool of daemon threads, one per processor,
+     *  is created.
+     */
+    public synchronized ExecutorService getExecutor()
+    {
+        if( executor == null )
+            {
+            executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(),
+                                                     new ThreadFactory()
+                                                        {
+                                                            public Thread newThread( Runnable r )
+                                                            {
+                                                                Thread t = new Thread( r, "ResourceLoader" );
+                                                                t.setDaemon( true );
+                                                                return( t );
+                                                            }
+                                                        } );
+            }
+        return( executor );
+    }
+
+    private synchronized ExecutorService getReaders()
+    {
+        if( readers == null )
+            {
+            readers = Executors.newFixedThreadPool( READER_COUNT,
+                                                    new ThreadFactory()
+                                                        {
+                                                            public Thread newThread( Runnable r )
+                                                            {
+                                                                Thread t = new Thread( r, "ResourceReader" );
+                                                                t.setDaemon( true );
+                                                                return( t );
+                                                            }
+                                                        } );
+            }
+        return( readers );
+    }
+
+    /**
+     *  Loads the resources for the specified keys in the background and
+     *  returns a map of their keys to Futures for the loaded objects, in
+     *  the same order as the keys.  The keys are grouped by the BIF, ERF,
+     *  or directory that contains them.  Each group's raw data is read by
+     *  one task in file order, and each resource is handed off to the
+     *  executor to be decoded while the next one is read.  Each reader
+     *  only reads a few resources ahead of the decoding.  A Future's value
+     *  is null if the resource can't be found or has no loader and its
+     *  get() throws an ExecutionException if the resource can't be read
+     *  or loaded.  Loaded objects are cached and shared the same as
+     *  getResource() and must not be modified when the cache is enabled.
+     */
+    public Map getResourcesAsync( Collection keys )
+    {
+        ExecutorService exec = getExecutor();
+        ExecutorService reader = getReaders();
+
+        Map results = new LinkedHashMap();
+        for( Iterator i = keys.iterator(); i.hasNext(); )
+            {
+            ResourceKey key = (ResourceKey)i.next();
+            if( !results.containsKey( key ) )
+                results.put( key, new AsyncLoad( key ) );
+            }
+
+        List groups = streamer.groupByContainer( results.keySet() );
+        for( Iterator i = groups.iterator(); i.hasNext(); )
+            {
+            List group = (List)i.next();
+            List loads = new ArrayList( group.size() );
+            for( Iterator j = group.iterator(); j.hasNext(); )
+                loads.add( results.get( j.next() ) );
+
+            try
+                {
+                reader.execute( new GroupReader( loads, exec ) );
+                }
+            catch( RejectedExecutionException e )
+                {
+                for( Iterator j = loads.iterator(); j.hasNext(); )
+                    ((AsyncLoad)j.next()).fail( e );
+                }
+            }
+
+        return( results );
+    }
+
     /**
      *  Registers a specific loader implementation with the specified resource type.
      */
@@ -151,6 +348,7 @@ public class ResourceManager implements Cloneable
     public void registerLoader( Integer type, ResourceLoader loader )
     {
         loaderMap.put( type, loader );
+        cache.clear();
     }
 
     /**
@@ -171,11 +369,14 @@ public class ResourceManager implements Cloneable
 
     /**
      *  Adds the specified key file to this resource manager's
-     *  resource index.
+     *  resource index.  Adding resources of any kind clears the
+     *  cache of loaded objects since the new resources may
+     *  replace cached ones.
      */
     public void addKeyFile( File keyFile ) throws IOException
     {
         streamer.addKeyFile( keyFile );
+        cache.clear();
     }
 
     /**
@@ -185,6 +386,7 @@ public class ResourceManager implements Cloneable
     public void addResourceDirectory( File directory )
     {
         streamer.addResourceDirectory( directory );
+        cache.clear();
     }
 
     /**
@@ -194,6 +396,7 @@ public class ResourceManager implements Cloneable
     public void addResourceFile( File resource )
     {
         streamer.addResourceFile( resource );
+        cache.clear();
     }
 
     /**
@@ -203,6 +406,7 @@ public class ResourceManager implements Cloneable
     public void addResourceFile( File resource, int type )
     {
         streamer.addResourceFile( resource, type );
+        cache.clear();
     }
 
     /**
@@ -212,16 +416,230 @@ public class ResourceManager implements Cloneable
     public void addEncapsulatedResourceFile( File erf ) throws IOException
     {
         streamer.addEncapsulatedResourceFile( erf );
+        cache.clear();
     }
 
     public void loadDefaultKeys( File nwn ) throws IOException
     {
         streamer.loadDefaultKeys( nwn );
+        cache.clear();
     }
 
     public void loadDefaultKeys() throws IOException
     {
         streamer.loadDefaultKeys();
+        cache.clear();
+    }
+
+    /**
+     *  Clears the cache and releases the open files used to read
+     *  resources.  The resource manager should not be used after
+     *  it is closed.
+     */
+    public void close()
+    {
+        cache.clear();
+        streamer.close();
+    }
+
+    /**
+     *  Reads the raw data for one container's resources in order and
+     *  hands each resource off to be loaded.  A permit is taken for each
+     *  resource read and given back when its load finishes so that no
+     *  more than MAX_READ_AHEAD resources are waiting to be loaded.
+     */
+    private class GroupReader implements Runnable
+    {
+        private List loads;
+        private Executor exec;
+        private Semaphore readAhead = new Semaphore( MAX_READ_AHEAD );
+
+        public GroupReader( List loads, Executor exec )
+        {
+            this.loads = loads;
+            this.exec = exec;
+        }
+
+        public void run()
+        {
+            for( Iterator i = loads.iterator(); i.hasNext(); )
+                {
+                AsyncLoad load = (AsyncLoad)i.next();
+                if( load.isCancelled() )
+                    continue;
+
+                try
+                    {
+                    readAhead.acquire();
+                    }
+                catch( InterruptedException e )
+                    {
+                    // The reader pool is being shut down
+                    load.fail( e );
+                    while( i.hasNext() )
+                        ((AsyncLoad)i.next()).fail( e );
+                    return;
+                    }
+                load.hold( readAhead );
+
+                load.read();
+                try
+                    {
+                    exec.execute( load );
+                    }
+                catch( RejectedExecutionException e )
+                    {
+                    // Neither this load nor the rest of the group
+                    // will ever run
+                    load.fail( e );
+                    while( i.hasNext() )
+                        ((AsyncLoad)i.next()).fail( e );
+                    }
+                }
+        }
     }
 
+    /**
+     *  Future for one resource.  The raw data is read by a GroupReader
+     *  and the object is loaded from it when the future is run.
+     */
+    private class AsyncLoad extends FutureTask
+    {
+        private LoadTask task;
+        private Semaphore permit;
+
+        public AsyncLoad( ResourceKey key )
+        {
+            this( new LoadTask( key ) );
+        }
+
+        private AsyncLoad( LoadTask task )
+        {
+            super( task );
+            this.task = task;
+        }
+
+        protected void read()
+        {
+            task.read();
+        }
+
+        /**
+         *  Completes this future with the specified error if it
+         *  hasn't already completed.
+         */
+        protected void fail( Throwable t )
+        {
+            setException( t );
+        }
+
+        /**
+         *  Holds a permit from the specified semaphore until this
+         *  future completes, however it completes.
+         */
+        protected synchronized void hold( Semaphore s )
+        {
+            if( isDone() )
+                s.release();
+            else
+                permit = s;
+        }
+
+        protected synchronized void done()
+        {
+            if( permit != null )
+                {
+                permit.release();
+                permit = null;
+                }
+        }
+    }
+
+    /**
+     *  Loads one resource object from the raw data read earlier,
+     *  rethrowing any error from the read.
+     */
+    private class LoadTask implements Callable
+    {
+        private ResourceKey key;
+        private ResourceLoader loader;
+        private Object cached;
+        private byte[] data;
+        private Exception error;
+
+        public LoadTask( ResourceKey key )
+        {
+            this.key = key;
+        }
+
+        /**
+         *  Reads the raw data for the resource unless the object is
+         *  already cached.  Errors are kept until call().
+         */
+        protected void read()
+        {
+            try
+                {
+                readData();
+                }
+            catch( IOException e )
+                {
+                error = e;
+                }
+            catch( RuntimeException e )
+                {
+                error = e;
+                }
+        }
+
+        private void readData() throws IOException
+        {
+            cached = cache.get( key );
+            if( cached != null )
+                return;
+
+            loader = getLoader( key.getType() );
+            if( loader == null )
+                {
+                log.error( "No loader for key type, key:" + key );
+                return;
+                }
+
+            InputStream in = getResourceStream( key );
+            if( in == null )
+                {
+                log.error( "Could not get data stream for key:" + key );
+                return;
+                }
+
+            try
+                {
+                ByteArrayOutputStream bOut = new ByteArrayOutputStream( Math.max( 32, in.available() ) );
+                byte[] buff = new byte[16384];
+                int len;
+                while( (len = in.read( buff )) >= 0 )
+                    bOut.write( buff, 0, len );
+                data = bOut.toByteArray();
+                }
+            finally
+                {
+                in.close();
+                }
+        }
+
+        public Object call() throws Exception
+        {
+            if( error != null )
+                throw error;
+            if( cached != null || data == null )
+                return( cached );
+
+            // Let go of the raw data even if the load fails
+            byte[] bytes = data;
+            data = null;
+            Object result = loader.loadResource( key, new ByteArrayInputStream( bytes ) );
+            cacheResource( key, loader, result );
+            return( result );
+        }
+    }
 }
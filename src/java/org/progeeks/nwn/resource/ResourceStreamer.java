@@ -38,6 +38,7 @@ import java.util.*;
 import org.progeeks.nwn.*;
 import org.progeeks.nwn.io.key.*;
 import org.progeeks.nwn.io.bif.*;
+import org.progeeks.nwn.io.erf.*;
 import org.progeeks.util.log.*;
 
 
@@ -52,9 +53,51 @@ public class ResourceStreamer implements Cloneable
     static Log log = Log.getLog( ResourceStreamer.class );
 
     /**
-     *  Maps resource keys to specific stream implementations.
+     *  Maps packed resource keys to the number of their container
+     *  in the upper 32 bits and the container specific entry in the
+     *  lower 32 bits.
      */
-    private Map resources = new HashMap();
+    private ResourceKeyTable resources = new ResourceKeyTable( 1024 );
+
+    /**
+     *  The containers referenced by the resources table.  Each is
+     *  either a DirectIndex for a single file, the File of a BIF,
+     *  or an ErfContainer.
+     */
+    private List containers = new ArrayList();
+
+    /**
+     *  Maps the few resource keys that can't be packed directly
+     *  to their indexes.
+     */
+    private Map unpackedResources = new HashMap();
+
+    /**
+     *  Maps ERF files to the open archives used to read them so
+     *  that each file's tables are only parsed once.  Clones share
+     *  the archives and each archive is closed when the last
+     *  streamer referencing it releases it.
+     */
+    private Map archives = new HashMap();
+
+    /**
+     *  Counts the streamers referencing each open ERF archive.
+     */
+    private static Map archiveRefs = new IdentityHashMap();
+
+    /**
+     *  Cached key file indexes loaded by loadDefaultKeys().  These are
+     *  searched, most recent first, for any key that isn't in the
+     *  resources map.
+     */
+    private List keyIndexes = new ArrayList();
+
+    /**
+     *  Optional off-heap cache of resource data.  Entries are keyed
+     *  by location rather than by resource key so the cache can be
+     *  shared between streamers.
+     */
+    private ResourceByteCache byteCache = ResourceByteCache.getSharedCache();
 
     /**
      *  Returns a clone of this streamer.
@@ -62,10 +105,109 @@ public class ResourceStreamer implements Cloneable
     public Object clone()
     {
         ResourceStreamer clone = new ResourceStreamer();
-        clone.resources.putAll( resources );
+        clone.resources = (ResourceKeyTable)resources.clone();
+        clone.containers.addAll( containers );
+        clone.unpackedResources.putAll( unpackedResources );
+        synchronized( archives )
+            {
+            for( Iterator i = archives.values().iterator(); i.hasNext(); )
+                acquire( (ErfArchive)i.next() );
+            clone.archives.putAll( archives );
+            }
+        clone.keyIndexes.addAll( keyIndexes );
+        clone.byteCache = byteCache;
         return( clone );
     }
 
+    /**
+     *  Sets the cache that resource data is read through or null
+     *  to read directly from the containers.  By default this is the
+     *  shared cache configured with the nwn.resource.byteCacheSize
+     *  system property, if any.
+     */
+    public void setByteCache( ResourceByteCache byteCache )
+    {
+        this.byteCache = byteCache;
+    }
+
+    public ResourceByteCache getByteCache()
+    {
+        return( byteCache );
+    }
+
+    /**
+     *  Returns the index for the specified key, checking the key
+     *  file indexes if it isn't in the resources map.
+     */
+    private ResourceIndex getIndex( ResourceKey key )
+    {
+        long value = resources.get( key );
+        if( value >= 0 )
+            return( createIndex( key, (int)(value >>> 32), (int)value ) );
+
+        ResourceIndex index = (ResourceIndex)unpackedResources.get( key );
+        if( index != null )
+            return( index );
+
+        for( int i = keyIndexes.size() - 1; i >= 0; i-- )
+            {
+            KeyIndex keys = (KeyIndex)keyIndexes.get(i);
+            int entry = keys.indexOf( key );
+            if( entry >= 0 )
+                return( new BifIndex( keys.getBifFile( entry ), keys.getResourceId( entry ) ) );
+            }
+        return( null );
+    }
+
+    /**
+     *  Creates the index for the specified entry in the specified
+     *  container.
+     */
+    private ResourceIndex createIndex( ResourceKey key, int container, int entry )
+    {
+        Object c = containers.get( container );
+        if( c instanceof ResourceIndex )
+            return( (ResourceIndex)c );
+        if( c instanceof File )
+            return( new BifIndex( (File)c, entry ) );
+
+        ErfContainer erf = (ErfContainer)c;
+        if( erf.byKey )
+            entry = erf.archive.indexOf( key );
+        return( new ErfIndex( erf.archive, erf.fromHak, key, entry ) );
+    }
+
+    private int addContainer( Object container )
+    {
+        containers.add( container );
+        return( containers.size() - 1 );
+    }
+
+    private void addResource( ResourceKey key, int container, int entry )
+    {
+        if( ResourceKeyTable.isPackable( key ) )
+            resources.put( key, ((long)container << 32) | (entry & 0xffffffffL) );
+        else
+            unpackedResources.put( key, createIndex( key, container, entry ) );
+    }
+
+    /**
+     *  Returns true if the specified key is currently supplied by
+     *  a HAK file.
+     */
+    private boolean isFromHak( ResourceKey key )
+    {
+        long value = resources.get( key );
+        if( value >= 0 )
+            {
+            Object c = containers.get( (int)(value >>> 32) );
+            return( c instanceof ErfContainer && ((ErfContainer)c).fromHak );
+            }
+
+        Object index = unpackedResources.get( key );
+        return( index instanceof ErfIndex && ((ErfIndex)index).fromHak );
+    }
+
     /**
      *  Returns the InputStream for the specified resource key.
      */
@@ -73,10 +215,21 @@ public class ResourceStreamer implements Cloneable
     {
         try
             {
-            ResourceIndex index = (ResourceIndex)resources.get( key );
+            ResourceIndex index = getIndex( key );
             if( index == null )
                 return( null );
-            return( index.getResourceStream() );
+            if( byteCache == null )
+                return( index.getResourceStream() );
+
+            Object cacheKey = index.getCacheKey();
+            InputStream in = byteCache.open( cacheKey );
+            if( in != null )
+                return( in );
+
+            in = index.getResourceStream();
+            if( in == null )
+                return( null );
+            return( byteCache.load( cacheKey, in, index.getSize() ) );
             }
         catch( IOException e )
             {
@@ -85,13 +238,83 @@ public class ResourceStreamer implements Cloneable
             }
     }
 
+    /**
+     *  Splits the specified keys into groups that share the same
+     *  container (BIF, ERF, or directory) with each group sorted by
+     *  the position of the resources in their container.  Reading
+     *  each group in order reads each container front to back once.
+     *  Keys that can't be found are returned together as the last
+     *  group.
+     */
+    public List groupByContainer( Collection keys )
+    {
+        Map groups = new LinkedHashMap();
+        final Map offsets = new HashMap();
+        List missing = new ArrayList();
+        for( Iterator i = keys.iterator(); i.hasNext(); )
+            {
+            ResourceKey key = (ResourceKey)i.next();
+            ResourceIndex index = getIndex( key );
+            if( index == null )
+                {
+                missing.add( key );
+                continue;
+                }
+
+            long offset = 0;
+            try
+                {
+                offset = index.getOffset();
+                }
+            catch( IOException e )
+                {
+                // It will fail again when it is read so just
+                // put it first.
+                log.warn( "Error finding offset for:" + key, e );
+                }
+            offsets.put( key, new Long( offset ) );
+
+            List group = (List)groups.get( index.getContainer() );
+            if( group == null )
+                {
+                group = new ArrayList();
+                groups.put( index.getContainer(), group );
+                }
+            group.add( key );
+            }
+
+        Comparator byOffset = new Comparator()
+            {
+                public int compare( Object o1, Object o2 )
+                {
+                    long l1 = ((Long)offsets.get( o1 )).longValue();
+                    long l2 = ((Long)offsets.get( o2 )).longValue();
+                    if( l1 != l2 )
+                        return( l1 < l2 ? -1 : 1 );
+                    return( ((ResourceKey)o1).compareTo( o2 ) );
+                }
+            };
+
+        List results = new ArrayList( groups.size() + 1 );
+        for( Iterator i = groups.values().iterator(); i.hasNext(); )
+            {
+            List group = (List)i.next();
+            Collections.sort( group, byOffset );
+            results.add( group );
+            }
+        if( !missing.isEmpty() )
+            results.add( missing );
+
+        return( results );
+    }
+
     /**
      *  Returns a string indicator for the resource location.  Useful in
      *  debugging look-up failures for overrides, etc..
      */
     public String getResourceLocationInfo( ResourceKey key )
     {
-        ResourceIndex index = (ResourceIndex)resources.get( key );
+        ResourceIndex index = getIndex( key );
         return( index.getLocationInfo() );
     }
 
@@ -124,12 +347,12 @@ public class ResourceStreamer implements Cloneable
                         log.debug( "Converted embedded path:" + file.getFileName() + " to:" + fileName );
                     }
 
+                int bif = addContainer( new File( parent, fileName ) );
                 for( Iterator j = file.getKeyEntries().iterator(); j.hasNext(); )
                     {
                     KeyReader.KeyEntry key = (KeyReader.KeyEntry)j.next();
 
-                    resources.put( key.getKey(), new BifIndex( new File( parent, fileName ),
-                                                               key.getResourceId() ) );
+                    addResource( key.getKey(), bif, key.getResourceId() );
                     }
                 }
             }
@@ -182,7 +405,7 @@ public class ResourceStreamer implements Cloneable
         int split = name.lastIndexOf( '.' );
         name = name.substring( 0, split ).toLowerCase();
 
-        resources.put( new ResourceKey( name, type ), new DirectIndex( resource ) );
+        addResource( new ResourceKey( name, type ), addContainer( new DirectIndex( resource ) ), 0 );
     }
 
     /**
@@ -196,40 +419,133 @@ public class ResourceStreamer implements Cloneable
         // then.
         boolean fromHak = erfFile.getName().toLowerCase().endsWith( ".hak" );
 
-        FileInputStream fIn = new FileInputStream( erfFile );
-        try
+        ErfArchive archive = getArchive( erfFile );
+        int container = addContainer( new ErfContainer( archive, fromHak, false ) );
+        for( int i = 0; i < archive.getEntryCount(); i++ )
             {
-            ModReader reader = new ModReader( fIn );
-            ModReader.ResourceInputStream resource = null;
-            while( (resource = reader.nextResource()) != null )
+            // We don't read it, just catalog it.
+            ResourceKey key = archive.getKey( i );
+
+            // See if the resource already exists... if it is
+            // another HAK resource then we won't override it
+            // so that we can simulate the standard NWN loading
+            // order.
+            if( fromHak && isFromHak( key ) )
                 {
-                // We don't read it, just catalog it.
-                String name = resource.getResourceName().toLowerCase();
-                int type = resource.getResourceType();
-
-                ResourceKey key = new ResourceKey( name, type );
-
-                // See if the resource already exists... if it is
-                // another HAK resource then we won't override it
-                // so that we can simulate the standard NWN loading
-                // order.
-                ResourceIndex ri = (ResourceIndex)resources.get( key );
-                if( ri != null && ri instanceof ErfIndex )
+                // If it is from a hak then don't add this
+                // resource.
+                continue;
+                }
+
+            // The first entry wins if the ERF has duplicates
+            addResource( key, container, archive.indexOf( key ) );
+            }
+    }
+
+    /**
+     *  Returns the shared archive for the specified ERF file, opening
+     *  it if this streamer has not seen the file before or if the file
+     *  has changed since it was opened.
+     */
+    protected ErfArchive getArchive( File erfFile ) throws IOException
+    {
+        File f = erfFile.getAbsoluteFile();
+        synchronized( archives )
+            {
+            ErfArchive archive = (ErfArchive)archives.get( f );
+            if( archive == null || archive.isStale() )
+                {
+                ErfArchive old = archive;
+                archive = new ErfArchive( f );
+                acquire( archive );
+                archives.put( f, archive );
+                if( old != null )
                     {
-                    // If it is from a hak then don't add this
-                    // resource.
-                    if( ((ErfIndex)ri).fromHak && fromHak )
-                        {
-                        continue;
-                        }
+                    replaceArchive( old, archive );
+                    release( old );
                     }
+                }
+            return( archive );
+            }
+    }
+
+    /**
+     *  Points the resources that were read from the old archive
+     *  at the new one.  The entry numbers of the old archive mean
+     *  nothing in the new one so those resources are looked up
+     *  by key from now on.
+     */
+    private void replaceArchive( ErfArchive old, ErfArchive archive )
+    {
+        // The containers are shared with clones so they are
+        // replaced rather than modified.
+        for( int i = 0; i < containers.size(); i++ )
+            {
+            Object c = containers.get(i);
+            if( !(c instanceof ErfContainer) || ((ErfContainer)c).archive != old )
+                continue;
+            containers.set( i, new ErfContainer( archive, ((ErfContainer)c).fromHak, true ) );
+            }
 
-                resources.put( key, new ErfIndex( erfFile, fromHak, key ) );
+        for( Iterator i = unpackedResources.entrySet().iterator(); i.hasNext(); )
+            {
+            Map.Entry e = (Map.Entry)i.next();
+            if( !(e.getValue() instanceof ErfIndex) )
+                continue;
+            ErfIndex index = (ErfIndex)e.getValue();
+            if( index.archive != old )
+                continue;
+            e.setValue( new ErfIndex( archive, index.fromHak, index.key,
+                                      archive.indexOf( index.key ) ) );
+            }
+    }
+
+    /**
+     *  Releases the open ERF archives referenced by this streamer,
+     *  closing any that are not still referenced by a clone.  The
+     *  streamer should not be used after it is closed.
+     */
+    public void close()
+    {
+        synchronized( archives )
+            {
+            for( Iterator i = archives.values().iterator(); i.hasNext(); )
+                release( (ErfArchive)i.next() );
+            archives.clear();
+            }
+    }
+
+    private static void acquire( ErfArchive archive )
+    {
+        synchronized( archiveRefs )
+            {
+            int[] count = (int[])archiveRefs.get( archive );
+            if( count == null )
+                {
+                count = new int[1];
+                archiveRefs.put( archive, count );
                 }
+            count[0]++;
             }
-        finally
+    }
+
+    private static void release( ErfArchive archive )
+    {
+        synchronized( archiveRefs )
             {
-            fIn.close();
+            int[] count = (int[])archiveRefs.get( archive );
+            if( count == null || --count[0] > 0 )
+                return;
+            archiveRefs.remove( archive );
+            }
+
+        try
+            {
+            archive.close();
+            }
+        catch( IOException e )
+            {
+            log.warn( "Error closing:" + archive.getFile(), e );
             }
     }
 
@@ -244,7 +560,10 @@ public class ResourceStreamer implements Cloneable
     /**
      *  Loads the key files from the specified neverwinter
      *  nights directory.  This is the location of the NeverwinterNights/NWN
-     *  directory.
+     *  directory.  The key files are loaded in name order and their merged
+     *  index is cached on disk so that later runs can map it in directly
+     *  instead of reparsing the key files.  Resources added any other way
+     *  take precedence over the resources in these key files.
      */
     public void loadDefaultKeys( File nwn ) throws IOException
     {
@@ -264,10 +583,22 @@ public class ResourceStreamer implements Cloneable
                                 }
                             } );
 
-            for( int i = 0; i < keys.length; i++ )
+            // chitin, xp1, xp1patch, xp2, etc.
+            Arrays.sort( keys );
+
+            KeyIndex index;
+            try
+                {
+                index = KeyIndex.load( keys, getKeyIndexCache( nwn ) );
+                }
+            catch( IOException e )
                 {
-                addKeyFile( keys[i] );
+                log.warn( "Unable to index key files, loading them directly.", e );
+                for( int i = 0; i < keys.length; i++ )
+                    addKeyFile( keys[i] );
+                return;
                 }
+            keyIndexes.add( index );
 
             long endTime = System.currentTimeMillis();
             if( log.isInfoEnabled() )
@@ -278,6 +609,25 @@ public class ResourceStreamer implements Cloneable
             }
     }
 
+    /**
+     *  Returns the file used to cache the key index for the specified
+     *  NWN directory or null if caching is disabled.  The cache lives in
+     *  the directory set by the nwn.key.cache system property or
+     *  ~/.nwntools by default.  Setting the property to an empty
+     *  string disables the cache.
+     */
+    protected File getKeyIndexCache( File nwn )
+    {
+        String dir = System.getProperty( "nwn.key.cache" );
+        if( dir == null )
+            dir = new File( System.getProperty( "user.home" ), ".nwntools" ).getPath();
+        if( dir.length() == 0 )
+            return( null );
+
+        String id = Integer.toHexString( nwn.getAbsolutePath().hashCode() );
+        return( new File( dir, "keyindex-" + id + ".cache" ) );
+    }
+
     public static void main( String[] args ) throws Exception
     {
         long startTime = System.currentTimeMillis();
@@ -359,6 +709,30 @@ public class ResourceStreamer implements Cloneable
          *  Returns a String location indicator for the resource.
          */
         public abstract String getLocationInfo();
+
+        /**
+         *  Returns the file or directory that holds this resource.
+         *  Resources with the same container can be read in one pass
+         *  in offset order.
+         */
+        public abstract File getContainer();
+
+        /**
+         *  Returns the position of this resource's data within its
+         *  container.
+         */
+        public abstract long getOffset() throws IOException;
+
+        /**
+         *  Returns the size of this resource's data.
+         */
+        public abstract long getSize() throws IOException;
+
+        /**
+         *  Returns a key that identifies this version of the resource's
+         *  data in a ResourceByteCache.
+         */
+        public abstract Object getCacheKey() throws IOException;
     }
 
     /**
@@ -388,6 +762,28 @@ public class ResourceStreamer implements Cloneable
         {
             return( String.valueOf(file) );
         }
+
+        public File getContainer()
+        {
+            return( file.getAbsoluteFile().getParentFile() );
+        }
+
+        public long getOffset()
+        {
+            return( 0 );
+        }
+
+        public long getSize()
+        {
+            return( file.length() );
+        }
+
+        public Object getCacheKey()
+        {
+            // Loose files can be edited so the modification time
+            // is part of the key.
+            return( new CacheKey( file, file.lastModified() ) );
+        }
     }
 
     /**
@@ -409,12 +805,12 @@ public class ResourceStreamer implements Cloneable
          */
         public InputStream getResourceStream() throws IOException
         {
-            log.info( "Opening BIF file:" + file + "   index:" + (id & 0x3fff) );
-            FileInputStream fIn = new FileInputStream( file );
-            BifReader reader = new BifReader( new BufferedInputStream( fIn, 32768 ) );
-            InputStream resIn = reader.getResource( id );
+            if( log.isDebugEnabled() )
+                log.debug( "Opening BIF file:" + file + "   index:" + (id & 0x3fff) );
 
-            return( new ParentClosingStream( resIn, fIn ) );
+            // The shared cache keeps the BIF's resource table and an
+            // open channel around between resources.
+            return( BifCache.getSharedCache().getArchive( file ).getResource( id ) );
         }
 
         /**
@@ -424,6 +820,32 @@ public class ResourceStreamer implements Cloneable
         {
             return( "BIF: " + file + " index:" + id );
         }
+
+        public File getContainer()
+        {
+            return( file );
+        }
+
+        public long getOffset() throws IOException
+        {
+            BifArchive archive = BifCache.getSharedCache().getArchive( file );
+            int index = archive.indexOf( id );
+            return( index < 0 ? 0 : archive.getOffset( index ) );
+        }
+
+        public long getSize() throws IOException
+        {
+            BifArchive archive = BifCache.getSharedCache().getArchive( file );
+            int index = archive.indexOf( id );
+            return( index < 0 ? -1 : archive.getSize( index ) );
+        }
+
+        public Object getCacheKey() throws IOException
+        {
+            // The BifCache replaces archives whose files have changed
+            // so the archive itself identifies the data.
+            return( new CacheKey( BifCache.getSharedCache().getArchive( file ), id ) );
+        }
     }
 
     /**
@@ -434,12 +856,16 @@ public class ResourceStreamer implements Cloneable
         private File file;
         private boolean fromHak;
         private ResourceKey key;
+        private transient ErfArchive archive;
+        private transient int entry;
 
-        protected ErfIndex( File file, boolean fromHak, ResourceKey key )
+        protected ErfIndex( ErfArchive archive, boolean fromHak, ResourceKey key, int entry )
         {
-            this.file = file;
+            this.file = archive.getFile();
             this.fromHak = fromHak;
             this.key = key;
+            this.archive = archive;
+            this.entry = entry;
         }
 
         /**
@@ -447,24 +873,24 @@ public class ResourceStreamer implements Cloneable
          */
         public InputStream getResourceStream() throws IOException
         {
-            //System.out.println( "Opening encapsulated resource file:" + file + "   key:" + key );
-            log.info( "Opening encapsulated resource file:" + file + "   key:" + key );
+            if( log.isDebugEnabled() )
+                log.debug( "Opening encapsulated resource file:" + file + "   key:" + key );
 
-            FileInputStream fIn = new FileInputStream( file );
-            ModReader reader = new ModReader( new BufferedInputStream( fIn, 32768 ) );
+            ErfArchive archive = getArchive();
+            if( entry < 0 )
+                return( null );
+            return( archive.open( entry ) );
+        }
 
-            // Find the appropriate resource
-            ModReader.ResourceInputStream resource = null;
-            while( (resource = reader.nextResource()) != null )
+        private synchronized ErfArchive getArchive() throws IOException
+        {
+            // Only happens after deserialization
+            if( archive == null )
                 {
-                if( key.getType() != resource.getResourceType() )
-                    continue;
-                if( !key.getName().equalsIgnoreCase( resource.getResourceName() ) )
-                    continue;
-                return( new ParentClosingStream( resource, fIn ) );
+                archive = new ErfArchive( file );
+                entry = archive.indexOf( key );
                 }
-
-            return( null );
+            return( archive );
         }
 
         /**
@@ -474,28 +900,78 @@ public class ResourceStreamer implements Cloneable
         {
             return( "ERF: " + file + (fromHak?"from HAK file":"") );
         }
-    }
 
+        public File getContainer()
+        {
+            return( file );
+        }
+
+        public long getOffset() throws IOException
+        {
+            ErfArchive archive = getArchive();
+            return( entry < 0 ? 0 : archive.getOffset( entry ) );
+        }
+
+        public long getSize() throws IOException
+        {
+            ErfArchive archive = getArchive();
+            return( entry < 0 ? -1 : archive.getSize( entry ) );
+        }
+
+        public Object getCacheKey() throws IOException
+        {
+            return( new CacheKey( getArchive(), entry ) );
+        }
+    }
 
     /**
-     *  Filter stream implementation that can close a parent stream
-     *  when the stream is closed.
+     *  Identifies resource data in the byte cache by its container
+     *  and the entry within that container.
      */
-    private static class ParentClosingStream extends FilterInputStream
+    private static class CacheKey
     {
-        private InputStream parent;
+        private Object container;
+        private long entry;
+
+        public CacheKey( Object container, long entry )
+        {
+            this.container = container;
+            this.entry = entry;
+        }
 
-        public ParentClosingStream( InputStream in, InputStream parent )
+        public int hashCode()
         {
-            super( in );
-            this.parent = parent;
+            return( container.hashCode() * 31 + (int)(entry ^ (entry >>> 32)) );
         }
 
-        public void close() throws IOException
+        public boolean equals( Object obj )
         {
-            super.close();
-            parent.close();
+            if( !(obj instanceof CacheKey) )
+                return( false );
+            CacheKey other = (CacheKey)obj;
+            return( entry == other.entry && container.equals( other.container ) );
         }
     }
-}
 
+    /**
+     *  An ERF file in the containers list.
+     */
+    private static class ErfContainer
+    {
+        ErfArchive archive;
+        boolean fromHak;
+
+        /**
+         *  True if the resource entries were recorded against an
+         *  older version of the archive and must be found by key.
+         */
+        boolean byKey;
+
+        public ErfContainer( ErfArchive archive, boolean fromHak, boolean byKey )
+        {
+            this.archive = archive;
+            this.fromHak = fromHak;
+            this.byKey = byKey;
+        }
+    }
+}
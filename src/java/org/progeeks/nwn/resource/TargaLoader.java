@@ -32,6 +32,8 @@
 
 package org.progeeks.nwn.resource;
 
+import java.awt.Image;
+import java.awt.image.*;
 import java.io.*;
 
 import org.progeeks.nwn.io.image.*;
@@ -43,7 +45,7 @@ import org.progeeks.nwn.resource.ResourceKey;
  *  @version   $Revision$
  *  @author    Paul Speed
  */
-public class TargaLoader implements ResourceLoader
+public class TargaLoader implements ResourceLoader, ResourceWeigher
 {
     public Object loadResource( ResourceKey key, InputStream in ) throws IOException
     {
@@ -57,6 +59,19 @@ public class TargaLoader implements ResourceLoader
             reader.close();
             }
     }
-}
 
+    /**
+     *  Returns the size of the image's pixel data.
+     */
+    public int getWeight( ResourceKey key, Object resource )
+    {
+        if( resource instanceof BufferedImage )
+            {
+            DataBuffer data = ((BufferedImage)resource).getRaster().getDataBuffer();
+            return( data.getSize() * data.getNumBanks() * DataBuffer.getDataTypeSize( data.getDataType() ) / 8 );
+            }
 
+        Image img = (Image)resource;
+        return( Math.max( 0, img.getWidth( null ) ) * Math.max( 0, img.getHeight( null ) ) * 4 );
+    }
+}
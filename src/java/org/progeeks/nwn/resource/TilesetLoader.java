@@ -33,6 +33,7 @@
 package org.progeeks.nwn.resource;
 
 import java.io.*;
+import java.util.*;
 
 import org.progeeks.nwn.io.set.*;
 import org.progeeks.nwn.resource.ResourceKey;
@@ -43,7 +44,7 @@ import org.progeeks.nwn.resource.ResourceKey;
  *  @version   $Revision$
  *  @author    Paul Speed
  */
-public class TilesetLoader implements ResourceLoader
+public class TilesetLoader implements ResourceLoader, ResourceWeigher
 {
     public Object loadResource( ResourceKey key, InputStream in ) throws IOException
     {
@@ -57,6 +58,19 @@ public class TilesetLoader implements ResourceLoader
             setReader.close();
             }
     }
-}
-
 
+    /**
+     *  Estimates the size of a loaded tile list from the number of
+     *  tile properties.
+     */
+    public int getWeight( ResourceKey key, Object resource )
+    {
+        int count = 0;
+        for( Iterator i = ((List)resource).iterator(); i.hasNext(); )
+            {
+            Object tile = i.next();
+            count += 1 + (tile instanceof Map ? ((Map)tile).size() : 0);
+            }
+        return( count * 64 );
+    }
+}
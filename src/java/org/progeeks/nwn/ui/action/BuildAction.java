@@ -35,6 +35,7 @@ package org.progeeks.nwn.ui.action;
 import java.awt.event.ActionEvent;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.swing.AbstractAction;
 
 import org.progeeks.cmd.*;
@@ -61,6 +62,15 @@ public class BuildAction extends AbstractAction
 {
     static Log log = Log.getLog( BuildAction.class );
 
+    /**
+     *  When true, a source whose time stamp is newer than its
+     *  destination is only rebuilt if its contents have actually
+     *  changed since the last build.  This keeps things like a
+     *  version control checkout from forcing a full rebuild.
+     *  Set with the nwn.build.contentHash system property.
+     */
+    private static final boolean USE_CONTENT_HASH = Boolean.getBoolean( "nwn.build.contentHash" );
+
     private WindowContext context;
 
     public BuildAction( WindowContext context )
@@ -81,10 +91,13 @@ public class BuildAction extends AbstractAction
         private Project project;
         private ProjectGraph graph;
         private Set staleResources = new HashSet();
-        private Set checkedScripts = new HashSet();
+        private IncludeGraph includeGraph;
+        private Set scriptNames = new HashSet();
         private int scriptCount = 0;
         private int xmlCount = 0;
         private boolean hasCompileErrors = false;
+        private Map sourceHashes = new HashMap();
+        private int unchangedCount = 0;
 
         public BuildCommand( Project project )
         {
@@ -104,34 +117,119 @@ public class BuildAction extends AbstractAction
                 scriptCount++;
         }
 
-        private boolean checkScriptDependencies( ResourceIndex ri ) throws IOException
+        /**
+         *  Starts hashing the source of every resource whose time stamp
+         *  is newer than its destination.  The hashes are computed on a
+         *  pool in the background while the scan runs and are collected
+         *  by checkStaleness() as it gets to each resource.  The returned
+         *  pool should be shut down when the scan is done.
+         */
+        private ExecutorService startHashing()
         {
-            File f = ri.getSource().getFile( project );
-            checkedScripts.add( ri );
-            DependencyReader reader = new DependencyReader( new FileReader( f ) );
-            try
+            ExecutorService pool = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+            for( Iterator i = graph.nodes(null).iterator(); i.hasNext(); )
                 {
-                List deps = reader.readDependencies();
-                for( Iterator i = deps.iterator(); i.hasNext(); )
-                    {
-                    ResourceKey key = (ResourceKey)i.next();
-                    ResourceIndex script = graph.getResourceIndex( key );
-                    if( script == null )
-                        {
-                        // For now, just assume its a Bioware script and ignore it
-                        // FIXME - should really check with the resource manager.
-                        continue;
-                        //throw new RuntimeException( "Resource not found for key:" + key );
-                        }
+                Object obj = i.next();
+                if( !(obj instanceof ResourceIndex) )
+                    continue;
 
-                    if( checkStaleness( script ) )
-                        return( true );
-                    }
+                ResourceIndex ri = (ResourceIndex)obj;
+                if( ri.getSource() == null || ri.getDestination() == null )
+                    continue;
+
+                File src = ri.getSource().getFile( project );
+                File dest = ri.getDestination().getFile( project );
+                if( src.lastModified() <= dest.lastModified() )
+                    continue;
+
+                HashTask task = new HashTask( src );
+                task.future = pool.submit( task );
+                sourceHashes.put( ri, task );
+                }
+            return( pool );
+        }
+
+        /**
+         *  Returns true if the resource's source has a newer time stamp
+         *  but the same contents as the last time it was built.
+         */
+        private boolean isContentUnchanged( ResourceIndex ri )
+        {
+            HashTask task = (HashTask)sourceHashes.get( ri );
+            if( task == null )
                 return( false );
+            return( ri.isSourceUnchanged( task.getHash() ) );
+        }
+
+        /**
+         *  Records the hash of the resource's source so that the next
+         *  build can tell if the contents have changed.  Nothing is
+         *  recorded if the source was modified again after it was hashed.
+         */
+        private void recordContentHash( ResourceIndex ri )
+        {
+            HashTask task = (HashTask)sourceHashes.get( ri );
+            if( task == null )
+                return;
+
+            long hash = task.getHash();
+            if( hash != 0 && task.file.lastModified() == task.lastModified )
+                ri.getSource().setContentHash( hash );
+        }
+
+        /**
+         *  Updates the include graph for the specified script if
+         *  it has changed since the last build.
+         */
+        private void updateIncludes( ResourceIndex ri )
+        {
+            scriptNames.add( ri.getKey().getName() );
+            try
+                {
+                includeGraph.update( project, ri );
                 }
-            finally
+            catch( IOException e )
+                {
+                log.error( "Error checking script dependencies:" + ri, e );
+                }
+        }
+
+        /**
+         *  Marks every script that directly or indirectly includes a
+         *  stale script as stale too.
+         */
+        private void addStaleDependents()
+        {
+            List changed = new ArrayList();
+            for( Iterator i = staleResources.iterator(); i.hasNext(); )
+                {
+                ResourceIndex ri = (ResourceIndex)i.next();
+                if( ri.getKey().getType() == ResourceTypes.TYPE_NSS )
+                    changed.add( ri.getKey().getName() );
+                }
+
+            if( changed.isEmpty() )
+                return;
+
+            for( Iterator i = includeGraph.getDependents( changed ).iterator(); i.hasNext(); )
                 {
-                reader.close();
+                ResourceKey key = new ResourceKey( (String)i.next(), ResourceTypes.TYPE_NSS );
+                ResourceIndex script = graph.getResourceIndex( key );
+                if( script == null || staleResources.contains( script ) )
+                    continue;
+                addStaleResource( script );
+                }
+        }
+
+        private void saveIncludeGraph()
+        {
+            try
+                {
+                includeGraph.save( project );
+                }
+            catch( IOException e )
+                {
+                log.warn( "Error saving include graph", e );
                 }
         }
 
@@ -144,28 +242,16 @@ public class BuildAction extends AbstractAction
             ri.makeDestinationCurrent( project );
             if( ri.isSourceNewer() )
                 {
-                addStaleResource( ri );
-                return( true );
-                }
-
-            if( ri.getKey().getType() == ResourceTypes.TYPE_NSS )
-                {
-                if( checkedScripts.contains( ri ) )
-                    return( false );
-
-                try
-                    {
-                    // Check for dependencies
-                    if( checkScriptDependencies( ri ) )
-                        {
-                        addStaleResource( ri );
-                        return( true );
-                        }
-                    }
-                catch( IOException e )
+                if( !isContentUnchanged( ri ) )
                     {
-                    log.error( "Error checking script dependencies:" + ri, e );
+                    addStaleResource( ri );
+                    return( true );
                     }
+
+                // Only the time stamp changed so just bring the
+                // destination's time stamp along with it.
+                ri.makeAllUpToDate( project );
+                unchangedCount++;
                 }
 
             return( false );
@@ -183,6 +269,16 @@ public class BuildAction extends AbstractAction
 
             boolean hasCompiler = scriptCompiler.hasCompiler();
 
+            // Scripts that haven't changed since some earlier compile
+            // are restored from the work directory's compile cache.
+            CompileCache cache = null;
+            if( project.getWorkDirectory() != null )
+                {
+                File work = project.getWorkDirectory().getFile( project );
+                cache = new CompileCache( new File( work, "ncscache" ) );
+                }
+            scriptCompiler.setCompileCache( cache );
+
             hasCompileErrors = false;
             ErrorListener errorListener = new ErrorListener()
                 {
@@ -246,6 +342,7 @@ public class BuildAction extends AbstractAction
                 // destination is just the script copy.  Errors need to be
                 // added to the graph or resource or something.
                 ri.makeAllUpToDate( project );
+                recordContentHash( ri );
 
                 // Clear any errors this resource may have.
                 graph.clearErrors( ri );
@@ -269,6 +366,9 @@ public class BuildAction extends AbstractAction
                 log.error( "Error waiting for compiles to finish", e );
                 }
 
+            if( cache != null )
+                log.debug( "Script compile " + cache );
+
             // Check to see if there were any compile errors
             if( hasCompileErrors )
                 throw new RuntimeException( "Build aborted due to compile errors." );
@@ -281,6 +381,8 @@ public class BuildAction extends AbstractAction
 
         protected void convertGffResources( ProgressReporter pr ) throws IOException
         {
+            ConversionCache cache = ModuleImporter.getConversionCache( project );
+
             int index = 0;
             for( Iterator i = staleResources.iterator(); i.hasNext(); index++ )
                 {
@@ -294,14 +396,46 @@ public class BuildAction extends AbstractAction
                 log.debug( "Converting:" + src + " to:" + dest );
                 pr.setMessage( "Converting:" + ri.getKey().getFileName() );
 
+                // Reuse the GFF from the last time this exact XML
+                // was converted if there was one.
+                byte[] xml = ConversionCache.readFile( src );
+                String hash = null;
+                if( cache != null )
+                    {
+                    hash = cache.getHash( ConversionCache.XML_TO_GFF, ri.getKey(), xml );
+                    if( cache.copyTo( hash, dest ) )
+                        {
+                        recordContentHash( ri );
+                        i.remove();
+                        continue;
+                        }
+                    }
+
                 // Easy, load the XML.
-                Struct gff = GffUtils.readGffXml( src );
+                Reader in = new InputStreamReader( new ByteArrayInputStream( xml ) );
+                Struct gff = GffUtils.readGffXml( in );
 
                 // Save the GFF
                 GffUtils.writeGff( ri.getKey(), gff, dest );
 
+                if( cache != null )
+                    {
+                    try
+                        {
+                        cache.store( hash, dest );
+                        }
+                    catch( IOException e )
+                        {
+                        log.warn( "Error caching GFF for:" + ri.getKey(), e );
+                        }
+                    }
+
+                recordContentHash( ri );
                 i.remove();
                 }
+
+            if( cache != null )
+                log.debug( "GFF conversion " + cache );
         }
 
         protected void copyResources( ProgressReporter pr ) throws IOException
@@ -322,6 +456,7 @@ public class BuildAction extends AbstractAction
                 FileUtils.copyFile( src, dest );
 
                 ri.makeAllUpToDate( project );
+                recordContentHash( ri );
                 }
         }
 
@@ -354,8 +489,9 @@ public class BuildAction extends AbstractAction
 
             System.out.println( "Writing resources to module file:" + module );
 
-            // And go
-            long size = packer.writeModule();
+            // And go... only the resources that changed since the
+            // last build are actually written.
+            long size = packer.updateModule();
             System.out.println( size + " bytes written from " + packer.getResourceCount()
                                 + " resources." );
         }
@@ -372,8 +508,13 @@ public class BuildAction extends AbstractAction
             UserRequestHandler reqHandler = context.getRequestHandler();
             ProgressReporter pr;
             pr = reqHandler.requestProgressReporter( prName, "Scanning dependencies...", 0, nodeCount );
+            ExecutorService hashPool = null;
             try
                 {
+                if( USE_CONTENT_HASH )
+                    hashPool = startHashing();
+                includeGraph = IncludeGraph.load( project );
+
                 int index = 0;
                 for( Iterator i = graph.nodes(null).iterator(); i.hasNext(); index++ )
                     {
@@ -381,18 +522,32 @@ public class BuildAction extends AbstractAction
                     pr.setProgress( index );
                     if( obj instanceof ResourceIndex )
                         {
-                        checkStaleness( (ResourceIndex)obj );
+                        ResourceIndex ri = (ResourceIndex)obj;
+                        checkStaleness( ri );
+                        if( ri.getKey().getType() == ResourceTypes.TYPE_NSS )
+                            updateIncludes( ri );
                         }
                     }
 
+                // Scripts are also stale if anything they include
+                // is stale.
+                includeGraph.retainAll( scriptNames );
+                addStaleDependents();
+                saveIncludeGraph();
+
                 if( pr.isCanceled() )
                     throw new RuntimeException( "User canceled." );
                 }
             finally
                 {
+                if( hashPool != null )
+                    hashPool.shutdownNow();
                 pr.done();
                 }
 
+            if( unchangedCount > 0 )
+                System.out.println( unchangedCount + " resources with new time stamps are unchanged." );
+
             if( staleResources.size() == 0 )
                 {
                 return( "All files are current." );
@@ -479,7 +634,51 @@ public class BuildAction extends AbstractAction
             return( null );
         }
     }
-}
 
+    /**
+     *  Hashes a source file on the background pool.
+     */
+    private static class HashTask implements Callable
+    {
+        File file;
+        long lastModified;
+        Future future;
 
+        public HashTask( File file )
+        {
+            this.file = file;
+        }
+
+        public Object call() throws IOException
+        {
+            lastModified = file.lastModified();
+            return( new Long( ContentHash.hashFile( file ) ) );
+        }
 
+        /**
+         *  Waits for the hash and returns it or zero if the file could
+         *  not be hashed.
+         */
+        public long getHash()
+        {
+            try
+                {
+                return( ((Long)future.get()).longValue() );
+                }
+            catch( InterruptedException e )
+                {
+                Thread.currentThread().interrupt();
+                return( 0 );
+                }
+            catch( CancellationException e )
+                {
+                return( 0 );
+                }
+            catch( ExecutionException e )
+                {
+                log.warn( "Error hashing:" + file, e.getCause() );
+                return( 0 );
+                }
+        }
+    }
+}
@@ -60,6 +60,7 @@ public class ModuleImporter
     private Project project;
     private ProjectGraph graph;
     private List rules;
+    private ConversionCache cache;
 
     public ModuleImporter( Project project, List rules )
     {
@@ -88,6 +89,61 @@ public class ModuleImporter
         return( graph );
     }
 
+    /**
+     *  Returns the cache of converted GFF and XML files kept in the
+     *  project's work directory or null if the project doesn't have
+     *  a work directory.
+     */
+    public static ConversionCache getConversionCache( Project project )
+    {
+        if( project.getWorkDirectory() == null )
+            return( null );
+        File work = project.getWorkDirectory().getFile( project );
+        return( new ConversionCache( new File( work, "gffcache" ) ) );
+    }
+
+    protected ConversionCache getConversionCache()
+    {
+        if( cache == null )
+            cache = getConversionCache( project );
+        return( cache );
+    }
+
+    /**
+     *  Writes the XML source for the specified GFF data, copying it
+     *  from the conversion cache if the same data has been converted
+     *  before.  The struct is used for the conversion if it has
+     *  already been read.
+     */
+    protected void writeXmlSource( ResourceKey key, byte[] gff, Struct struct, File f ) throws IOException
+    {
+        ConversionCache cache = getConversionCache();
+        String hash = null;
+        if( cache != null )
+            {
+            hash = cache.getHash( ConversionCache.GFF_TO_XML, key, gff );
+            if( cache.copyTo( hash, f ) )
+                return;
+            }
+
+        if( struct != null )
+            GffUtils.writeGffXml( key, struct, f );
+        else
+            GffUtils.writeGffXml( key, new ByteArrayInputStream( gff ), f );
+
+        if( cache != null )
+            {
+            try
+                {
+                cache.store( hash, f );
+                }
+            catch( IOException e )
+                {
+                log.warn( "Error caching XML for:" + key, e );
+                }
+            }
+    }
+
     public static Struct getModuleInfo( File moduleFile ) throws IOException
     {
         FileInputStream in = new FileInputStream( moduleFile );
@@ -177,13 +233,23 @@ public class ModuleImporter
         // If it's a GFF file, the read it's struct
         if( key.isGffType() )
             {
-            Struct struct = GffUtils.readGff( in );
+            byte[] gff;
+            try
+                {
+                gff = ConversionCache.readStream( in, 65536 );
+                }
+            finally
+                {
+                in.close();
+                }
+
+            Struct struct = GffUtils.readGff( new ByteArrayInputStream( gff ) );
             ri = ResourceIndexFactory.createResourceIndex( key, struct, destination,
                                                            project.getModuleFilesDirectory() );
 
             // Now write out the struct
             File f = ri.getSource().getFile( project );
-            GffUtils.writeGffXml( key, struct, f );
+            writeXmlSource( key, gff, struct, f );
 
             // Go ahead and make the source and target times the same
             File df = ri.getDestination().getFile( project );
@@ -225,11 +291,19 @@ public class ModuleImporter
         // If it's a GFF file, the read it's struct
         if( ri.getKey().isGffType() )
             {
-            Struct struct = GffUtils.readGff( in );
+            byte[] gff;
+            try
+                {
+                gff = ConversionCache.readStream( in, 65536 );
+                }
+            finally
+                {
+                in.close();
+                }
 
-            // Now write out the struct
+            // Stream it straight to XML
             File f = ri.getSource().getFile( project );
-            GffUtils.writeGffXml( ri.getKey(), struct, f );
+            writeXmlSource( ri.getKey(), gff, null, f );
 
             // Go ahead and make the source and target times the same
             File df = ri.getDestination().getFile( project );
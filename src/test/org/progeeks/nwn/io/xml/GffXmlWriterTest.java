@@ -0,0 +1,227 @@
+/*
+ * $Id$
+ *
+ * Copyright (c) 2005, Paul Speed
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2) Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3) Neither the names "Progeeks", "NWN Tools", nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.progeeks.nwn.io.xml;
+
+import java.io.*;
+import java.util.*;
+
+import org.progeeks.nwn.gff.*;
+import org.progeeks.nwn.io.gff.*;
+
+/**
+ *  Checks that XmlBufferWriter and XmlPrintWriter both write exactly
+ *  the golden files next to this class.  Each sample is written from
+ *  a Struct tree and from GffBufferReader events.  Run by the build's
+ *  test target, which sets line.separator to "\n" to match the golden
+ *  files and fails if any output differs.
+ *
+ *  @version   $Revision$
+ *  @author    Paul Speed
+ */
+public class GffXmlWriterTest
+{
+    private static final String SAMPLE_NAME = "sample";
+    private static final String SAMPLE_TYPE = "UTC ";
+    private static final String SAMPLE_VERSION = "V3.2";
+
+    private int checked;
+    private int failures;
+
+    /**
+     *  Returns a sample struct that covers every element type,
+     *  escaping, control characters, characters above 0xff, and
+     *  "]]>" in data blocks.  GffWriter can't write the 64 bit types
+     *  or size strings with surrogate pairs so they are left out of
+     *  samples that are written as GFF first.
+     */
+    public static Struct createSample( boolean forGff )
+    {
+        Struct root = new Struct( -1 );
+        root.addValue( new IntElement( "Byte", Element.TYPE_UINT8, 255 ) );
+        root.addValue( new IntElement( "Int", Element.TYPE_INT32, -2147483648 ) );
+        root.addValue( new IntElement( "Word", Element.TYPE_UINT16, 0 ) );
+        root.addValue( new FloatElement( "Float", Element.TYPE_FLOAT, -1.5f ) );
+        if( !forGff )
+            {
+            root.addValue( new ObjectElement( "Long", Element.TYPE_INT64, new Long( 1234567890123L ) ) );
+            root.addValue( new ObjectElement( "Double", Element.TYPE_DOUBLE, new Double( 0.25 ) ) );
+            }
+        root.addValue( new ObjectElement( "Data", Element.TYPE_DATREF, new byte[] { 1, 0, -1 } ) );
+        root.addValue( new StringElement( "Tag", Element.TYPE_STRING, "a&b <c> \"d\" 'e' \t\u00e9\u00ff" ) );
+        root.addValue( new StringElement( "Control", Element.TYPE_STRING, "\u001b\u001f\u007f" ) );
+        root.addValue( new StringElement( "Wide", Element.TYPE_STRING,
+                                          forGff ? "\u0152\u20ac\u4e2d" : "\u0152\u20ac\u4e2d\ud83d\ude00" ) );
+        root.addValue( new StringElement( "Empty", Element.TYPE_STRING, "" ) );
+        root.addValue( new StringElement( "Lines", Element.TYPE_STRING, "line 1\r\nline 2 & <3>\n" ) );
+        root.addValue( new StringElement( "Script", Element.TYPE_STRING, "if( a[b[0]]>1 )\n    x = \"]]>\";\n]]" ) );
+        root.addValue( new StringElement( "ResRef", Element.TYPE_RESREF, "nw_res&" ) );
+
+        LocalizedStringElement local = new LocalizedStringElement( "Name", Element.TYPE_STRREF, -1 );
+        local.addLocalString( 0, "Plain \"name\"" );
+        local.addLocalString( 2, "Two\nlines" );
+        local.addLocalString( 4, "\u00c0\u0100\u3042" );
+        root.addValue( local );
+
+        Struct child = new Struct( 7 );
+        child.addValue( new StringElement( "Inner", Element.TYPE_STRING, "x" ) );
+        root.addValue( new StructElement( "Child", Element.TYPE_STRUCTREF, child ) );
+
+        ListElement list = new ListElement( "List", Element.TYPE_LIST );
+        Struct item = new Struct( 0 );
+        item.addValue( new IntElement( "Id", Element.TYPE_INT32, 42 ) );
+        ListElement nested = new ListElement( "Nested", Element.TYPE_LIST );
+        nested.addValue( new Struct( 3 ) );
+        item.addValue( nested );
+        list.addValue( item );
+        list.addValue( new Struct( 1 ) );
+        root.addValue( list );
+        root.addValue( new ListElement( "EmptyList", Element.TYPE_LIST ) );
+
+        return( root );
+    }
+
+    public void checkSample() throws IOException
+    {
+        Struct sample = createSample( false );
+        String expected = readGolden( "sample.utc.xml" );
+        check( "sample.utc.xml (XmlPrintWriter)", expected, writeXml( sample, false ) );
+        check( "sample.utc.xml (XmlBufferWriter)", expected, writeXml( sample, true ) );
+
+        ByteArrayOutputStream gff = new ByteArrayOutputStream();
+        GffWriter writer = new GffWriter( SAMPLE_TYPE, SAMPLE_VERSION, gff );
+        writer.writeStruct( createSample( true ) );
+
+        byte[] data = gff.toByteArray();
+        expected = readGolden( "sample-events.utc.xml" );
+        check( "sample-events.utc.xml (XmlPrintWriter)", expected, writeXml( data, false ) );
+        check( "sample-events.utc.xml (XmlBufferWriter)", expected, writeXml( data, true ) );
+    }
+
+    protected void check( String name, String expected, String actual )
+    {
+        checked++;
+        int diff = firstDifference( expected, actual );
+        if( diff < 0 )
+            return;
+
+        failures++;
+        System.out.println( "Differs:" + name + " at character " + diff );
+        System.out.println( "  expected:" + excerpt( expected, diff ) );
+        System.out.println( "    actual:" + excerpt( actual, diff ) );
+    }
+
+    private static int firstDifference( String s1, String s2 )
+    {
+        int length = Math.min( s1.length(), s2.length() );
+        for( int i = 0; i < length; i++ )
+            {
+            if( s1.charAt( i ) != s2.charAt( i ) )
+                return( i );
+            }
+        return( s1.length() == s2.length() ? -1 : length );
+    }
+
+    private static String excerpt( String s, int pos )
+    {
+        int start = Math.max( 0, pos - 20 );
+        int end = Math.min( s.length(), pos + 20 );
+        StringBuffer sb = new StringBuffer();
+        for( int i = start; i < end; i++ )
+            {
+            char c = s.charAt( i );
+            if( c < 0x20 || c > 0x7e )
+                sb.append( "\\u" + Integer.toHexString( 0x10000 | c ).substring( 1 ) );
+            else
+                sb.append( c );
+            }
+        return( sb.toString() );
+    }
+
+    private static String writeXml( Struct root, boolean useFastPath )
+    {
+        StringWriter buff = new StringWriter();
+        GffXmlWriter out = new GffXmlWriter( SAMPLE_NAME, SAMPLE_TYPE, SAMPLE_VERSION, buff, useFastPath );
+        out.writeStruct( root );
+        out.close();
+        return( buff.toString() );
+    }
+
+    private static String writeXml( byte[] data, boolean useFastPath ) throws IOException
+    {
+        GffBufferReader reader = new GffBufferReader( new ByteArrayInputStream( data ) );
+        StringWriter buff = new StringWriter();
+        GffXmlWriter out = new GffXmlWriter( SAMPLE_NAME, SAMPLE_TYPE, SAMPLE_VERSION, buff, useFastPath );
+        try
+            {
+            reader.parse( out );
+            }
+        finally
+            {
+            reader.close();
+            }
+        out.close();
+        return( buff.toString() );
+    }
+
+    private static String readGolden( String name ) throws IOException
+    {
+        InputStream stream = GffXmlWriterTest.class.getResourceAsStream( "golden/" + name );
+        if( stream == null )
+            throw new FileNotFoundException( "No golden file:" + name );
+
+        Reader in = new InputStreamReader( stream, "UTF-8" );
+        try
+            {
+            StringBuffer sb = new StringBuffer();
+            char[] buff = new char[8192];
+            int count;
+            while( (count = in.read( buff )) >= 0 )
+                sb.append( buff, 0, count );
+            return( sb.toString() );
+            }
+        finally
+            {
+            in.close();
+            }
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        GffXmlWriterTest test = new GffXmlWriterTest();
+        test.checkSample();
+
+        System.out.println( "Checked " + test.checked + " outputs, " + test.failures + " differ." );
+        if( test.failures > 0 )
+            System.exit( 1 );
+    }
+}